@@ -0,0 +1,89 @@
+package flightapp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import flightapp.Query.Flight;
+import flightapp.Query.Itinerary;
+
+/**
+ * Synthetic flights for the benchmarks, generated from a fixed seed so every run sees the same
+ * data
+ */
+class BenchmarkData {
+  static final String[] CITIES = {
+    "Seattle WA", "Boston MA", "New York NY", "Chicago IL", "Denver CO", "Atlanta GA",
+    "Dallas/Fort Worth TX", "San Francisco CA", "Los Angeles CA", "Miami FL"
+  };
+
+  private BenchmarkData() { }
+
+  /**
+   * Flights between every pair of cities, on every day of July
+   *
+   * @param perRoute flights per pair of cities per day
+   * @param capacity seats on each flight
+   */
+  static List<Flight> flights(int perRoute, int capacity) {
+    Random random = new Random(42);
+    List<Flight> flights = new ArrayList<>();
+    int fid = 1;
+    for (int day = 1; day <= 31; day++) {
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          if (origin.equals(dest)) {
+            continue;
+          }
+          for (int i = 0; i < perRoute; i++) {
+            flights.add(new Flight(fid, day, "AA", String.valueOf(fid), origin, dest,
+                                   60 + random.nextInt(600), capacity, 100 + random.nextInt(900)));
+            fid++;
+          }
+        }
+      }
+    }
+    return flights;
+  }
+
+  /**
+   * Itineraries made of the flights, in random order, half of them direct
+   */
+  static List<Itinerary> itineraries(List<Flight> flights, int count) {
+    Random random = new Random(42);
+    List<Itinerary> itineraries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Flight f1 = flights.get(random.nextInt(flights.size()));
+      if (random.nextBoolean()) {
+        itineraries.add(new Itinerary(f1));
+      } else {
+        itineraries.add(new Itinerary(f1, flights.get(random.nextInt(flights.size()))));
+      }
+    }
+    return itineraries;
+  }
+
+  /**
+   * Writes the flights to a temporary file in the format MemoryStore loads (the columns of the
+   * Flights table)
+   */
+  static Path writeFlightsFile(List<Flight> flights) throws IOException {
+    Path file = Files.createTempFile("benchmark-flights", ".csv");
+    file.toFile().deleteOnExit();
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+      out.println("fid,month_id,day_of_month,day_of_week_id,carrier_id,flight_num,origin_city,"
+                  + "origin_state,dest_city,dest_state,departure_delay,taxi_out,arrival_delay,"
+                  + "canceled,actual_time,distance,capacity,price");
+      for (Flight f : flights) {
+        out.println(f.fid + ",7," + f.dayOfMonth + ",1," + f.carrierId + "," + f.flightNum + ","
+                    + f.originCity + ",XX," + f.destCity + ",YY,0,0,0,0," + f.time + ",100,"
+                    + f.capacity + "," + f.price);
+      }
+    }
+    return file;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the benchmarks with JMH's usual command line, except that results are written to
+ * jmh-result.json by default, so runs of different releases can be compared by a script.
+ */
+public class BenchmarkMain {
+  public static void main(String[] args) throws Exception {
+    List<String> jmhArgs = new ArrayList<>(Arrays.asList(args));
+    if (!jmhArgs.contains("-rf")) {
+      jmhArgs.add(0, "-rf");
+      jmhArgs.add(1, "json");
+    }
+    org.openjdk.jmh.Main.main(jmhArgs.toArray(new String[0]));
+  }
+}
\ No newline at end of file
@@ -0,0 +1,88 @@
+package flightapp;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of parsing a command, with CommandParser and with the regex tokenizer it replaced, and of
+ * dispatching commands through FlightService.execute() to a session that isn't logged in, so the
+ * commands themselves do next to nothing
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CommandParserBenchmark {
+  @State(Scope.Thread)
+  public static class Input {
+    @Param({"login user1 hunter2", "search \"Seattle WA\" \"Boston MA\" 0 14 10", "book 12",
+            "reservations 40 20"})
+    public String command;
+  }
+
+  // Commands that fail straight away when nobody is logged in
+  private static final String[] NOT_LOGGED_IN_COMMANDS = {
+    "book 12", "pay 3", "reservations", "reservations 40 20", "frobnicate"
+  };
+
+  private final CommandParser parser = new CommandParser();
+  private QueryAbstract session;
+
+  @Setup
+  public void setup() throws IOException {
+    Path flightsFile = BenchmarkData.writeFlightsFile(BenchmarkData.flights(1, 100));
+    session = new MemoryQuery(new MemoryStore(flightsFile.toString()));
+  }
+
+  @Benchmark
+  public CommandParser.Command parse(Input input) {
+    return parser.parse(input.command);
+  }
+
+  /**
+   * FlightService.tokenize() before CommandParser
+   */
+  @Benchmark
+  public String[] regexTokenize(Input input) {
+    String regex = "\"([^\"]*)\"|(\\S+)";
+    Matcher m = Pattern.compile(regex).matcher(input.command.trim());
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      if (m.group(1) != null) {
+        tokens.add(m.group(1));
+      } else {
+        tokens.add(m.group(2));
+      }
+    }
+    return tokens.toArray(new String[0]);
+  }
+
+  /**
+   * Parses and dispatches each of NOT_LOGGED_IN_COMMANDS
+   */
+  @Benchmark
+  public void execute(Blackhole blackhole) {
+    for (String notLoggedIn : NOT_LOGGED_IN_COMMANDS) {
+      blackhole.consume(FlightService.execute(session, notLoggedIn));
+    }
+  }
+}
\ No newline at end of file
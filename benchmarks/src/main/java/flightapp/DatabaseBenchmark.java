@@ -0,0 +1,215 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks against the SQL Server database in dbconn.properties (in the working directory),
+ * whose tables must already be created, as for the tests.  They clear the Users and
+ * Reservations tables.
+ *
+ * - reservations: latency and round-trips of listing a user's reservations, against how many
+ *   the user has
+ * - mixed: searches running alongside bookings, at each flightapp.read.isolation (which must not
+ *   be set in dbconn.properties).  Sampled latencies show how long searches wait on the
+ *   bookings' locks, and the retries counter how often bookings deadlock.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dflightapp.password.iterations=1")
+public class DatabaseBenchmark {
+  private static final String INSERT_RES_SQL =
+      "INSERT INTO Reservations_sknguyen VALUES (?, ?, 0, ?, ?, ?)";
+  private static final String FLIGHTS_SQL =
+      "SELECT TOP (?) fid FROM Flights WHERE canceled = 0 ORDER BY fid";
+
+  /**
+   * A user with a given number of reservations, alternately direct and with a connection
+   */
+  @State(Scope.Thread)
+  public static class Reservations {
+    @Param({"1", "10", "50", "200"})
+    public int reservations;
+
+    QueryAbstract query;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+      query = FlightService.createQuery();
+      query.clearTablesWrap();
+      query.createCustomer("reservations", "pw", 100000);
+      query.login("reservations", "pw");
+
+      try (Connection conn = DBConnUtils.openConnection()) {
+        List<Integer> fids = new ArrayList<>();
+        PreparedStatement flightsStmt = conn.prepareStatement(FLIGHTS_SQL);
+        flightsStmt.setInt(1, reservations * 2);
+        try (ResultSet rs = flightsStmt.executeQuery()) {
+          while (rs.next()) {
+            fids.add(rs.getInt("fid"));
+          }
+        }
+        PreparedStatement insertStmt = conn.prepareStatement(INSERT_RES_SQL);
+        for (int i = 0; i < reservations; i++) {
+          insertStmt.setInt(1, i + 1);
+          insertStmt.setString(2, "reservations");
+          insertStmt.setInt(3, 100);
+          insertStmt.setInt(4, fids.get(2 * i));
+          if (i % 2 == 0) {
+            insertStmt.setNull(5, Types.INTEGER);
+          } else {
+            insertStmt.setInt(5, fids.get(2 * i + 1));
+          }
+          insertStmt.executeUpdate();
+        }
+      }
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+      query.closeConnection();
+    }
+  }
+
+  /**
+   * Round-trips made by the listings; divide by commands for round-trips per listing
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class RoundTrips {
+    public long roundTrips;
+    public long commands;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      roundTrips = 0;
+      commands = 0;
+    }
+  }
+
+  @Benchmark
+  public String reservations(Reservations state, RoundTrips counters) {
+    CommandMetrics metrics = CommandMetrics.get(CommandMetrics.Command.RESERVATIONS);
+    long before = metrics.getRoundTrips();
+    String listing = state.query.reservations();
+    counters.roundTrips += metrics.getRoundTrips() - before;
+    counters.commands++;
+    return listing;
+  }
+
+  /**
+   * The mixed workload's configuration, and its users
+   */
+  @State(Scope.Benchmark)
+  public static class Workload {
+    @Param({"read_committed", "snapshot", "serializable"})
+    public String readIsolation;
+
+    final AtomicLong users = new AtomicLong();
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+      // read before the read pool is first used
+      System.setProperty("flightapp.read.isolation", readIsolation);
+      QueryAbstract query = FlightService.createQuery();
+      query.clearTablesWrap();
+      query.closeConnection();
+    }
+  }
+
+  /**
+   * A session of one of the mixed workload's threads
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    QueryAbstract query;
+    int day = 0;
+
+    // depends on the workload, so that its isolation level is set first
+    @Setup
+    public void setup(Workload workload) throws IOException, SQLException {
+      query = FlightService.createQuery();
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+      query.closeConnection();
+    }
+
+    String nextSearch() {
+      day = day % 31 + 1;
+      return "search \"Seattle WA\" \"Boston MA\" 0 " + day + " 10";
+    }
+  }
+
+  /**
+   * Deadlock retries of the bookings
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Retries {
+    public long retries;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      retries = 0;
+    }
+  }
+
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(3)
+  public String search(Workload workload, Session session) {
+    return FlightService.execute(session.query, session.nextSearch());
+  }
+
+  /**
+   * A new user creates an account, logs in, searches and books the first itinerary
+   */
+  @Benchmark
+  @Group("mixed")
+  @GroupThreads(1)
+  public String book(Workload workload, Session session, Retries retries) throws IOException,
+                                                                                SQLException {
+    CommandMetrics metrics = CommandMetrics.get(CommandMetrics.Command.BOOK);
+    QueryAbstract query = FlightService.createQuery();
+    try {
+      String username = "user" + workload.users.incrementAndGet();
+      FlightService.execute(query, "create " + username + " pw 100000");
+      FlightService.execute(query, "login " + username + " pw");
+      FlightService.execute(query, session.nextSearch());
+      long before = metrics.getRetries();
+      String response = FlightService.execute(query, "book 0");
+      retries.retries += metrics.getRetries() - before;
+      return response;
+    } finally {
+      query.closeConnection();
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,87 @@
+package flightapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import flightapp.Query.Flight;
+import flightapp.Query.Itinerary;
+
+/**
+ * Cost of ordering itineraries (Itinerary.compareTo(), and sorting search-sized and much larger
+ * lists with it) and of formatting flights and itineraries for the search output
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ItineraryBenchmark {
+  @State(Scope.Thread)
+  public static class Itineraries {
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    List<Itinerary> list;
+
+    @Setup
+    public void setup() {
+      list = BenchmarkData.itineraries(BenchmarkData.flights(2, 100), size);
+    }
+  }
+
+  private Flight flight;
+  private Itinerary direct;
+  private Itinerary connecting;
+
+  @Setup
+  public void setup() {
+    List<Flight> flights = BenchmarkData.flights(1, 100);
+    flight = flights.get(0);
+    direct = new Itinerary(flights.get(0));
+    connecting = new Itinerary(flights.get(0), flights.get(1));
+  }
+
+  @Benchmark
+  public int compareTo() {
+    return direct.compareTo(connecting) + connecting.compareTo(direct);
+  }
+
+  @Benchmark
+  public List<Itinerary> sort(Itineraries itineraries) {
+    List<Itinerary> sorted = new ArrayList<>(itineraries.list);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  @Benchmark
+  public String formatFlight() {
+    return flight.toString();
+  }
+
+  @Benchmark
+  public String formatItinerary() {
+    return connecting.toString();
+  }
+
+  /**
+   * The search output for the (unsorted) itineraries
+   */
+  @Benchmark
+  public String formatItineraries(Itineraries itineraries) {
+    return Query.formatItineraries(itineraries.list);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,81 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The search and book paths, end to end from the command line, against the in-memory backend,
+ * so they can be measured without a database.  Passwords are hashed with a single iteration,
+ * so that booking isn't dominated by the login it needs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dflightapp.password.iterations=1")
+@State(Scope.Benchmark)
+public class MemoryBackendBenchmark {
+  private MemoryStore store;
+  private final AtomicLong users = new AtomicLong();
+
+  /**
+   * A session, which searches each day in turn
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    QueryAbstract query;
+    int day = 0;
+
+    @Setup
+    public void setup(MemoryBackendBenchmark benchmark) {
+      query = new MemoryQuery(benchmark.store);
+    }
+
+    String nextSearch() {
+      day = day % 31 + 1;
+      return "search \"Seattle WA\" \"Boston MA\" 0 " + day + " 10";
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    // seats enough for every booking of an iteration
+    store = new MemoryStore(
+        BenchmarkData.writeFlightsFile(BenchmarkData.flights(20, 10000000)).toString());
+  }
+
+  @Setup(Level.Iteration)
+  public void clearTables() {
+    store.clear();
+  }
+
+  @Benchmark
+  public String search(Session session) {
+    return FlightService.execute(session.query, session.nextSearch());
+  }
+
+  /**
+   * A new user creates an account, logs in, searches and books the first itinerary
+   */
+  @Benchmark
+  public String book(Session session) {
+    QueryAbstract query = new MemoryQuery(store);
+    String username = "user" + users.incrementAndGet();
+    FlightService.execute(query, "create " + username + " pw 1000");
+    FlightService.execute(query, "login " + username + " pw");
+    FlightService.execute(query, session.nextSearch());
+    return FlightService.execute(query, "book 0");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,77 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of password hashing: creating and checking a hash with the current parameters, hashing
+ * with other algorithms and iteration counts (to pick flightapp.password.* for a latency
+ * budget), and logins per second through the hashing pool.  For the latter, vary the number of
+ * logging-in threads and of hashing threads, eg:
+ *
+ *   java -jar target/benchmarks.jar PasswordBenchmark.asyncLogins -t 8 \
+ *       -jvmArgsAppend -Dflightapp.hash_pool.threads=4
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PasswordBenchmark {
+  private static final String PASSWORD = "correct horse battery staple";
+
+  @State(Scope.Benchmark)
+  public static class Parameters {
+    @Param({"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA512"})
+    public String algorithm;
+
+    @Param({"10000", "65536", "210000"})
+    public int iterations;
+  }
+
+  private byte[] saltedHash;
+  private byte[] salt;
+
+  @Setup
+  public void setup() {
+    saltedHash = PasswordUtils.saltAndHashPassword(PASSWORD);
+    salt = PasswordUtils.generateSalt();
+  }
+
+  @Benchmark
+  public byte[] saltAndHashPassword() {
+    return PasswordUtils.saltAndHashPassword(PASSWORD);
+  }
+
+  @Benchmark
+  public boolean plaintextMatchesSaltedHash() {
+    return PasswordUtils.plaintextMatchesSaltedHash(PASSWORD, saltedHash);
+  }
+
+  @Benchmark
+  public byte[] hashWithParameters(Parameters parameters) {
+    return PasswordUtils.hashWithSalt(PASSWORD, salt, parameters.algorithm,
+                                      parameters.iterations, 32);
+  }
+
+  /**
+   * A login's password check, run on the hashing pool
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public boolean asyncLogins() {
+    return PasswordUtils.plaintextMatchesSaltedHashAsync(PASSWORD, saltedHash).join();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resetting the users and reservations between tests or benchmark runs: restoring a
+ * seeded fixture (see Fixtures), and clearing the tables once it's been restored.  Runs against
+ * the in-memory backend; "-p backend=database" runs against the database in dbconn.properties,
+ * which keeps the fixture's snapshot tables between runs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dflightapp.password.iterations=1")
+@State(Scope.Benchmark)
+public class ResetBenchmark {
+  @Param({"memory"})
+  public String backend;
+
+  @Param({"1000", "10000"})
+  public int users;
+
+  @Param({"1"})
+  public int reservationsPerUser;
+
+  private FlightServer.SessionFactory sessions;
+  private QueryAbstract query;
+  private String fixture;
+
+  @Setup
+  public void setup() throws IOException, SQLException {
+    if (backend.equals("memory")) {
+      MemoryStore store = new MemoryStore(
+          BenchmarkData.writeFlightsFile(BenchmarkData.flights(2, 100000)).toString());
+      sessions = () -> new MemoryQuery(store);
+    } else {
+      sessions = FlightService::createQuery;
+    }
+    fixture = Fixtures.restoreUsers(sessions, users, reservationsPerUser);
+    query = sessions.create();
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    query.closeConnection();
+  }
+
+  /**
+   * The fixture, restored before each clear
+   */
+  @State(Scope.Thread)
+  public static class Restored {
+    @Setup(Level.Invocation)
+    public void restore(ResetBenchmark benchmark) throws SQLException {
+      benchmark.query.restoreSnapshot(benchmark.fixture);
+    }
+  }
+
+  @Benchmark
+  public boolean restore() throws SQLException {
+    return query.restoreSnapshot(fixture);
+  }
+
+  @Benchmark
+  public void clear(Restored restored) {
+    query.clearTablesWrap();
+  }
+}
@@ -0,0 +1,86 @@
+package flightapp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How search scales with the size and shape of the dataset, on flights from
+ * FlightDataGenerator: between the two busiest hubs (the most direct flights and connections)
+ * and between random cities, for each number of flights per day and hub skew.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchScalingBenchmark {
+  @Param({"1000", "10000", "50000"})
+  public int flightsPerDay;
+
+  @Param({"100"})
+  public int cities;
+
+  @Param({"0.0", "1.0"})
+  public double hubSkew;
+
+  private QueryAbstract query;
+
+  /**
+   * A session, which searches each day in turn
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    final Random random = new Random(42);
+    int day = 0;
+
+    int nextDay() {
+      day = day % 31 + 1;
+      return day;
+    }
+  }
+
+  @Setup
+  public void setup() throws IOException {
+    FlightDataGenerator.Options options = new FlightDataGenerator.Options();
+    options.flightsPerDay = flightsPerDay;
+    options.cities = cities;
+    options.hubSkew = hubSkew;
+    Path file = Files.createTempFile("generated-flights", ".csv");
+    file.toFile().deleteOnExit();
+    try (Writer out = new FileWriter(file.toFile())) {
+      new FlightDataGenerator(options).writeCsv(out);
+    }
+    query = new MemoryQuery(new MemoryStore(file.toString()));
+  }
+
+  @Benchmark
+  public String hubToHub(Session session) {
+    return query.search(FlightDataGenerator.cityName(0), FlightDataGenerator.cityName(1), false,
+                        session.nextDay(), 10);
+  }
+
+  @Benchmark
+  public String randomCities(Session session) {
+    int origin = session.random.nextInt(cities);
+    int dest = (origin + 1 + session.random.nextInt(cities - 1)) % cities;
+    return query.search(FlightDataGenerator.cityName(origin), FlightDataGenerator.cityName(dest),
+                        false, session.nextDay(), 10);
+  }
+}
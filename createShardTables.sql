@@ -0,0 +1,18 @@
+-- Tables of a shard database, when users are sharded across databases (flightapp.shards > 1).
+-- A shard holds its users and their reservations; the Flights table (and the reservation
+-- ledger) stay in the primary database, so a shard has no foreign keys to Flights.
+
+CREATE TABLE Users_sknguyen (
+    username VARCHAR(20) PRIMARY KEY,
+    salted_hashed_password VARBINARY(144) NOT NULL,
+    balance INT NOT NULL
+);
+
+CREATE TABLE Reservations_sknguyen (
+    reservation_id INT PRIMARY KEY,
+    res_username VARCHAR(20) REFERENCES Users_sknguyen,
+    is_paid INT NOT NULL,
+    total_price INT NOT NULL,
+    first_flight_id INT NOT NULL,
+    second_flight_id INT
+);
\ No newline at end of file
@@ -49,4 +49,43 @@ CREATE TABLE Reservations_sknguyen (
     total_price INT NOT NULL,
     first_flight_id INT REFERENCES Flights NOT NULL,
     second_flight_id INT REFERENCES Flights
-);
\ No newline at end of file
+);
+
+-- Only used when users are sharded across databases (flightapp.shards > 1): every shard's
+-- reservations, which reservation IDs are allocated from and capacity is checked against.  An
+-- entry stays pending (confirmed = 0) until its reservation is on the shard.
+CREATE TABLE ReservationLedger_sknguyen (
+    reservation_id INT PRIMARY KEY,
+    res_username VARCHAR(20) NOT NULL,
+    first_flight_id INT REFERENCES Flights NOT NULL,
+    second_flight_id INT REFERENCES Flights,
+    confirmed INT NOT NULL DEFAULT 0,
+    reserved_at DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME()
+);
+
+-- Search reads the non-canceled flights from this copy of their search columns (see
+-- RouteTable.java), since we can't add indexes to Flights.  Rebuild it whenever Flights changes
+-- (FlightService --rebuild-routes); FlightService --verify-routes checks that it's up to date.
+CREATE TABLE Routes_sknguyen (
+    fid INT PRIMARY KEY NONCLUSTERED,
+    day_of_month INT NOT NULL,
+    carrier_id VARCHAR(7),
+    flight_num INT,
+    origin_city VARCHAR(34) NOT NULL,
+    dest_city VARCHAR(34) NOT NULL,
+    actual_time INT,
+    capacity INT,
+    price INT
+);
+
+CREATE CLUSTERED INDEX Routes_sknguyen_departures
+    ON Routes_sknguyen (day_of_month, origin_city, actual_time);
+
+CREATE INDEX Routes_sknguyen_arrivals
+    ON Routes_sknguyen (day_of_month, dest_city) INCLUDE (origin_city, actual_time);
+
+INSERT INTO Routes_sknguyen WITH (TABLOCK)
+    SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time,
+           capacity, price
+    FROM Flights
+    WHERE canceled = 0;
\ No newline at end of file
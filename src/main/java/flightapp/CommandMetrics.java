@@ -0,0 +1,155 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide metrics of one kind of command: a latency histogram, and the number of database
+ * round-trips (statements executed, commits and rollbacks), rows read and transaction retries
+ * the commands made.  Everything is recorded without locking, so sessions don't contend on it.
+ *
+ * Each kind of command's metrics are registered with the platform MBean server as
+ * "flightapp:type=CommandMetrics,command=[name]", and are listed by the "stats" command.
+ */
+public class CommandMetrics implements CommandMetricsMBean {
+  /**
+   * The kinds of command that are measured
+   */
+  public enum Command {
+    LOGIN("login"), CREATE("create"), IMPORT_USERS("import"), SEARCH("search"), BOOK("book"),
+    PAY("pay"), RESERVATIONS("reservations");
+
+    private final String name;
+
+    Command(String name) {
+      this.name = name;
+    }
+
+    /**
+     * The command's name, as typed
+     */
+    public String getName() {
+      return name;
+    }
+  }
+
+  private static final CommandMetrics[] ALL = new CommandMetrics[Command.values().length];
+
+  static {
+    for (Command command : Command.values()) {
+      CommandMetrics metrics = new CommandMetrics(command);
+      ALL[command.ordinal()] = metrics;
+      try {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(
+            metrics, new ObjectName("flightapp:type=CommandMetrics,command=" + command.name));
+      } catch (JMException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private final Command command;
+  private final LatencyHistogram latencies = new LatencyHistogram();
+  private final LongAdder roundTrips = new LongAdder();
+  private final LongAdder rowsRead = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+
+  private CommandMetrics(Command command) {
+    this.command = command;
+  }
+
+  /**
+   * Get the metrics of a kind of command
+   */
+  public static CommandMetrics get(Command command) {
+    return ALL[command.ordinal()];
+  }
+
+  /**
+   * Formats every kind of command's metrics, one line each, for the "stats" command
+   */
+  public static String report() {
+    StringBuilder sb = new StringBuilder();
+    for (CommandMetrics metrics : ALL) {
+      sb.append(String.format(
+          "%s: count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms"
+          + " round_trips=%d rows_read=%d retries=%d\n",
+          metrics.command.name, metrics.getCount(), metrics.getMeanMillis(),
+          metrics.getP50Millis(), metrics.getP99Millis(), metrics.getP999Millis(),
+          metrics.getMaxMillis(), metrics.getRoundTrips(), metrics.getRowsRead(),
+          metrics.getRetries()));
+    }
+    return sb.toString();
+  }
+
+  void recordLatency(long nanos) {
+    latencies.record(nanos);
+  }
+
+  void addRoundTrip() {
+    roundTrips.increment();
+  }
+
+  void addRowRead() {
+    rowsRead.increment();
+  }
+
+  void addRetry() {
+    retries.increment();
+  }
+
+  @Override
+  public long getCount() {
+    return latencies.getCount();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    return latencies.getMeanMicros() / 1000.0;
+  }
+
+  @Override
+  public double getP50Millis() {
+    return latencies.getPercentileMicros(0.5) / 1000.0;
+  }
+
+  @Override
+  public double getP99Millis() {
+    return latencies.getPercentileMicros(0.99) / 1000.0;
+  }
+
+  @Override
+  public double getP999Millis() {
+    return latencies.getPercentileMicros(0.999) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMillis() {
+    return latencies.getMaxMicros() / 1000.0;
+  }
+
+  @Override
+  public long getRoundTrips() {
+    return roundTrips.sum();
+  }
+
+  @Override
+  public long getRowsRead() {
+    return rowsRead.sum();
+  }
+
+  @Override
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Override
+  public void reset() {
+    latencies.reset();
+    roundTrips.reset();
+    rowsRead.reset();
+    retries.reset();
+  }
+}
@@ -0,0 +1,26 @@
+package flightapp;
+
+/**
+ * JMX view of the metrics of one kind of command; see CommandMetrics
+ */
+public interface CommandMetricsMBean {
+  long getCount();
+
+  double getMeanMillis();
+
+  double getP50Millis();
+
+  double getP99Millis();
+
+  double getP999Millis();
+
+  double getMaxMillis();
+
+  long getRoundTrips();
+
+  long getRowsRead();
+
+  long getRetries();
+
+  void reset();
+}
@@ -0,0 +1,297 @@
+package flightapp;
+
+import java.util.Arrays;
+
+/**
+ * Parses REPL command lines into typed commands.
+ *
+ * Tokens are either "quoted strings" (without the quotes) or runs of non-whitespace characters,
+ * exactly as FlightService has always split commands.  The scanner records where each token is
+ * instead of copying it out, and numbers are parsed straight from the command line, so the only
+ * objects a parse allocates are the string arguments the command actually takes.  A parser (and
+ * the Command it fills in) is reused for every command, so it must not be shared between
+ * threads.
+ */
+class CommandParser {
+  /**
+   * The kinds of command
+   */
+  enum Type {
+    EMPTY, LOGIN, CREATE, IMPORT_USERS, SEARCH, BOOK, PAY, RESERVATIONS, RESERVATIONS_PAGE, STATS,
+    QUIT, UNKNOWN
+  }
+
+  /**
+   * Why a command could not be parsed
+   */
+  enum Error {
+    NONE,
+    // wrong number (or kind) of arguments
+    USAGE,
+    // an argument that should be an integer isn't one
+    BAD_INTEGER
+  }
+
+  /**
+   * A parsed command.  Which fields are set depends on the type.
+   */
+  static class Command {
+    Type type;
+    Error error;
+    // the response for a command that could not be parsed (or is unknown)
+    String errorMessage;
+
+    String username;
+    String password;
+    String path;
+    String originCity;
+    String destinationCity;
+    boolean directFlight;
+    int dayOfMonth;
+    int numberOfItineraries;
+    int amount;
+    int itineraryId;
+    int reservationId;
+    int afterReservationId;
+    int pageSize;
+
+    private void reset() {
+      type = null;
+      error = Error.NONE;
+      errorMessage = null;
+      username = password = path = originCity = destinationCity = null;
+    }
+  }
+
+  private final Command command = new Command();
+
+  private String line;
+  private int numTokens;
+  private int[] tokenStarts = new int[8];
+  private int[] tokenEnds = new int[8];
+
+  // Set by parseInt() when the token isn't an integer
+  private boolean badInteger;
+
+  /**
+   * Parses the command line; the returned Command is overwritten by the next call.
+   */
+  Command parse(String commandLine) {
+    tokenize(commandLine);
+    badInteger = false;
+    Command cmd = command;
+    cmd.reset();
+
+    if (numTokens == 0) {
+      cmd.type = Type.EMPTY;
+    } else if (tokenIs(0, "login")) {
+      cmd.type = Type.LOGIN;
+      if (expectTokens(3, "Error: Please provide a username and password")) {
+        cmd.username = token(1);
+        cmd.password = token(2);
+      }
+    } else if (tokenIs(0, "create")) {
+      cmd.type = Type.CREATE;
+      if (expectTokens(4, "Error: Please provide a username, password, and initial amount in "
+                          + "the account")) {
+        cmd.amount = parseInt(3);
+        if (checkIntegers()) {
+          cmd.username = token(1);
+          cmd.password = token(2);
+        }
+      }
+    } else if (tokenIs(0, "import")) {
+      cmd.type = Type.IMPORT_USERS;
+      if (numTokens == 3 && tokenIs(1, "users")) {
+        cmd.path = token(2);
+      } else {
+        usage("Error: Please provide the CSV file to import users from");
+      }
+    } else if (tokenIs(0, "search")) {
+      cmd.type = Type.SEARCH;
+      if (expectTokens(6, "Error: Please provide all search parameters <origin_city> "
+                          + "<destination_city> <direct> <date> <nb itineraries>")) {
+        cmd.dayOfMonth = parseInt(4);
+        cmd.numberOfItineraries = parseInt(5);
+        if (checkIntegers()) {
+          cmd.originCity = token(1);
+          cmd.destinationCity = token(2);
+          cmd.directFlight = tokenIs(3, "1");
+        }
+      }
+    } else if (tokenIs(0, "book")) {
+      cmd.type = Type.BOOK;
+      if (expectTokens(2, "Error: Please provide an itinerary_id")) {
+        cmd.itineraryId = parseInt(1);
+        checkIntegers();
+      }
+    } else if (tokenIs(0, "reservations")) {
+      // arguments other than a page's two integers are ignored, as they were before paging
+      cmd.type = Type.RESERVATIONS;
+      if (numTokens == 3) {
+        cmd.afterReservationId = parseInt(1);
+        cmd.pageSize = parseInt(2);
+        if (!badInteger) {
+          cmd.type = Type.RESERVATIONS_PAGE;
+        }
+      }
+    } else if (tokenIs(0, "pay")) {
+      cmd.type = Type.PAY;
+      if (expectTokens(2, "Error: Please provide a reservation_id")) {
+        cmd.reservationId = parseInt(1);
+        checkIntegers();
+      }
+    } else if (tokenIs(0, "stats")) {
+      cmd.type = Type.STATS;
+    } else if (tokenIs(0, "quit")) {
+      cmd.type = Type.QUIT;
+    } else {
+      cmd.type = Type.UNKNOWN;
+      cmd.errorMessage = "Error: unrecognized command '" + token(0) + "'";
+    }
+    return cmd;
+  }
+
+  /**
+   * Number of tokens in the last command parsed
+   */
+  int tokenCount() {
+    return numTokens;
+  }
+
+  /**
+   * The i'th token of the last command parsed
+   */
+  String token(int i) {
+    return line.substring(tokenStarts[i], tokenEnds[i]);
+  }
+
+  private boolean expectTokens(int n, String usage) {
+    if (numTokens != n) {
+      usage(usage);
+      return false;
+    }
+    return true;
+  }
+
+  private void usage(String message) {
+    command.error = Error.USAGE;
+    command.errorMessage = message;
+  }
+
+  /**
+   * Reports any parseInt() failure since the last check as a BAD_INTEGER error
+   */
+  private boolean checkIntegers() {
+    if (badInteger) {
+      command.error = Error.BAD_INTEGER;
+      command.errorMessage = "Failed to parse integer";
+      return false;
+    }
+    return true;
+  }
+
+  private boolean tokenIs(int i, String s) {
+    int len = tokenEnds[i] - tokenStarts[i];
+    return len == s.length() && line.regionMatches(tokenStarts[i], s, 0, len);
+  }
+
+  /**
+   * Splits the (trimmed) line into tokens, like the regex "([^"]*)"|(\S+): a quote starts a
+   * quoted token if there is a closing quote after it; otherwise it is an ordinary character.
+   */
+  private void tokenize(String commandLine) {
+    line = commandLine;
+    numTokens = 0;
+
+    int end = line.length();
+    int pos = 0;
+    // String.trim() bounds
+    while (pos < end && line.charAt(pos) <= ' ') {
+      pos++;
+    }
+    while (end > pos && line.charAt(end - 1) <= ' ') {
+      end--;
+    }
+
+    while (pos < end) {
+      char c = line.charAt(pos);
+      if (isWhitespace(c)) {
+        pos++;
+        continue;
+      }
+
+      if (c == '"') {
+        int close = line.indexOf('"', pos + 1);
+        if (close >= 0 && close < end) {
+          addToken(pos + 1, close);
+          pos = close + 1;
+          continue;
+        }
+      }
+
+      int start = pos;
+      while (pos < end && !isWhitespace(line.charAt(pos))) {
+        pos++;
+      }
+      addToken(start, pos);
+    }
+  }
+
+  private void addToken(int start, int end) {
+    if (numTokens == tokenStarts.length) {
+      tokenStarts = Arrays.copyOf(tokenStarts, numTokens * 2);
+      tokenEnds = Arrays.copyOf(tokenEnds, numTokens * 2);
+    }
+    tokenStarts[numTokens] = start;
+    tokenEnds[numTokens] = end;
+    numTokens++;
+  }
+
+  // The regex \s
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  /**
+   * Parses the i'th token like Integer.parseInt(), without allocating.  On failure, returns 0
+   * and sets badInteger.
+   */
+  private int parseInt(int i) {
+    int pos = tokenStarts[i];
+    int end = tokenEnds[i];
+    if (pos == end) {
+      badInteger = true;
+      return 0;
+    }
+
+    boolean negative = false;
+    char first = line.charAt(pos);
+    if (first == '-' || first == '+') {
+      negative = first == '-';
+      pos++;
+      if (pos == end) {
+        badInteger = true;
+        return 0;
+      }
+    }
+
+    // accumulate negatively, so that Integer.MIN_VALUE fits
+    int limit = negative ? Integer.MIN_VALUE : -Integer.MAX_VALUE;
+    int result = 0;
+    while (pos < end) {
+      int digit = Character.digit(line.charAt(pos++), 10);
+      if (digit < 0 || result < limit / 10) {
+        badInteger = true;
+        return 0;
+      }
+      result *= 10;
+      if (result < limit + digit) {
+        badInteger = true;
+        return 0;
+      }
+      result -= digit;
+    }
+    return negative ? result : -result;
+  }
+}
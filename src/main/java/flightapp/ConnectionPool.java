@@ -0,0 +1,334 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of database connections.
+ *
+ * At most maxSize connections are handed out at a time; acquire() waits (up to the acquire
+ * timeout) for one to be returned.  Connections are opened on demand and kept once returned.
+ * One that has been idle for a while is validated before being handed out again.  Each pooled
+ * connection caches the statements prepared on it, so a SQL string is only prepared once per
+ * connection, and tracks its transaction state (see TransactionTracker).
+ */
+public class ConnectionPool {
+  /**
+   * Opens a new physical connection
+   */
+  @FunctionalInterface
+  public interface ConnectionFactory {
+    Connection open() throws SQLException;
+  }
+
+  // Seconds to wait for Connection.isValid() when validating an idle connection
+  private static final int VALIDATION_TIMEOUT_SECS = 5;
+
+  private final ConnectionFactory factory;
+  private final int maxSize;
+  private final long acquireTimeoutMillis;
+  private final long validateAfterIdleMillis;
+
+  private final Semaphore permits;
+  private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+  private volatile boolean closed = false;
+
+  // Metrics
+  private final AtomicInteger inUse = new AtomicInteger();
+  private final AtomicInteger opened = new AtomicInteger();
+  private final LongAdder acquisitions = new LongAdder();
+  private final LongAdder timeouts = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /**
+   * @param factory                 opens a new connection when no idle one is available
+   * @param maxSize                 maximum number of connections handed out at once
+   * @param acquireTimeoutMillis    how long acquire() waits for a connection before failing
+   * @param validateAfterIdleMillis connections idle for longer than this are validated before
+   *                                being handed out again
+   */
+  public ConnectionPool(ConnectionFactory factory, int maxSize, long acquireTimeoutMillis,
+                        long validateAfterIdleMillis) {
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.acquireTimeoutMillis = acquireTimeoutMillis;
+    this.validateAfterIdleMillis = validateAfterIdleMillis;
+    this.permits = new Semaphore(maxSize, true);
+  }
+
+  /**
+   * Borrows a connection, which must be returned with {@link PooledConnection#close()}.
+   *
+   * @throws SQLTimeoutException if no connection became available within the acquire timeout
+   * @throws SQLException        if a new connection could not be opened
+   */
+  public PooledConnection acquire() throws SQLException {
+    if (closed) {
+      throw new SQLException("Connection pool is closed");
+    }
+
+    long start = System.nanoTime();
+    try {
+      if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        timeouts.increment();
+        throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis
+                                      + " ms waiting for a database connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection", e);
+    }
+
+    try {
+      PooledConnection pooled = takeIdle();
+      if (pooled == null) {
+        pooled = new PooledConnection(factory.open());
+        opened.incrementAndGet();
+      }
+      recordWait(System.nanoTime() - start);
+      inUse.incrementAndGet();
+      return pooled;
+    } catch (SQLException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Closes every idle connection; connections still in use are closed when they are returned.
+   */
+  public void close() {
+    closed = true;
+    PooledConnection pooled;
+    while ((pooled = idle.pollFirst()) != null) {
+      pooled.discard();
+    }
+  }
+
+  /**
+   * Maximum number of connections handed out at once
+   */
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Number of connections currently handed out
+   */
+  public int getInUse() {
+    return inUse.get();
+  }
+
+  /**
+   * Number of open connections waiting to be handed out
+   */
+  public int getIdle() {
+    return idle.size();
+  }
+
+  /**
+   * Fraction of the pool currently handed out
+   */
+  public double getUtilization() {
+    return (double) inUse.get() / maxSize;
+  }
+
+  /**
+   * Number of physical connections opened so far
+   */
+  public int getOpenedCount() {
+    return opened.get();
+  }
+
+  public long getAcquireCount() {
+    return acquisitions.sum();
+  }
+
+  public long getTimeoutCount() {
+    return timeouts.sum();
+  }
+
+  /**
+   * Average time acquire() waited for a connection, in milliseconds
+   */
+  public double getAverageWaitMillis() {
+    long n = acquisitions.sum();
+    return n == 0 ? 0.0 : totalWaitNanos.sum() / 1e6 / n;
+  }
+
+  /**
+   * Longest time acquire() waited for a connection, in milliseconds
+   */
+  public double getMaxWaitMillis() {
+    return maxWaitNanos.get() / 1e6;
+  }
+
+  /**
+   * Formats the pool's utilization and wait times as one line, for the "stats" command
+   *
+   * @param name what to call the pool
+   */
+  String report(String name) {
+    return String.format("%s: in_use=%d/%d idle=%d utilization=%.2f opened=%d acquired=%d"
+                         + " timeouts=%d wait_avg=%.3fms wait_max=%.3fms\n",
+                         name, getInUse(), maxSize, getIdle(), getUtilization(), getOpenedCount(),
+                         getAcquireCount(), getTimeoutCount(), getAverageWaitMillis(),
+                         getMaxWaitMillis());
+  }
+
+  private PooledConnection takeIdle() {
+    PooledConnection pooled;
+    // most recently used first, since its statement cache is the warmest
+    while ((pooled = idle.pollFirst()) != null) {
+      if (pooled.isUsable()) {
+        pooled.released = false;
+        return pooled;
+      }
+      pooled.discard();
+    }
+    return null;
+  }
+
+  private void release(PooledConnection pooled) {
+    inUse.decrementAndGet();
+    try {
+      if (closed || !pooled.reset()) {
+        pooled.discard();
+      } else {
+        idle.offerFirst(pooled);
+      }
+    } finally {
+      permits.release();
+    }
+  }
+
+  private void recordWait(long nanos) {
+    acquisitions.increment();
+    totalWaitNanos.add(nanos);
+    maxWaitNanos.accumulateAndGet(nanos, Math::max);
+  }
+
+  /**
+   * A connection borrowed from the pool.  Closing it returns it to the pool.
+   */
+  public class PooledConnection implements AutoCloseable {
+    private final Connection conn;
+    private final TransactionTracker tracker;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private long lastReleasedNanos = System.nanoTime();
+    private boolean released = false;
+
+    private PooledConnection(Connection conn) throws SQLException {
+      this.tracker = new TransactionTracker(StatementProfiler.wrap(conn));
+      this.conn = tracker.getConnection();
+    }
+
+    /**
+     * The underlying connection.  It must not be closed, and must not be used once this
+     * PooledConnection has been returned to the pool.
+     */
+    public Connection getConnection() {
+      return conn;
+    }
+
+    /**
+     * Counts this connection's round-trips and rows read in the metrics (or nowhere, if null)
+     * until it is returned to the pool
+     */
+    public void setMetrics(CommandMetrics metrics) {
+      tracker.setMetrics(metrics);
+    }
+
+    /**
+     * Tags this connection's transaction events with the command's (or nothing, if null) until it
+     * is returned to the pool
+     */
+    void setCommandEvent(FlightEvents.CommandEvent commandEvent) {
+      tracker.setCommandEvent(commandEvent);
+    }
+
+    /**
+     * Whether the borrower has left a transaction open (without asking the database)
+     */
+    public boolean inTransaction() {
+      return tracker.inTransaction();
+    }
+
+    /**
+     * Returns a prepared statement for the SQL, preparing it only the first time it is requested
+     * on this connection.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+      PreparedStatement stmt = statements.get(sql);
+      if (stmt == null) {
+        stmt = conn.prepareStatement(sql);
+        statements.put(sql, stmt);
+      }
+      return stmt;
+    }
+
+    /**
+     * Returns this connection to the pool
+     */
+    @Override
+    public void close() {
+      if (!released) {
+        released = true;
+        tracker.setMetrics(null);
+        tracker.setCommandEvent(null);
+        release(this);
+      }
+    }
+
+    private boolean isUsable() {
+      long idleMillis = (System.nanoTime() - lastReleasedNanos) / 1000000;
+      try {
+        if (idleMillis < validateAfterIdleMillis) {
+          return !conn.isClosed();
+        }
+        return conn.isValid(VALIDATION_TIMEOUT_SECS);
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    /**
+     * Undoes whatever the borrower left behind (an open transaction); returns false if the
+     * connection is no longer usable.
+     */
+    private boolean reset() {
+      try {
+        if (conn.isClosed()) {
+          return false;
+        }
+        if (!tracker.getAutoCommit()) {
+          conn.rollback();
+          conn.setAutoCommit(true);
+        }
+        lastReleasedNanos = System.nanoTime();
+        return true;
+      } catch (SQLException e) {
+        return false;
+      }
+    }
+
+    private void discard() {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        // nothing more to do with a broken connection
+      }
+    }
+  }
+}
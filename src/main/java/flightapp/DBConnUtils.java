@@ -11,6 +11,22 @@ import java.util.Properties;
  * A collection of utility methods to help with parsing dbconn.properties.
  */
 public class DBConnUtils {
+  // dbconn.properties, read the first time it's needed
+  private static Properties configProps;
+
+  // SQLServerConnection.TRANSACTION_SNAPSHOT (the database must allow snapshot isolation)
+  private static final int TRANSACTION_SNAPSHOT = 0x1000;
+
+  // Process-wide connection pool, created the first time it's needed
+  private static ConnectionPool pool;
+
+  // Process-wide pool for read-only commands, created the first time it's needed
+  private static ConnectionPool readPool;
+
+  // Process-wide pools for each shard, created the first time they're needed (only when sharded)
+  private static ConnectionPool[] shardPools;
+  private static ConnectionPool[] shardReadPools;
+
   /**
    * Open and return a connection using dbconn.properties file
    *
@@ -18,12 +34,66 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static Connection openConnection() throws SQLException, IOException {
+    // By default, set the transaction isolation level to serializable
+    return openConnection(getConfig().getProperty("flightapp.server_url"),
+                          getConfig().getProperty("flightapp.database_name"),
+                          Connection.TRANSACTION_SERIALIZABLE);
+  }
+
+  /**
+   * Open and return a connection for read-only commands, using the optional flightapp.read.*
+   * properties:
+   *   - flightapp.read.server_url: server to read from, eg a replica (default: the primary
+   *     flightapp.server_url)
+   *   - flightapp.read.isolation: read_committed (the default), snapshot or serializable
+   *
+   * @throws SQLException
+   * @throws IOException
+   */
+  public static Connection openReadConnection() throws SQLException, IOException {
+    String serverURL = getProperty("flightapp.read.server_url",
+                                   getConfig().getProperty("flightapp.server_url"));
+    return openConnection(serverURL, getConfig().getProperty("flightapp.database_name"),
+                          readIsolationLevel());
+  }
+
+  /**
+   * Open and return a connection to one of the flightapp.shards shards, at the given isolation
+   * level.  Shard i is flightapp.shard.[i].database_name on flightapp.shard.[i].server_url; each
+   * defaults to the primary's, so shards can be stand-in databases on the same server.
+   *
+   * @throws SQLException
+   * @throws IOException
+   */
+  public static Connection openShardConnection(int shard, int isolationLevel)
+      throws SQLException, IOException {
+    Properties configProps = getConfig();
+    String serverURL = getProperty("flightapp.shard." + shard + ".server_url",
+                                   configProps.getProperty("flightapp.server_url"));
+    String dbName = getProperty("flightapp.shard." + shard + ".database_name",
+                                configProps.getProperty("flightapp.database_name"));
+    return openConnection(serverURL, dbName, isolationLevel);
+  }
+
+  private static int readIsolationLevel() throws SQLException, IOException {
+    String isolation = getProperty("flightapp.read.isolation", "read_committed");
+    switch (isolation.toLowerCase()) {
+      case "read_committed":
+        return Connection.TRANSACTION_READ_COMMITTED;
+      case "snapshot":
+        return TRANSACTION_SNAPSHOT;
+      case "serializable":
+        return Connection.TRANSACTION_SERIALIZABLE;
+      default:
+        throw new SQLException("Unknown flightapp.read.isolation: " + isolation);
+    }
+  }
+
+  private static Connection openConnection(String serverURL, String dbName, int isolationLevel)
+      throws SQLException, IOException {
     // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
+    Properties configProps = getConfig();
 
-    String serverURL = configProps.getProperty("flightapp.server_url");
-    String dbName = configProps.getProperty("flightapp.database_name");
     String adminName = configProps.getProperty("flightapp.username");
     String password = configProps.getProperty("flightapp.password");
 
@@ -35,12 +105,164 @@ public class DBConnUtils {
     // By default, automatically commit after each statement
     conn.setAutoCommit(true);
 
-    // By default, set the transaction isolation level to serializable
-    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    conn.setTransactionIsolation(isolationLevel);
 
     return conn;
   }
 
+  /**
+   * Get the process-wide connection pool, sized by the optional flightapp.pool.* properties:
+   *   - flightapp.pool.max_size: maximum number of connections (default 10)
+   *   - flightapp.pool.acquire_timeout_ms: how long to wait for a free connection (default 30000)
+   *   - flightapp.pool.validate_idle_ms: idle time after which a connection is validated before
+   *     being reused (default 30000)
+   *
+   * @throws IOException
+   */
+  public static synchronized ConnectionPool getPool() throws IOException {
+    if (pool == null) {
+      pool = createPool(DBConnUtils::openConnection,
+                        Integer.parseInt(getProperty("flightapp.pool.max_size", "10")));
+    }
+    return pool;
+  }
+
+  /**
+   * Get the process-wide pool of connections for read-only commands (see openReadConnection),
+   * with at most flightapp.read.pool.max_size connections (default: flightapp.pool.max_size) and
+   * otherwise configured like getPool().
+   *
+   * @throws IOException
+   */
+  public static synchronized ConnectionPool getReadPool() throws IOException {
+    if (readPool == null) {
+      String maxSize = getProperty("flightapp.pool.max_size", "10");
+      readPool = createPool(DBConnUtils::openReadConnection,
+                            Integer.parseInt(getProperty("flightapp.read.pool.max_size", maxSize)));
+    }
+    return readPool;
+  }
+
+  /**
+   * Get the number of shards that users (and their reservations) are split across, from the
+   * optional flightapp.shards property.  The default, 1, keeps everything in the primary database.
+   *
+   * @throws IOException
+   */
+  public static int getShardCount() throws IOException {
+    return Integer.parseInt(getProperty("flightapp.shards", "1"));
+  }
+
+  /**
+   * Get the shard that holds a user's data: a hash of the lowercased username, modulo the number
+   * of shards
+   */
+  public static int shardFor(String username, int numShards) {
+    return Math.floorMod(username.toLowerCase().hashCode(), numShards);
+  }
+
+  /**
+   * Get the process-wide connection pools of the shards (serializable, like getPool()), indexed
+   * by shard, or null if there is only one shard
+   *
+   * @throws IOException
+   */
+  public static synchronized ConnectionPool[] getShardPools() throws IOException {
+    if (shardPools == null && getShardCount() > 1) {
+      shardPools = createShardPools(false);
+    }
+    return shardPools;
+  }
+
+  /**
+   * Get the process-wide pools of the shards for read-only commands (at flightapp.read.isolation,
+   * like getReadPool()), indexed by shard, or null if there is only one shard
+   *
+   * @throws IOException
+   */
+  public static synchronized ConnectionPool[] getShardReadPools() throws IOException {
+    if (shardReadPools == null && getShardCount() > 1) {
+      shardReadPools = createShardPools(true);
+    }
+    return shardReadPools;
+  }
+
+  private static ConnectionPool[] createShardPools(boolean forReads) throws IOException {
+    int maxSize = Integer.parseInt(getProperty("flightapp.pool.max_size", "10"));
+    ConnectionPool[] pools = new ConnectionPool[getShardCount()];
+    for (int i = 0; i < pools.length; i++) {
+      int shard = i;
+      pools[i] = createPool(() -> openShardConnection(shard, forReads
+                                                      ? readIsolationLevel()
+                                                      : Connection.TRANSACTION_SERIALIZABLE),
+                            maxSize);
+    }
+    return pools;
+  }
+
+  @FunctionalInterface
+  private interface Opener {
+    Connection open() throws SQLException, IOException;
+  }
+
+  private static ConnectionPool createPool(Opener opener, int maxSize) throws IOException {
+    return new ConnectionPool(
+      () -> {
+        try {
+          return opener.open();
+        } catch (IOException e) {
+          throw new SQLException("Could not read dbconn.properties", e);
+        }
+      },
+      maxSize,
+      Long.parseLong(getProperty("flightapp.pool.acquire_timeout_ms", "30000")),
+      Long.parseLong(getProperty("flightapp.pool.validate_idle_ms", "30000")));
+  }
+
+  /**
+   * Close the process-wide connection pools (including the shards'), if they were ever created
+   */
+  public static synchronized void closePool() {
+    if (pool != null) {
+      pool.close();
+      pool = null;
+    }
+    if (readPool != null) {
+      readPool.close();
+      readPool = null;
+    }
+    for (ConnectionPool[] pools : new ConnectionPool[][] { shardPools, shardReadPools }) {
+      if (pools != null) {
+        for (ConnectionPool p : pools) {
+          p.close();
+        }
+      }
+    }
+    shardPools = null;
+    shardReadPools = null;
+  }
+
+  /**
+   * Formats the metrics of every process-wide pool created so far, one line each, for the
+   * "stats" command
+   */
+  static synchronized String poolReport() {
+    StringBuilder sb = new StringBuilder();
+    if (pool != null) {
+      sb.append(pool.report("pool"));
+    }
+    if (readPool != null) {
+      sb.append(readPool.report("read_pool"));
+    }
+    for (int i = 0; shardPools != null && i < shardPools.length; i++) {
+      sb.append(shardPools[i].report("shard_" + i + "_pool"));
+    }
+    for (int i = 0; shardReadPools != null && i < shardReadPools.length; i++) {
+      sb.append(shardReadPools[i].report("shard_" + i + "_read_pool"));
+    }
+    return sb.toString();
+  }
+
   /**
    * Get the table suffix
    *
@@ -48,21 +270,43 @@ public class DBConnUtils {
    * @throws IOException
    */
   public static String getTableSuffix() throws SQLException, IOException {
-    // Connect to the database with the provided connection configuration
-    Properties configProps = new Properties();
-    configProps.load(new FileInputStream("dbconn.properties"));
-
     final String PROPERTY_NAME = "flightapp.tablename_suffix";
 
-    String suffix = configProps.getProperty(PROPERTY_NAME);
+    String suffix = getProperty(PROPERTY_NAME, null);
     if (suffix == null || suffix.isEmpty()) {
-      suffix = System.getProperty(PROPERTY_NAME);
-      if (suffix != null && !suffix.isEmpty()) {
-        return suffix;
-      }
       return null;
-    } else {
-      return suffix;
     }
+    return suffix;
+  }
+
+  /**
+   * Get a property from dbconn.properties, or else from the Java system properties
+   *
+   * @returns defaultValue if the property is specified in neither, or is empty
+   * @throws IOException
+   */
+  public static String getProperty(String name, String defaultValue) throws IOException {
+    String value = getConfig().getProperty(name);
+    if (value == null || value.isEmpty()) {
+      value = System.getProperty(name);
+    }
+    if (value == null || value.isEmpty()) {
+      return defaultValue;
+    }
+    return value;
+  }
+
+  /**
+   * Read dbconn.properties, the first time only
+   */
+  private static synchronized Properties getConfig() throws IOException {
+    if (configProps == null) {
+      Properties props = new Properties();
+      try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+        props.load(in);
+      }
+      configProps = props;
+    }
+    return configProps;
   }
 }
@@ -0,0 +1,103 @@
+package flightapp;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Random;
+
+/**
+ * Seeded states of the users and reservations, for tests and benchmarks to start from.
+ *
+ * A fixture is built once, through the commands, and saved as a snapshot of the same name (see
+ * QueryAbstract.saveSnapshot); later it is restored from the snapshot, without hashing passwords
+ * or booking again.  Against a database the snapshot is a set of tables, so it outlives the
+ * process: only the first run of a benchmark pays for building it.
+ */
+class Fixtures {
+  static final String PASSWORD = "pw";
+  static final int BALANCE = 1000000;
+
+  // Cities of both the course dataset and the benchmarks' (BenchmarkData.CITIES)
+  private static final String[] CITIES = {
+    "Seattle WA", "Boston MA", "New York NY", "Chicago IL", "Denver CO", "Atlanta GA",
+    "Dallas/Fort Worth TX", "San Francisco CA", "Los Angeles CA", "Miami FL"
+  };
+
+  private Fixtures() { }
+
+  /**
+   * The name of the i-th user of a fixture, whose password is PASSWORD
+   */
+  static String username(int i) {
+    return "fixture" + i;
+  }
+
+  /**
+   * Restores the fixture of the given number of users, each with a balance of BALANCE and (up
+   * to) the given number of unpaid reservations, on different days; builds it first if there is
+   * no snapshot of it.
+   *
+   * @param sessions creates the sessions that build the fixture and restore it
+   * @return the fixture's (and snapshot's) name
+   */
+  static String restoreUsers(FlightServer.SessionFactory sessions, int users,
+                             int reservationsPerUser) throws IOException, SQLException {
+    if (reservationsPerUser > 31) {
+      throw new IllegalArgumentException("A user can only book one reservation per day");
+    }
+    String name = "users" + users + "_reservations" + reservationsPerUser;
+    QueryAbstract query = sessions.create();
+    try {
+      if (!query.restoreSnapshot(name)) {
+        System.err.println("Building fixture " + name);
+        query.clearTablesWrap();
+        createUsers(query, users);
+        bookReservations(sessions, users, reservationsPerUser);
+        query.saveSnapshot(name);
+      }
+    } finally {
+      query.closeConnection();
+    }
+    return name;
+  }
+
+  private static void createUsers(QueryAbstract query, int users) throws IOException {
+    Path file = Files.createTempFile("fixture-users", ".csv");
+    try {
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+        for (int i = 0; i < users; i++) {
+          out.println(username(i) + "," + PASSWORD + "," + BALANCE);
+        }
+      }
+      System.err.print(query.importUsers(file.toString()));
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  // Each user books a random itinerary between random cities on each of their days; bookings of
+  // full flights just fail
+  private static void bookReservations(FlightServer.SessionFactory sessions, int users,
+                                       int reservationsPerUser) throws IOException, SQLException {
+    if (reservationsPerUser == 0) {
+      return;
+    }
+    Random random = new Random(users);
+    for (int i = 0; i < users; i++) {
+      QueryAbstract query = sessions.create();
+      try {
+        query.login(username(i), PASSWORD);
+        for (int r = 0; r < reservationsPerUser; r++) {
+          int origin = random.nextInt(CITIES.length);
+          int dest = (origin + 1 + random.nextInt(CITIES.length - 1)) % CITIES.length;
+          query.search(CITIES[origin], CITIES[dest], false, r + 1, 10);
+          query.book(random.nextInt(10));
+        }
+      } finally {
+        query.closeConnection();
+      }
+    }
+  }
+}
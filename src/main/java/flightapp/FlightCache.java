@@ -0,0 +1,318 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import flightapp.Query.Flight;
+
+/**
+ * A process-wide cache of Flights rows, keyed by fid.
+ *
+ * The Flights table is never modified, so once a row has been read it can be shared (as an
+ * immutable Flight) by every Query session in the process.  The cache is bounded; when it grows
+ * past its maximum size, arbitrary entries are evicted.
+ */
+public class FlightCache {
+  /**
+   * Maximum number of flights kept in the cache
+   */
+  private static final int MAX_SIZE =
+      Integer.getInteger("flightapp.flight_cache.max_size", 100000);
+
+  /**
+   * Number of most-booked flights to preload the first time a session is created (0 = none)
+   */
+  private static final int WARMUP_SIZE = Integer.getInteger("flightapp.flight_cache.warmup", 0);
+
+  /**
+   * Numbers of fids bound into an IN-list: a batch is padded up to the next of these, by repeating
+   * its last fid, so that there are only this many distinct statements to prepare and cache.  The
+   * last is the maximum (SQL Server allows at most 2100 params).
+   */
+  private static final int[] BATCH_SIZES = { 1, 10, 100, 500 };
+  private static final int MAX_BATCH_SIZE = BATCH_SIZES[BATCH_SIZES.length - 1];
+
+  /**
+   * Where getAll() gets its statements from
+   */
+  @FunctionalInterface
+  private interface StatementSource {
+    PreparedStatement prepare(String sql) throws SQLException;
+  }
+
+  private static final String FLIGHT_COLUMNS =
+      "fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, "
+      + "price";
+
+  private static final String GET_MOST_BOOKED_SQL =
+      "SELECT TOP (?) " + FLIGHT_COLUMNS + " " +
+      "FROM Flights AS F, " +
+      "(SELECT fid, COUNT(*) AS num_booked " +
+      " FROM (SELECT first_flight_id AS fid FROM Reservations_sknguyen " +
+      "       UNION ALL " +
+      "       SELECT second_flight_id AS fid FROM Reservations_sknguyen " +
+      "       WHERE second_flight_id IS NOT NULL) AS Legs " +
+      " GROUP BY fid) AS B " +
+      "WHERE F.fid = B.fid " +
+      "ORDER BY B.num_booked DESC";
+
+  // Looks up a batch of flights, for each of BATCH_SIZES
+  private static final String[] GET_FLIGHTS_SQL = new String[BATCH_SIZES.length];
+
+  static {
+    for (int i = 0; i < BATCH_SIZES.length; i++) {
+      StringBuilder sql = new StringBuilder();
+      sql.append("SELECT " + FLIGHT_COLUMNS + " FROM Flights WHERE fid IN (");
+      for (int j = 0; j < BATCH_SIZES[i]; j++) {
+        sql.append(j == 0 ? "?" : ", ?");
+      }
+      sql.append(")");
+      GET_FLIGHTS_SQL[i] = sql.toString();
+    }
+  }
+
+  private static final Map<Integer, Flight> flights = new ConcurrentHashMap<>();
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+  private static final AtomicBoolean warmedUp = new AtomicBoolean(false);
+
+  static {
+    StatementProfiler.registerNames(FlightCache.class);
+    for (int i = 0; i < BATCH_SIZES.length; i++) {
+      StatementProfiler.registerName(GET_FLIGHTS_SQL[i],
+                                     "GET_FLIGHTS_SQL[" + BATCH_SIZES[i] + "]");
+    }
+  }
+
+  private FlightCache() { }
+
+  /**
+   * Returns the cached flight with the given fid, or null if it isn't cached.
+   */
+  public static Flight get(int fid) {
+    Flight flight = flights.get(fid);
+    if (flight != null) {
+      hits.increment();
+    } else {
+      misses.increment();
+    }
+    return flight;
+  }
+
+  /**
+   * Returns the flights with the given fids.  Every fid missing from the cache is fetched from
+   * the database with a single IN-list query (per MAX_BATCH_SIZE fids) and then cached.  The
+   * queries are prepared on the pooled connection, which keeps them for later lookups.
+   *
+   * @throws SQLException if the lookup fails, or if some fid does not exist in Flights
+   */
+  public static Map<Integer, Flight> getAll(ConnectionPool.PooledConnection pooled,
+                                            Collection<Integer> fids) throws SQLException {
+    return getAll(pooled::prepareStatement, fids);
+  }
+
+  /**
+   * Same as {@link #getAll(ConnectionPool.PooledConnection, Collection)}, on a connection that
+   * isn't pooled; the queries are closed again afterwards.
+   */
+  public static Map<Integer, Flight> getAll(Connection conn, Collection<Integer> fids)
+    throws SQLException {
+    List<PreparedStatement> prepared = new ArrayList<>();
+    try {
+      return getAll(sql -> {
+        PreparedStatement stmt = conn.prepareStatement(sql);
+        prepared.add(stmt);
+        return stmt;
+      }, fids);
+    } finally {
+      for (PreparedStatement stmt : prepared) {
+        stmt.close();
+      }
+    }
+  }
+
+  private static Map<Integer, Flight> getAll(StatementSource statements, Collection<Integer> fids)
+    throws SQLException {
+    Map<Integer, Flight> result = new HashMap<>();
+    Set<Integer> missing = new LinkedHashSet<>();
+    for (int fid : fids) {
+      Flight flight = get(fid);
+      if (flight != null) {
+        result.put(fid, flight);
+      } else {
+        missing.add(fid);
+      }
+    }
+
+    List<Integer> batch = new ArrayList<>(Math.min(missing.size(), MAX_BATCH_SIZE));
+    Iterator<Integer> it = missing.iterator();
+    while (it.hasNext()) {
+      batch.add(it.next());
+      if (batch.size() == MAX_BATCH_SIZE || !it.hasNext()) {
+        for (Flight flight : loadBatch(statements, batch)) {
+          result.put(flight.fid, flight);
+        }
+        batch.clear();
+      }
+    }
+
+    if (result.size() != new LinkedHashSet<>(fids).size()) {
+      throw new SQLException("Some flights could not be found: " + fids);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the flight described by the current row of the result set.  Columns are looked up
+   * by name with the given prefix (eg, "F1_" for the first leg of a joined query, or "" for a
+   * plain one).  If the flight is already cached, the shared instance is returned and the rest
+   * of the row is not decoded.
+   */
+  public static Flight fromResults(ResultSet rs, String prefix) throws SQLException {
+    Flight cached = get(rs.getInt(prefix + "fid"));
+    if (cached != null) {
+      return cached;
+    }
+    return put(decode(rs, prefix));
+  }
+
+  /**
+   * Preloads the most-booked flights, if "flightapp.flight_cache.warmup" is set.  Only the first
+   * call in the process does any work.
+   */
+  public static void warmUpIfConfigured(Connection conn) throws SQLException {
+    if (WARMUP_SIZE > 0 && warmedUp.compareAndSet(false, true)) {
+      warmUp(conn, WARMUP_SIZE);
+    }
+  }
+
+  /**
+   * Preloads (at most) the {@code count} flights with the most reservations.
+   *
+   * @return the number of flights loaded
+   */
+  public static int warmUp(Connection conn, int count) throws SQLException {
+    int loaded = 0;
+    try (PreparedStatement stmt = conn.prepareStatement(GET_MOST_BOOKED_SQL)) {
+      stmt.setInt(1, count);
+      try (ResultSet rs = stmt.executeQuery()) {
+        while (rs.next()) {
+          put(decode(rs, ""));
+          loaded++;
+        }
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Number of flights currently cached
+   */
+  public static int size() {
+    return flights.size();
+  }
+
+  public static long hitCount() {
+    return hits.sum();
+  }
+
+  public static long missCount() {
+    return misses.sum();
+  }
+
+  /**
+   * Fraction of lookups that were served from the cache (0 if there haven't been any)
+   */
+  public static double hitRatio() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /**
+   * Formats the cache's size and hit ratio as one line, for the "stats" command
+   */
+  static String report() {
+    return String.format("flight_cache: size=%d hits=%d misses=%d hit_ratio=%.3f\n", size(),
+                         hitCount(), missCount(), hitRatio());
+  }
+
+  /**
+   * Empties the cache and resets its metrics
+   */
+  public static void clear() {
+    flights.clear();
+    hits.reset();
+    misses.reset();
+  }
+
+  private static List<Flight> loadBatch(StatementSource statements, List<Integer> fids)
+    throws SQLException {
+    int size = 0;
+    while (BATCH_SIZES[size] < fids.size()) {
+      size++;
+    }
+    PreparedStatement stmt = statements.prepare(GET_FLIGHTS_SQL[size]);
+    stmt.clearParameters();
+    for (int i = 0; i < BATCH_SIZES[size]; i++) {
+      stmt.setInt(i + 1, fids.get(Math.min(i, fids.size() - 1)));
+    }
+
+    List<Flight> loaded = new ArrayList<>(fids.size());
+    try (ResultSet rs = stmt.executeQuery()) {
+      while (rs.next()) {
+        loaded.add(put(decode(rs, "")));
+      }
+    }
+    return loaded;
+  }
+
+  private static Flight decode(ResultSet rs, String prefix) throws SQLException {
+    return new Flight(
+      rs.getInt(prefix + "fid"),
+      rs.getInt(prefix + "day_of_month"),
+      rs.getString(prefix + "carrier_id"),
+      rs.getString(prefix + "flight_num"),
+      rs.getString(prefix + "origin_city"),
+      rs.getString(prefix + "dest_city"),
+      rs.getInt(prefix + "actual_time"),
+      rs.getInt(prefix + "capacity"),
+      rs.getInt(prefix + "price")
+    );
+  }
+
+  /**
+   * Caches the flight (unless another thread got there first) and returns the shared instance.
+   */
+  private static Flight put(Flight flight) {
+    Flight existing = flights.putIfAbsent(flight.fid, flight);
+    if (existing != null) {
+      return existing;
+    }
+
+    // Flights never change, so which entries get evicted only affects the hit ratio
+    if (flights.size() > MAX_SIZE) {
+      Iterator<Integer> it = flights.keySet().iterator();
+      while (flights.size() > MAX_SIZE && it.hasNext()) {
+        int fid = it.next();
+        if (fid != flight.fid) {
+          it.remove();
+        }
+      }
+    }
+    return flight;
+  }
+}
@@ -0,0 +1,223 @@
+package flightapp;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates a synthetic dataset in the schema of the Flights table, for testing search at
+ * larger scales than the course dataset.  The same options and seed always give the same file.
+ *
+ * Cities are placed at random on a 2800 x 1400 mile map, and each flight's distance, duration
+ * and price follow from its route.  Routes are chosen with Zipf-distributed city popularity, so
+ * that (like real networks) a few hubs have most of the flights; a hub skew of 0 spreads them
+ * evenly.
+ *
+ * The output is a CSV file with a header line, which the in-memory backend loads directly
+ * (flightapp.flights_file), and a "[file].sql" script that bulk-loads it into the Flights table
+ * of a scratch SQL Server database (replacing its flights).
+ *
+ * Usage: FlightDataGenerator --out FILE [--cities N] [--flights-per-day N] [--days N]
+ *            [--hub-skew S] [--capacity MIN-MAX] [--price MIN-MAX] [--canceled FRACTION]
+ *            [--seed N]
+ */
+public class FlightDataGenerator {
+  // Carriers of the course dataset, so the Flights table's references to Carriers hold
+  private static final String[] CARRIERS = {"AA", "AS", "B6", "DL", "F9", "HA", "NK", "UA", "WN"};
+  private static final String[] STATES = {
+    "AL", "AK", "AZ", "AR", "CA", "CO", "CT", "DE", "FL", "GA", "HI", "ID", "IL", "IN", "IA",
+    "KS", "KY", "LA", "ME", "MD", "MA", "MI", "MN", "MS", "MO", "MT", "NE", "NV", "NH", "NJ",
+    "NM", "NY", "NC", "ND", "OH", "OK", "OR", "PA", "RI", "SC", "SD", "TN", "TX", "UT", "VT",
+    "VA", "WA", "WV", "WI", "WY"
+  };
+  private static final int MONTH = 7;
+  private static final double MAP_WIDTH_MILES = 2800;
+  private static final double MAP_HEIGHT_MILES = 1400;
+  private static final int MILES_PER_HOUR = 480;
+
+  /**
+   * What to generate
+   */
+  public static class Options {
+    public int cities = 100;
+    public int flightsPerDay = 5000;
+    public int days = 31;
+    public double hubSkew = 1.0;
+    public int minCapacity = 1;
+    public int maxCapacity = 20;
+    public int minPrice = 100;
+    public int maxPrice = 1000;
+    public double canceledFraction = 0.02;
+    public long seed = 1;
+  }
+
+  private final Options options;
+  private final Random random;
+  private final double[] cityX;
+  private final double[] cityY;
+  private final double[] cumulativePopularity;
+  private final double maxDistance;
+
+  public FlightDataGenerator(Options options) {
+    if (options.cities < 2 || options.days < 1 || options.days > 31) {
+      throw new IllegalArgumentException("Need at least 2 cities and 1 to 31 days");
+    }
+    this.options = options;
+    this.random = new Random(options.seed);
+
+    cityX = new double[options.cities];
+    cityY = new double[options.cities];
+    cumulativePopularity = new double[options.cities];
+    double total = 0;
+    for (int i = 0; i < options.cities; i++) {
+      cityX[i] = random.nextDouble() * MAP_WIDTH_MILES;
+      cityY[i] = random.nextDouble() * MAP_HEIGHT_MILES;
+      total += 1 / Math.pow(i + 1, options.hubSkew);
+      cumulativePopularity[i] = total;
+    }
+    maxDistance = Math.hypot(MAP_WIDTH_MILES, MAP_HEIGHT_MILES);
+  }
+
+  /**
+   * The name of the i-th city; city 0 is the busiest hub, city 1 the next, and so on
+   */
+  public static String cityName(int i) {
+    return "City" + i + " " + stateOf(i);
+  }
+
+  private static String stateOf(int i) {
+    return STATES[i % STATES.length];
+  }
+
+  /**
+   * Writes the flights as CSV, in the column order of the Flights table
+   */
+  public void writeCsv(Writer writer) {
+    PrintWriter out = new PrintWriter(writer);
+    out.println("fid,month_id,day_of_month,day_of_week_id,carrier_id,flight_num,origin_city,"
+                + "origin_state,dest_city,dest_state,departure_delay,taxi_out,arrival_delay,"
+                + "canceled,actual_time,distance,capacity,price");
+    int[] flightNums = new int[CARRIERS.length];
+    int fid = 1;
+    for (int day = 1; day <= options.days; day++) {
+      for (int i = 0; i < options.flightsPerDay; i++) {
+        int origin = pickCity();
+        int dest = pickCity();
+        while (dest == origin) {
+          dest = pickCity();
+        }
+        double distance = Math.hypot(cityX[origin] - cityX[dest], cityY[origin] - cityY[dest]);
+        // taxiing, takeoff and landing, plus time in the air give or take 10%
+        int time = 30
+            + (int) (distance / MILES_PER_HOUR * 60 * (0.9 + 0.2 * random.nextDouble()));
+        int carrier = random.nextInt(CARRIERS.length);
+        int capacity = options.minCapacity
+            + random.nextInt(options.maxCapacity - options.minCapacity + 1);
+        // longer routes cost more, give or take 25%
+        double fare = options.minPrice + (options.maxPrice - options.minPrice)
+            * distance / maxDistance * (0.75 + 0.5 * random.nextDouble());
+        int price = (int) Math.min(options.maxPrice, Math.max(options.minPrice, fare));
+        int canceled = random.nextDouble() < options.canceledFraction ? 1 : 0;
+
+        out.print(fid++);
+        out.print("," + MONTH + "," + day + "," + ((day - 1) % 7 + 1) + ",");
+        out.print(CARRIERS[carrier] + "," + ++flightNums[carrier] + ",");
+        out.print(cityName(origin) + "," + stateOf(origin) + ",");
+        out.print(cityName(dest) + "," + stateOf(dest) + ",");
+        out.print(random.nextInt(30) + "," + (5 + random.nextInt(20)) + "," + random.nextInt(30));
+        out.println("," + canceled + "," + time + "," + (int) distance + "," + capacity + ","
+                    + price);
+      }
+    }
+    out.flush();
+  }
+
+  // A city, by Zipf-distributed popularity
+  private int pickCity() {
+    double pick = random.nextDouble() * cumulativePopularity[options.cities - 1];
+    int i = Arrays.binarySearch(cumulativePopularity, pick);
+    return i >= 0 ? i : Math.min(-i - 1, options.cities - 1);
+  }
+
+  /**
+   * Writes a script that replaces the Flights table's contents with the CSV file's
+   */
+  public static void writeBulkLoadScript(String csvFile, Writer writer) {
+    PrintWriter out = new PrintWriter(writer);
+    out.println("-- Replaces the flights with the generated ones in " + csvFile);
+    out.println("-- Run it on a scratch database: Users and Reservations are cleared too");
+    out.println("DELETE FROM Reservations_sknguyen;");
+    out.println("DELETE FROM ReservationLedger_sknguyen;");
+    out.println("DELETE FROM Users_sknguyen;");
+    out.println("DELETE FROM Flights;");
+    out.println("BULK INSERT Flights FROM '" + csvFile + "'");
+    out.println("    WITH (FORMAT = 'CSV', FIRSTROW = 2, TABLOCK);");
+    out.println(RouteTable.rebuildScript());
+    out.flush();
+  }
+
+  private static void usage() {
+    System.err.println("Usage: FlightDataGenerator --out FILE [--cities N] [--flights-per-day N]"
+                       + " [--days N] [--hub-skew S] [--capacity MIN-MAX] [--price MIN-MAX]"
+                       + " [--canceled FRACTION] [--seed N]");
+    System.exit(2);
+  }
+
+  public static void main(String[] args) throws IOException {
+    Options options = new Options();
+    String outFile = null;
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "--out":
+          outFile = value;
+          break;
+        case "--cities":
+          options.cities = Integer.parseInt(value);
+          break;
+        case "--flights-per-day":
+          options.flightsPerDay = Integer.parseInt(value);
+          break;
+        case "--days":
+          options.days = Integer.parseInt(value);
+          break;
+        case "--hub-skew":
+          options.hubSkew = Double.parseDouble(value);
+          break;
+        case "--capacity":
+          options.minCapacity = Integer.parseInt(value.split("-")[0]);
+          options.maxCapacity = Integer.parseInt(value.split("-")[1]);
+          break;
+        case "--price":
+          options.minPrice = Integer.parseInt(value.split("-")[0]);
+          options.maxPrice = Integer.parseInt(value.split("-")[1]);
+          break;
+        case "--canceled":
+          options.canceledFraction = Double.parseDouble(value);
+          break;
+        case "--seed":
+          options.seed = Long.parseLong(value);
+          break;
+        default:
+          usage();
+      }
+    }
+    if (outFile == null || args.length % 2 != 0) {
+      usage();
+    }
+
+    try (Writer out = new BufferedWriter(new FileWriter(outFile), 64 * 1024)) {
+      new FlightDataGenerator(options).writeCsv(out);
+    }
+    try (Writer out = new BufferedWriter(new FileWriter(outFile + ".sql"))) {
+      writeBulkLoadScript(Paths.get(outFile).toAbsolutePath().toString(), out);
+    }
+    System.out.println("Wrote " + (long) options.flightsPerDay * options.days + " flights to "
+                       + outFile + " and a script to load them to " + outFile + ".sql");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,117 @@
+package flightapp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events for commands, their transactions and their retries, so that slow
+ * bookings can be lined up against GC pauses and lock contention in the same recording, eg:
+ *
+ *   java -XX:StartFlightRecording=filename=flightapp.jfr ... flightapp.FlightService
+ *
+ * Each event carries the command's username and itinerary or reservation ID (-1 if the command
+ * has none).  When nothing is recording, the events are created but never committed, which the
+ * JIT compiles down to almost nothing.
+ */
+final class FlightEvents {
+  private FlightEvents() { }
+
+  /**
+   * A command, from when it is started until its response is ready
+   */
+  @Name("flightapp.Command")
+  @Label("Command")
+  @Category("FlightApp")
+  static class CommandEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Username")
+    String username;
+
+    @Label("Itinerary ID")
+    int itineraryId = -1;
+
+    @Label("Reservation ID")
+    int reservationId = -1;
+
+    @Label("Retries")
+    @Description("Transactions the command retried, eg after a deadlock")
+    int retries;
+  }
+
+  /**
+   * A transaction, from its first statement until it is committed or rolled back
+   */
+  @Name("flightapp.Transaction")
+  @Label("Transaction")
+  @Category("FlightApp")
+  static class TransactionEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Username")
+    String username;
+
+    @Label("Itinerary ID")
+    int itineraryId = -1;
+
+    @Label("Reservation ID")
+    int reservationId = -1;
+
+    @Label("Outcome")
+    @Description("\"commit\" or \"rollback\"")
+    String outcome;
+
+    @Label("Statements")
+    int statements;
+
+    @Label("Database Time")
+    @Description("Time spent waiting for the transaction's statements and its commit or rollback,"
+                 + " including waiting for locks")
+    @Timespan(Timespan.NANOSECONDS)
+    long databaseTime;
+
+    // Copies the fields that identify the command that ran the transaction
+    void setCommand(CommandEvent commandEvent) {
+      if (commandEvent != null) {
+        command = commandEvent.command;
+        username = commandEvent.username;
+        itineraryId = commandEvent.itineraryId;
+        reservationId = commandEvent.reservationId;
+      }
+    }
+  }
+
+  /**
+   * A transaction that failed and is being retried
+   */
+  @Name("flightapp.TransactionRetry")
+  @Label("Transaction Retry")
+  @Category("FlightApp")
+  static class RetryEvent extends Event {
+    @Label("Command")
+    String command;
+
+    @Label("Username")
+    String username;
+
+    @Label("Itinerary ID")
+    int itineraryId = -1;
+
+    @Label("Reservation ID")
+    int reservationId = -1;
+
+    @Label("Attempt")
+    @Description("The number of the attempt that failed, starting from 1")
+    int attempt;
+
+    @Label("Error Code")
+    @Description("The database's error code, eg 1205 for a deadlock")
+    int errorCode;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,562 @@
+package flightapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves the FlightService commands over TCP, so that one process can serve many users.
+ *
+ * The protocol is line-based: a client sends one command per line, exactly as it would be typed
+ * at the REPL, and receives the same response that FlightService.execute() returns.  Each client
+ * connection is a separate session with its own QueryAbstract (and so its own login and search
+ * results); "quit" ends the session.  "import users" is refused, since it reads and writes files
+ * on the server.
+ *
+ * A single selector thread does all of the socket I/O, and commands run on small pools of
+ * worker threads.  A session only occupies a worker while it has commands to run, so thousands of
+ * mostly-idle sessions need only a handful of threads.  Each session's commands are run one at a
+ * time, in the order they were received.
+ *
+ * Clients may pipeline: send several commands without waiting for the responses.  The commands a
+ * session has queued up are run as a batch (of at most MAX_BATCH commands, so that one busy
+ * session can't hog a worker), and the batch's responses are sent back with a single write.
+ * Read-only commands (search, reservations) run on their own pool, so they are never stuck
+ * behind other sessions' bookings, payments or password hashing.
+ */
+public class FlightServer implements AutoCloseable {
+  /**
+   * Default port, from "flightapp.server.port"
+   */
+  public static final int DEFAULT_PORT = Integer.getInteger("flightapp.server.port", 7340);
+
+  /**
+   * Default maximum number of concurrent sessions, from "flightapp.server.max_sessions"
+   */
+  public static final int DEFAULT_MAX_SESSIONS =
+      Integer.getInteger("flightapp.server.max_sessions", 10000);
+
+  /**
+   * Default number of threads running commands, from "flightapp.server.workers"
+   */
+  public static final int DEFAULT_WORKERS = Integer.getInteger(
+      "flightapp.server.workers", 4 * Runtime.getRuntime().availableProcessors());
+
+  /**
+   * Most commands a session runs before giving up its worker, from "flightapp.server.max_batch"
+   */
+  static final int MAX_BATCH = Integer.getInteger("flightapp.server.max_batch", 128);
+
+  // Longest command accepted; longer lines end the session
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  // How long close() waits for running commands and unsent responses
+  private static final long SHUTDOWN_TIMEOUT_MILLIS = 30000;
+
+  /**
+   * Creates the QueryAbstract for a new session
+   */
+  @FunctionalInterface
+  public interface SessionFactory {
+    QueryAbstract create() throws IOException, SQLException;
+  }
+
+  private final SessionFactory factory;
+  private final int maxSessions;
+  private final ServerSocketChannel serverChannel;
+  private final Selector selector;
+  private final ExecutorService workers;
+  private final ExecutorService readers;
+  private final Thread selectorThread;
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+
+  private final Set<ClientSession> sessions = ConcurrentHashMap.newKeySet();
+  // Sessions with responses waiting to be sent, handed from the workers to the selector thread
+  private final Queue<ClientSession> pendingWrites = new ConcurrentLinkedQueue<>();
+  private volatile boolean running = true;
+
+  // Metrics
+  private final LongAdder acceptedSessions = new LongAdder();
+  private final LongAdder rejectedSessions = new LongAdder();
+  private final LongAdder commands = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+
+  /**
+   * Binds to the port on the loopback interface (port 0 picks a free port); call start() to
+   * begin serving.
+   *
+   * @param maxSessions   connections beyond this many concurrent sessions are turned away
+   * @param workerThreads number of threads running commands (and, separately, read-only ones)
+   * @param factory       creates each session's QueryAbstract
+   */
+  public FlightServer(int port, int maxSessions, int workerThreads, SessionFactory factory)
+    throws IOException {
+    this.factory = factory;
+    this.maxSessions = maxSessions;
+
+    this.selector = Selector.open();
+    this.serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress("localhost", port), 1024);
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+    this.workers = Executors.newFixedThreadPool(workerThreads, threadFactory("worker"));
+    this.readers = Executors.newFixedThreadPool(workerThreads, threadFactory("reader"));
+    this.selectorThread = new Thread(this::selectLoop, "flight-server-selector");
+  }
+
+  /**
+   * Starts accepting sessions
+   */
+  public void start() {
+    selectorThread.start();
+  }
+
+  /**
+   * Waits until the server has stopped accepting sessions (ie, until close() is called)
+   */
+  public void awaitTermination() throws InterruptedException {
+    selectorThread.join();
+  }
+
+  /**
+   * The port the server is listening on
+   */
+  public int getPort() {
+    return serverChannel.socket().getLocalPort();
+  }
+
+  /**
+   * Number of sessions currently connected
+   */
+  public int getSessionCount() {
+    return sessions.size();
+  }
+
+  public long getAcceptedCount() {
+    return acceptedSessions.sum();
+  }
+
+  public long getRejectedCount() {
+    return rejectedSessions.sum();
+  }
+
+  public long getCommandCount() {
+    return commands.sum();
+  }
+
+  /**
+   * Number of batches the commands were run in (each batch's responses are sent with one write)
+   */
+  public long getBatchCount() {
+    return batches.sum();
+  }
+
+  /**
+   * Shuts down gracefully: stops accepting sessions and reading commands, lets the commands that
+   * were already received finish, sends their responses, and then closes every session.
+   */
+  @Override
+  public void close() {
+    running = false;
+    selector.wakeup();
+    try {
+      selectorThread.join();
+      workers.shutdown();
+      readers.shutdown();
+      workers.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      readers.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+    for (ClientSession session : sessions) {
+      session.flushAndClose(deadline);
+    }
+    try {
+      selector.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static ThreadFactory threadFactory(String kind) {
+    AtomicInteger threadNum = new AtomicInteger();
+    return r -> {
+      Thread t = new Thread(r, "flight-server-" + kind + "-" + threadNum.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+  }
+
+  /**
+   * Whether the command only reads (and so can run alongside other sessions' writes)
+   */
+  static boolean isReadOnly(String command) {
+    switch (FlightService.PARSER.get().parse(command).type) {
+      case SEARCH:
+      case RESERVATIONS:
+      case RESERVATIONS_PAGE:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private void selectLoop() {
+    try {
+      while (running) {
+        selector.select();
+
+        ClientSession session;
+        while ((session = pendingWrites.poll()) != null) {
+          try {
+            session.enableWrites();
+          } catch (CancelledKeyException e) {
+            // a worker closed the session in the meantime
+          }
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+            continue;
+          }
+          session = (ClientSession) key.attachment();
+          try {
+            if (key.isReadable()) {
+              session.read();
+            }
+            if (key.isValid() && key.isWritable()) {
+              session.write();
+            }
+          } catch (CancelledKeyException e) {
+            // a worker closed the session in the meantime
+          }
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    } finally {
+      try {
+        serverChannel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+
+    if (sessions.size() >= maxSessions) {
+      rejectedSessions.increment();
+      try {
+        channel.write(StandardCharsets.UTF_8.encode("Error: Too many sessions\n"));
+      } catch (IOException e) {
+        // the client is being turned away anyway
+      }
+      channel.close();
+      return;
+    }
+
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    ClientSession session = new ClientSession(channel);
+    session.key = channel.register(selector, SelectionKey.OP_READ, session);
+    sessions.add(session);
+    acceptedSessions.increment();
+  }
+
+  /**
+   * A connected client.  Its socket is only read and written by the selector thread; its
+   * commands are run by one worker at a time.
+   */
+  private class ClientSession {
+    private final SocketChannel channel;
+    private SelectionKey key;
+
+    // Bytes of the line being received (selector thread only)
+    private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+
+    // Guarded by this
+    private final Queue<String> commandQueue = new ArrayDeque<>();
+    private final Queue<ByteBuffer> output = new ArrayDeque<>();
+    private boolean draining = false;  // a worker is (or is about to be) running its commands
+    private boolean finished = false;  // the client quit or hung up; accept no more commands
+    private boolean closed = false;
+
+    // Only touched by the worker draining the commands
+    private QueryAbstract query;
+
+    ClientSession(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    /**
+     * Reads whatever the client has sent and queues every complete line as a command
+     */
+    void read() {
+      int n;
+      try {
+        readBuffer.clear();
+        n = channel.read(readBuffer);
+      } catch (IOException e) {
+        n = -1;
+      }
+      if (n < 0) {
+        // the client hung up (or only shut down its side); still run what it sent
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        finish(false);
+        return;
+      }
+
+      readBuffer.flip();
+      while (readBuffer.hasRemaining()) {
+        byte b = readBuffer.get();
+        if (b == '\n') {
+          String line = new String(partialLine.toByteArray(), StandardCharsets.UTF_8);
+          partialLine.reset();
+          if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+          }
+          enqueue(line);
+        } else if (partialLine.size() < MAX_LINE_LENGTH) {
+          partialLine.write(b);
+        } else {
+          send("Error: Command too long\n");
+          finish(true);
+          return;
+        }
+      }
+    }
+
+    private void enqueue(String command) {
+      synchronized (this) {
+        if (finished) {
+          return;
+        }
+        commandQueue.add(command);
+        if (draining) {
+          return;
+        }
+        draining = true;
+      }
+      schedule();
+    }
+
+    /**
+     * Hands the session to the reader or worker pool, depending on its next command
+     */
+    private void schedule() {
+      String next;
+      synchronized (this) {
+        next = commandQueue.peek();
+      }
+      try {
+        (next != null && isReadOnly(next) ? readers : workers).execute(this::drain);
+      } catch (RejectedExecutionException e) {
+        // shutting down; finish the commands already received here
+        drain();
+      }
+    }
+
+    /**
+     * Runs the next batch of queued commands in order, and sends their responses in one write.
+     * A batch is either all read-only commands or all others.
+     */
+    private void drain() {
+      StringBuilder responses = new StringBuilder();
+      Boolean readOnly = null;
+      for (int i = 0; i < MAX_BATCH; i++) {
+        String command;
+        synchronized (this) {
+          command = commandQueue.peek();
+          if (command == null
+              || (readOnly != null && readOnly != isReadOnly(command))) {
+            break;
+          }
+          commandQueue.poll();
+        }
+        readOnly = isReadOnly(command);
+
+        String response = execute(command);
+        commands.increment();
+        responses.append(response);
+        if (response.equals("Goodbye\n")) {
+          finish(true);
+          break;
+        }
+      }
+      if (responses.length() > 0) {
+        batches.increment();
+        send(responses.toString());
+      }
+
+      boolean more;
+      synchronized (this) {
+        more = !commandQueue.isEmpty();
+        if (!more) {
+          draining = false;
+        }
+      }
+      if (more) {
+        schedule();
+      } else {
+        closeIfDone();
+      }
+    }
+
+    private String execute(String command) {
+      if (query == null) {
+        try {
+          query = factory.create();
+        } catch (IOException | SQLException e) {
+          e.printStackTrace();
+          finish(true);
+          return "Error: Could not start a session\n";
+        }
+      }
+      return FlightService.execute(query, command, false);
+    }
+
+    /**
+     * Queues a response; the selector thread sends it
+     */
+    private void send(String response) {
+      synchronized (this) {
+        output.add(StandardCharsets.UTF_8.encode(response));
+      }
+      pendingWrites.add(this);
+      selector.wakeup();
+    }
+
+    void enableWrites() {
+      if (key.isValid()) {
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+      }
+    }
+
+    /**
+     * Sends as much of the queued output as the socket will take
+     */
+    void write() {
+      try {
+        synchronized (this) {
+          while (!output.isEmpty()) {
+            ByteBuffer buf = output.peek();
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+              return;
+            }
+            output.poll();
+          }
+        }
+        if (key.isValid()) {
+          key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+      } catch (IOException e) {
+        synchronized (this) {
+          output.clear();
+        }
+        finish(true);
+      }
+      closeIfDone();
+    }
+
+    /**
+     * Stops accepting commands; the session is closed once the queued ones (unless discarded)
+     * have run and their responses have been sent.
+     */
+    private void finish(boolean discardQueued) {
+      synchronized (this) {
+        finished = true;
+        if (discardQueued) {
+          commandQueue.clear();
+        }
+      }
+      closeIfDone();
+    }
+
+    private void closeIfDone() {
+      synchronized (this) {
+        if (closed || !finished || draining || !output.isEmpty()) {
+          return;
+        }
+        closed = true;
+      }
+      close();
+    }
+
+    /**
+     * Used by FlightServer.close(), once the workers have stopped
+     */
+    void flushAndClose(long deadline) {
+      try {
+        synchronized (this) {
+          while (!output.isEmpty() && System.currentTimeMillis() < deadline) {
+            ByteBuffer buf = output.peek();
+            channel.write(buf);
+            if (buf.hasRemaining()) {
+              Thread.sleep(1);
+            } else {
+              output.poll();
+            }
+          }
+        }
+      } catch (IOException e) {
+        // the client is gone; nothing more to send
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      close();
+    }
+
+    private void close() {
+      sessions.remove(this);
+      try {
+        channel.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+      try {
+        if (query != null) {
+          query.closeConnection();
+        }
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
@@ -2,113 +2,238 @@ package flightapp;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
 import java.sql.*;
 
 public class FlightService {
 
+  // Each thread parses its commands with its own (reused) parser
+  static final ThreadLocal<CommandParser> PARSER =
+      ThreadLocal.withInitial(CommandParser::new);
+
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(QueryAbstract q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    return execute(q, command, true);
+  }
 
-    // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
+  /**
+   * Execute the specified command on the database query connection.  Unless local (ie, typed at
+   * the REPL or read by --batch), commands that name files on this machine are refused.
+   */
+  static String execute(QueryAbstract q, String command, boolean local) {
+    CommandParser.Command cmd = PARSER.get().parse(command);
+    if (cmd.error != CommandParser.Error.NONE) {
+      return cmd.errorMessage;
     }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
+    switch (cmd.type) {
+      case EMPTY:
+        return "Please enter a command";
+      case LOGIN:
+        return q.login(cmd.username, cmd.password);
+      case CREATE:
+        return q.createCustomer(cmd.username, cmd.password, cmd.amount);
+      case IMPORT_USERS:
+        if (!local) {
+          return "Error: import users is only available locally\n";
+        }
+        return q.importUsers(cmd.path);
+      case SEARCH:
+        return q.search(cmd.originCity, cmd.destinationCity, cmd.directFlight, cmd.dayOfMonth,
+                        cmd.numberOfItineraries);
+      case BOOK:
+        return q.book(cmd.itineraryId);
+      case PAY:
+        return q.pay(cmd.reservationId);
+      case RESERVATIONS:
+        return q.reservations();
+      case RESERVATIONS_PAGE:
+        return q.reservations(cmd.afterReservationId, cmd.pageSize);
+      case STATS:
+        return stats(q);
+      case QUIT:
+        return "Goodbye\n";
+      case UNKNOWN:
+      default:
+        return cmd.errorMessage;
     }
+  }
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
+  /**
+   * The "stats" report: every kind of command's metrics, then (if profiling) every statement's,
+   * then the flight cache's, the connection pools' and the password hashing pool's, and last
+   * how long this session took to start up
+   */
+  private static String stats(QueryAbstract q) {
+    StringBuilder sb = new StringBuilder(CommandMetrics.report());
+    if (StatementProfiler.ENABLED) {
+      sb.append(StatementProfiler.report());
     }
+    sb.append(FlightCache.report());
+    sb.append(DBConnUtils.poolReport());
+    sb.append(PasswordUtils.report());
+    sb.append(q.getStartupTimes()).append("\n");
+    return sb.toString();
+  }
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
-        }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+  /**
+   * Establishes an application-to-database connection and runs the Flights
+   * application REPL.  With "--server [port]", serves it over TCP instead (see FlightServer);
+   * with "--batch <file|->", runs the commands in the file (or stdin) without the menu.  With
+   * "--verify-routes" or "--rebuild-routes", checks or rebuilds the Routes table (see RouteTable).
+   * 
+   * @param args
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("--server")) {
+      serve(args.length > 1 ? Integer.parseInt(args[1]) : FlightServer.DEFAULT_PORT);
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--batch")) {
+      if (args.length != 2) {
+        System.err.println("Usage: --batch <file|->");
+        System.exit(2);
       }
+      batch(args[1]);
+      return;
+    }
+    if (args.length > 0 && (args[0].equals("--verify-routes")
+                            || args[0].equals("--rebuild-routes"))) {
+      System.exit(routes(args[0].equals("--rebuild-routes")) ? 0 : 1);
     }
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
+    QueryAbstract q = createQuery();
+    menu(q);
+    q.closeConnection();
+    DBConnUtils.closePool();
+  }
+
+  /**
+   * Rebuilds the Routes table, or checks it against Flights; returns false if it's missing or
+   * out of date
+   */
+  private static boolean routes(boolean rebuild) throws IOException, SQLException {
+    if (usesMemoryBackend()) {
+      System.err.println("The in-memory backend searches the flights file directly");
+      return false;
+    }
+    try (Connection conn = DBConnUtils.openConnection()) {
+      if (!RouteTable.exists(conn)) {
+        System.out.println(RouteTable.TABLE + " doesn't exist; create it with createTables.sql");
+        return false;
+      }
+      if (rebuild) {
+        System.out.println("Rebuilt " + RouteTable.TABLE + " with " + RouteTable.rebuild(conn)
+                           + " routes");
+        return true;
       }
+      RouteTable.Verification verification = RouteTable.verify(conn);
+      System.out.print(verification);
+      return verification.matches();
+    } finally {
+      DBConnUtils.closePool();
     }
+  }
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.reservations();
+  /**
+   * Runs the commands in the file ("-" for stdin) and prints a summary to stderr
+   */
+  private static void batch(String path) throws IOException, SQLException {
+    QueryAbstract q = createQuery();
+    Reader reader = path.equals("-") ? new InputStreamReader(System.in) : new FileReader(path);
+    try (BufferedReader in = new BufferedReader(reader, 64 * 1024)) {
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 64 * 1024);
+      System.err.println(runBatch(q, in, out));
+    } finally {
+      q.closeConnection();
+      DBConnUtils.closePool();
     }
+  }
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
+  /**
+   * Runs commands, one per line as they would be typed at the REPL, until "quit" or the end of
+   * the input, and writes each response on its own line(s).  Output is buffered, and only
+   * flushed at the end.  A command that throws is reported as an error and the rest still run.
+   *
+   * @return "Ran [n] commands ([e] errors) in [t] ms ([r] commands/sec)", where errors are
+   *         responses to malformed commands and commands that threw
+   */
+  static String runBatch(QueryAbstract q, BufferedReader in, Writer out) throws IOException {
+    long start = System.nanoTime();
+    long numCommands = 0;
+    long numErrors = 0;
+
+    String command;
+    while ((command = in.readLine()) != null) {
+      if (command.trim().isEmpty()) {
+        continue;
       }
-    }
+      numCommands++;
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
+      String response;
+      try {
+        response = execute(q, command);
+      } catch (RuntimeException e) {
+        response = "Error: " + e;
+      }
+      if (response.startsWith("Error") || response.equals("Failed to parse integer")) {
+        numErrors++;
+      }
+
+      out.write(response);
+      if (!response.endsWith("\n")) {
+        out.write("\n");
+      }
+      if (response.equals("Goodbye\n")) {
+        break;
+      }
     }
+    out.flush();
+
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+    return "Ran " + numCommands + " commands (" + numErrors + " errors) in " + elapsedMs + " ms ("
+        + (numCommands * 1000 / elapsedMs) + " commands/sec)";
+  }
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  /**
+   * Runs a FlightServer on the port until the process is interrupted (eg, with Ctrl-C), and then
+   * shuts it down gracefully
+   */
+  private static void serve(int port) throws IOException {
+    FlightServer server = new FlightServer(port, FlightServer.DEFAULT_MAX_SESSIONS,
+                                           FlightServer.DEFAULT_WORKERS,
+                                           FlightService::createQuery);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.close();
+      DBConnUtils.closePool();
+    }));
+    server.start();
+    System.out.println("Serving FlightService on localhost:" + server.getPort());
+    try {
+      server.awaitTermination();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     }
+  }
 
-    return response;
+  /**
+   * Creates a session on the backend selected by the "flightapp.backend" property: "memory" for
+   * the in-memory MemoryQuery, anything else (the default) for the database-backed Query.
+   */
+  public static QueryAbstract createQuery() throws IOException, SQLException {
+    if (usesMemoryBackend()) {
+      return new MemoryQuery();
+    }
+    return new Query();
   }
 
   /**
-   * Establishes an application-to-database connection and runs the Flights
-   * application REPL
-   * 
-   * @param args
-   * @throws IOException
+   * Whether "flightapp.backend" selects the in-memory backend
    */
-  public static void main(String[] args) throws IOException, SQLException {
-    QueryAbstract q = new Query();
-    menu(q);
-    q.closeConnection();
+  public static boolean usesMemoryBackend() {
+    return System.getProperty("flightapp.backend", "").equalsIgnoreCase("memory");
   }
 
   /**
@@ -119,22 +244,27 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(QueryAbstract q) throws IOException {
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
+      System.out.println("> import users <csv file of username,password,balance>");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
       System.out.println("> book <itinerary id>");
       System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
+      System.out.println("> reservations [<after reservation id> <page size>]");
+      System.out.println("> stats");
       System.out.println("> quit");
 
-      // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+      // read an input command from the REPL (end of input quits)
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        command = "quit";
+      }
 
       // execute the given input command
       String response = execute(q, command);
@@ -144,20 +274,4 @@ public class FlightService {
       }
     }
   }
-
-  /**
-   * Tokenize a string into a string array
-   */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
-  }
 }
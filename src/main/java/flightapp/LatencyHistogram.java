@@ -0,0 +1,109 @@
+package flightapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies that any number of threads can record into without locking.
+ *
+ * Latencies are kept in microseconds, in log-linear buckets: every power of two is split into
+ * 8 equal sub-buckets, so a percentile is reported to within 12.5% of the true value, using a
+ * fixed 4KB of counters regardless of how many values are recorded.
+ */
+class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalMicros = new LongAdder();
+  private final AtomicLong maxMicros = new AtomicLong();
+
+  /**
+   * Records one latency
+   */
+  void record(long nanos) {
+    long micros = Math.max(0, nanos / 1000);
+    counts.incrementAndGet(bucketOf(micros));
+    count.increment();
+    totalMicros.add(micros);
+    if (micros > maxMicros.get()) {
+      maxMicros.accumulateAndGet(micros, Math::max);
+    }
+  }
+
+  long getCount() {
+    return count.sum();
+  }
+
+  double getMeanMicros() {
+    long n = count.sum();
+    return n == 0 ? 0.0 : (double) totalMicros.sum() / n;
+  }
+
+  long getMaxMicros() {
+    return maxMicros.get();
+  }
+
+  /**
+   * The latency (in microseconds) that the given fraction of recorded latencies are at or below;
+   * more precisely, the upper end of the bucket that holds it
+   *
+   * @param fraction between 0 and 1, eg 0.99 for the 99th percentile
+   */
+  long getPercentileMicros(double fraction) {
+    long[] snapshot = new long[NUM_BUCKETS];
+    long n = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      snapshot[i] = counts.get(i);
+      n += snapshot[i];
+    }
+    if (n == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(fraction * n));
+    long seen = 0;
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) {
+        long upper = i + 1 < NUM_BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE;
+        return Math.min(upper, maxMicros.get());
+      }
+    }
+    return maxMicros.get();
+  }
+
+  /**
+   * Forgets everything recorded so far.  Values recorded while this runs may or may not be kept.
+   */
+  void reset() {
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    totalMicros.reset();
+    maxMicros.set(0);
+  }
+
+  static int bucketOf(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(micros);
+    int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // The smallest value that falls in the bucket
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS - 1 + SUB_BUCKET_BITS;
+    long subBucket = bucket % SUB_BUCKETS;
+    return (1L << exponent) | (subBucket << (exponent - SUB_BUCKET_BITS));
+  }
+}
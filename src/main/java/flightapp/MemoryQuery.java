@@ -0,0 +1,364 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+
+import flightapp.Query.Itinerary;
+import flightapp.Query.Reservation;
+import flightapp.MemoryStore.ReservationRow;
+import flightapp.MemoryStore.User;
+
+/**
+ * Runs the same transactions as Query, with the same responses, against the in-memory
+ * MemoryStore instead of a database.  Select it with "-Dflightapp.backend=memory"; the flights
+ * are loaded from the file named by "flightapp.flights_file" (default: cases/flights.csv).
+ */
+public class MemoryQuery extends QueryAbstract {
+  private final MemoryStore store;
+
+  //
+  // Instance variables
+  //
+  private String currentLogInUser;
+  private List<Itinerary> itineraries;
+
+  public MemoryQuery() throws IOException {
+    this(MemoryStore.getInstance());
+  }
+
+  /**
+   * Creates a session on the given store instead of the process-wide one
+   */
+  MemoryQuery(MemoryStore store) {
+    super(null);
+    this.store = store;
+  }
+
+  /**
+   * Clear the data in any custom tables created.
+   */
+  public void clearTables() {
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      store.clear();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public void saveSnapshot(String name) {
+    checkSnapshotName(name);
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      store.saveSnapshot(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public boolean restoreSnapshot(String name) {
+    checkSnapshotName(name);
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      return store.restoreSnapshot(name);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_login(String username, String password) {
+    return transaction_loginAsync(username, password).join();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public CompletableFuture<String> transaction_loginAsync(String username, String password) {
+    if (currentLogInUser != null) {
+      return CompletableFuture.completedFuture("User already logged in\n");
+    }
+
+    String lcUsername = username.toLowerCase();
+    byte[] storedPassword;
+    Lock lock = store.lock.readLock();
+    lock.lock();
+    try {
+      User user = store.getUser(lcUsername);
+      if (user == null) {
+        return CompletableFuture.completedFuture("Login failed\n");
+      }
+      storedPassword = user.saltedHash;
+    } finally {
+      lock.unlock();
+    }
+
+    return PasswordUtils.plaintextMatchesSaltedHashAsync(password, storedPassword)
+      .thenApply(correctPassword -> {
+        if (correctPassword) {
+          if (PasswordUtils.needsRehash(storedPassword)) {
+            // in the background, so the login doesn't wait for a second hash
+            rehashPassword(lcUsername, password, storedPassword);
+          }
+          currentLogInUser = lcUsername;
+          itineraries = null;
+          return "Logged in as " + username + "\n";
+        }
+        return "Login failed\n";
+      })
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return "Login failed\n";
+      });
+  }
+
+  /**
+   * Starts replacing a user's stored password hash with one made using the current hashing
+   * parameters, unless the stored hash has changed in the meantime.  The new hash is made on the
+   * hashing pool, and stored from the common pool, so that the hashing threads never wait for
+   * the store's lock.  Failures (including a full hashing pool) are logged, and the hash is then
+   * replaced at a later login.
+   */
+  private CompletableFuture<Void> rehashPassword(String lcUsername, String password,
+                                                 byte[] oldSaltedHash) {
+    return PasswordUtils.saltAndHashPasswordAsync(password)
+      .thenAcceptAsync(saltedHash -> {
+        Lock lock = store.lock.writeLock();
+        lock.lock();
+        try {
+          User user = store.getUser(lcUsername);
+          if (user != null && user.saltedHash == oldSaltedHash) {
+            user.saltedHash = saltedHash;
+          }
+        } finally {
+          lock.unlock();
+        }
+      })
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_createCustomer(String username, String password, int initAmount) {
+    return transaction_createCustomerAsync(username, password, initAmount).join();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public CompletableFuture<String> transaction_createCustomerAsync(String username,
+                                                                   String password,
+                                                                   int initAmount) {
+    String lcUsername = username.toLowerCase();
+    boolean userExists;
+    Lock lock = store.lock.readLock();
+    lock.lock();
+    try {
+      userExists = store.getUser(lcUsername) != null;
+    } finally {
+      lock.unlock();
+    }
+
+    // fail if balance is negative or username already exists
+    if (initAmount < 0 || userExists) {
+      return CompletableFuture.completedFuture("Failed to create user\n");
+    }
+
+    // A concurrent create of the same username makes the insert fail, like a duplicate key
+    return PasswordUtils.saltAndHashPasswordAsync(password)
+      .thenApply(saltPlusSaltedHash -> insertUser(lcUsername, saltPlusSaltedHash, initAmount)
+                 ? "Created user " + username + "\n"
+                 : "Failed to create user\n")
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return "Failed to create user\n";
+      });
+  }
+
+  private boolean insertUser(String lcUsername, byte[] saltedHash, int balance) {
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      return store.insertUser(lcUsername, saltedHash, balance);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_importUsers(String path) {
+    try {
+      UserImporter importer = new UserImporter(this::insertUser, UserImporter.DEFAULT_BATCH_SIZE);
+      return importer.importFile(path);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return "Failed to import users\n";
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_search(String originCity, String destinationCity,
+                                   boolean directFlight, int dayOfMonth,
+                                   int numberOfItineraries) {
+    if (numberOfItineraries < 0) {
+      // TOP (?) rejects negative row counts
+      return "Failed to search\n";
+    }
+
+    itineraries = store.directItineraries(originCity, destinationCity, dayOfMonth,
+                                          numberOfItineraries);
+    int itinerariesLeft = numberOfItineraries - itineraries.size();
+    if (!directFlight && itinerariesLeft > 0) {
+      itineraries.addAll(store.connectingItineraries(originCity, destinationCity, dayOfMonth,
+                                                     itinerariesLeft));
+    }
+
+    if (itineraries.isEmpty()) {
+      return "No flights match your selection\n";
+    }
+
+    Collections.sort(itineraries);
+    return Query.formatItineraries(itineraries);
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_book(int itineraryId) {
+    if (currentLogInUser == null) {
+      return "Cannot book reservations, not logged in\n";
+    } else if (itineraries == null || itineraryId < 0 || itineraryId > itineraries.size() - 1) {
+      return "No such itinerary " + itineraryId + "\n";
+    }
+    Itinerary itnToBook = itineraries.get(itineraryId);
+
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      for (ReservationRow res : store.getReservations(currentLogInUser)) {
+        if (store.getFlight(res.firstFid).dayOfMonth == itnToBook.f1.dayOfMonth) {
+          return "You cannot book two flights in the same day\n";
+        }
+      }
+
+      if (!store.hasCapacity(itnToBook.f1)
+          || (!itnToBook.isDirect && !store.hasCapacity(itnToBook.f2))) {
+        return "Booking failed\n";
+      }
+
+      int totalPrice = itnToBook.f1.price + (itnToBook.isDirect ? 0 : itnToBook.f2.price);
+      ReservationRow res = store.insertReservation(currentLogInUser, totalPrice, itnToBook.f1,
+                                                   itnToBook.f2);
+      return "Booked flight(s), reservation ID: " + res.id + "\n";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_pay(int reservationId) {
+    if (currentLogInUser == null) {
+      return "Cannot pay, not logged in\n";
+    }
+
+    Lock lock = store.lock.writeLock();
+    lock.lock();
+    try {
+      ReservationRow res = store.getReservation(reservationId);
+      if (res == null || res.isPaid || !res.username.equals(currentLogInUser)) {
+        return "Cannot find unpaid reservation " + reservationId + " under user: "
+            + currentLogInUser + "\n";
+      }
+
+      User user = store.getUser(currentLogInUser);
+      if (res.totalPrice > user.balance) {
+        return "User has only " + user.balance + " in account but itinerary costs "
+            + res.totalPrice + "\n";
+      }
+
+      user.balance -= res.totalPrice;
+      res.isPaid = true;
+      return "Paid reservation: " + reservationId + " remaining balance: " + user.balance + "\n";
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_reservations() {
+    StringBuilder sb = new StringBuilder();
+    try {
+      transaction_reservations(sb);
+    } catch (IOException e) {
+      // StringBuilder never throws
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public void transaction_reservations(Appendable out) throws IOException {
+    if (currentLogInUser == null) {
+      out.append("Cannot view reservations, not logged in\n");
+      return;
+    }
+
+    List<Reservation> reservations = getReservations(0, Integer.MAX_VALUE);
+    if (reservations.isEmpty()) {
+      out.append("No reservations found\n");
+      return;
+    }
+    Query.writeReservations(reservations, store.getFlights(), out);
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_reservationsPage(int afterReservationId, int pageSize) {
+    if (currentLogInUser == null) {
+      return "Cannot view reservations, not logged in\n";
+    } else if (pageSize <= 0) {
+      return "Failed to retrieve reservations\n";
+    }
+
+    List<Reservation> page = getReservations(afterReservationId, pageSize);
+    if (page.isEmpty()) {
+      return "No reservations found\n";
+    }
+
+    StringBuilder sb = new StringBuilder();
+    try {
+      Query.writeReservations(page, store.getFlights(), sb);
+    } catch (IOException e) {
+      // StringBuilder never throws
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Snapshots (at most) pageSize of the logged-in user's reservations whose IDs are greater than
+   * afterReservationId, in reservation ID order.
+   */
+  private List<Reservation> getReservations(int afterReservationId, int pageSize) {
+    List<Reservation> page = new ArrayList<>();
+    Lock lock = store.lock.readLock();
+    lock.lock();
+    try {
+      for (ReservationRow res : store.getReservations(currentLogInUser)) {
+        if (page.size() >= pageSize) {
+          break;
+        }
+        if (res.id > afterReservationId) {
+          page.add(res.toReservation());
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    return page;
+  }
+}
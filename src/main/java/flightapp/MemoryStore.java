@@ -0,0 +1,348 @@
+package flightapp;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import flightapp.Query.Flight;
+import flightapp.Query.Itinerary;
+
+/**
+ * The data behind MemoryQuery: the Flights table, loaded from a local CSV file, plus the Users
+ * and Reservations tables, kept in memory.
+ *
+ * There is one store per process, shared by every MemoryQuery session (tests may make their own,
+ * sharing its flights).  Flights never change, so they are indexed once and then read without
+ * locking.  Users and reservations are guarded by
+ * {@link #lock}; a transaction that reads and then writes them holds the write lock throughout,
+ * so transactions are serializable.
+ */
+class MemoryStore {
+  /**
+   * Property naming the flights CSV file, whose columns are in the order of the Flights table
+   * (see createTables.sql)
+   */
+  static final String FLIGHTS_FILE_PROPERTY = "flightapp.flights_file";
+  // The flights that the test cases use, so they run without an export of the real table
+  private static final String DEFAULT_FLIGHTS_FILE = "cases/flights.csv";
+
+  // Users.username is a VARCHAR(20)
+  private static final int MAX_USERNAME_LENGTH = 20;
+
+  // Search results are ordered by duration, then fid(s), like Itinerary.compareTo()
+  private static final Comparator<Flight> BY_DURATION =
+      Comparator.<Flight>comparingInt(f -> f.time).thenComparingInt(f -> f.fid);
+
+  private static MemoryStore instance;
+
+  // Flights, by fid (including canceled flights, which reservations may still refer to)
+  private final Map<Integer, Flight> flights;
+  // Non-canceled flights, by origin city and day, ordered by BY_DURATION
+  private final Map<String, List<Flight>> departures;
+
+  /**
+   * Guards the users and reservations
+   */
+  final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, User> users = new HashMap<>();
+  private final List<ReservationRow> reservations = new ArrayList<>(); // reservation i at i - 1
+  private final Map<String, List<ReservationRow>> reservationsByUser = new HashMap<>();
+  private final Map<Integer, Integer> seatsTaken = new HashMap<>();
+  private final Map<String, Snapshot> snapshots = new HashMap<>();
+
+  /**
+   * Get the process-wide store, loading the flights file the first time
+   */
+  static synchronized MemoryStore getInstance() throws IOException {
+    if (instance == null) {
+      instance = new MemoryStore(System.getProperty(FLIGHTS_FILE_PROPERTY, DEFAULT_FLIGHTS_FILE));
+    }
+    return instance;
+  }
+
+  MemoryStore(String flightsFile) throws IOException {
+    flights = new HashMap<>();
+    departures = new HashMap<>();
+    try (BufferedReader in = new BufferedReader(new FileReader(flightsFile))) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] cols = line.split(",", -1);
+        if (cols.length < 18 || !isInt(cols[0])) {
+          continue; // header or blank line
+        }
+        Flight flight = new Flight(parseInt(cols[0]), parseInt(cols[2]), cols[4].trim(),
+                                   cols[5].trim(), cols[6].trim(), cols[8].trim(),
+                                   parseInt(cols[14]), parseInt(cols[16]), parseInt(cols[17]));
+        flights.put(flight.fid, flight);
+        if (parseInt(cols[13]) == 0) {
+          departures.computeIfAbsent(departureKey(flight.originCity, flight.dayOfMonth),
+                                     k -> new ArrayList<>()).add(flight);
+        }
+      }
+    }
+    for (List<Flight> list : departures.values()) {
+      list.sort(BY_DURATION);
+    }
+  }
+
+  /**
+   * A store with the other's flights, and no users or reservations
+   */
+  MemoryStore(MemoryStore other) {
+    flights = other.flights;
+    departures = other.departures;
+  }
+
+  //
+  // Flights (no locking needed)
+  //
+
+  Flight getFlight(int fid) {
+    return flights.get(fid);
+  }
+
+  Map<Integer, Flight> getFlights() {
+    return Collections.unmodifiableMap(flights);
+  }
+
+  /**
+   * The (at most) limit shortest direct itineraries, like Query's GET_ONE_HOP_SQL
+   */
+  List<Itinerary> directItineraries(String origin, String dest, int day, int limit) {
+    List<Itinerary> result = new ArrayList<>();
+    for (Flight f : departures(origin, day)) {
+      if (result.size() >= limit) {
+        break;
+      }
+      if (f.destCity.equalsIgnoreCase(dest)) {
+        result.add(new Itinerary(f));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The (at most) limit shortest one-stop itineraries, like Query's GET_TWO_HOP_SQL
+   */
+  List<Itinerary> connectingItineraries(String origin, String dest, int day, int limit) {
+    List<Itinerary> result = new ArrayList<>();
+    for (Flight f1 : departures(origin, day)) {
+      for (Flight f2 : departures(f1.destCity, day)) {
+        if (f2.destCity.equalsIgnoreCase(dest)) {
+          result.add(new Itinerary(f1, f2));
+        }
+      }
+    }
+    Collections.sort(result);
+    return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+  }
+
+  private List<Flight> departures(String origin, int day) {
+    return departures.getOrDefault(departureKey(origin, day), Collections.emptyList());
+  }
+
+  // City names compare case-insensitively, as under SQL Server's default collation
+  private static String departureKey(String origin, int day) {
+    return origin.toLowerCase() + "\0" + day;
+  }
+
+  //
+  // Users and reservations (the caller must hold the lock)
+  //
+
+  User getUser(String username) {
+    return users.get(username);
+  }
+
+  /**
+   * Adds a user; returns false if the username is taken or too long for the Users table
+   */
+  boolean insertUser(String username, byte[] saltedHash, int balance) {
+    if (username.length() > MAX_USERNAME_LENGTH || users.containsKey(username)) {
+      return false;
+    }
+    users.put(username, new User(saltedHash, balance));
+    return true;
+  }
+
+  /**
+   * The user's reservations, in reservation ID order
+   */
+  List<ReservationRow> getReservations(String username) {
+    return reservationsByUser.getOrDefault(username, Collections.emptyList());
+  }
+
+  /**
+   * Every reservation, in reservation ID order
+   */
+  List<ReservationRow> getReservations() {
+    return Collections.unmodifiableList(reservations);
+  }
+
+  /**
+   * Every user, by username
+   */
+  Map<String, User> getUsers() {
+    return Collections.unmodifiableMap(users);
+  }
+
+  ReservationRow getReservation(int reservationId) {
+    if (reservationId < 1 || reservationId > reservations.size()) {
+      return null;
+    }
+    return reservations.get(reservationId - 1);
+  }
+
+  /**
+   * Whether the flight has seats left
+   */
+  boolean hasCapacity(Flight flight) {
+    return flight.capacity - seatsTaken.getOrDefault(flight.fid, 0) > 0;
+  }
+
+  /**
+   * Adds a reservation with the next reservation ID
+   *
+   * @param second null for a direct itinerary
+   */
+  ReservationRow insertReservation(String username, int totalPrice, Flight first, Flight second) {
+    ReservationRow res = new ReservationRow(reservations.size() + 1, username, totalPrice,
+                                            first.fid, second == null ? 0 : second.fid);
+    reservations.add(res);
+    reservationsByUser.computeIfAbsent(username, k -> new ArrayList<>()).add(res);
+    seatsTaken.merge(first.fid, 1, Integer::sum);
+    if (second != null) {
+      seatsTaken.merge(second.fid, 1, Integer::sum);
+    }
+    return res;
+  }
+
+  /**
+   * Deletes every user and reservation
+   */
+  void clear() {
+    users.clear();
+    reservations.clear();
+    reservationsByUser.clear();
+    seatsTaken.clear();
+  }
+
+  /**
+   * Saves a copy of the users and reservations under the name
+   */
+  void saveSnapshot(String name) {
+    snapshots.put(name, new Snapshot(users, reservations, seatsTaken));
+  }
+
+  /**
+   * Replaces the users and reservations with a copy of the named snapshot's; returns false if
+   * there is none
+   */
+  boolean restoreSnapshot(String name) {
+    Snapshot snapshot = snapshots.get(name);
+    if (snapshot == null) {
+      return false;
+    }
+    clear();
+    for (Map.Entry<String, User> user : snapshot.users.entrySet()) {
+      users.put(user.getKey(), user.getValue().copy());
+    }
+    for (ReservationRow res : snapshot.reservations) {
+      ReservationRow copy = res.copy();
+      reservations.add(copy);
+      reservationsByUser.computeIfAbsent(copy.username, k -> new ArrayList<>()).add(copy);
+    }
+    seatsTaken.putAll(snapshot.seatsTaken);
+    return true;
+  }
+
+  private static boolean isInt(String s) {
+    try {
+      Integer.parseInt(s.trim());
+      return true;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  // Missing values (NULLs in the Flights table) are read as 0, like ResultSet.getInt()
+  private static int parseInt(String s) {
+    s = s.trim();
+    return s.isEmpty() ? 0 : Integer.parseInt(s);
+  }
+
+  /**
+   * A row of the Users table
+   */
+  static class User {
+    byte[] saltedHash;
+    int balance;
+
+    User(byte[] saltedHash, int balance) {
+      this.saltedHash = saltedHash;
+      this.balance = balance;
+    }
+
+    User copy() {
+      return new User(saltedHash, balance);
+    }
+  }
+
+  /**
+   * A row of the Reservations table
+   */
+  static class ReservationRow {
+    final int id;
+    final String username;
+    final int totalPrice;
+    final int firstFid;
+    final int secondFid; // 0 for direct itineraries
+    boolean isPaid;
+
+    ReservationRow(int id, String username, int totalPrice, int firstFid, int secondFid) {
+      this.id = id;
+      this.username = username;
+      this.totalPrice = totalPrice;
+      this.firstFid = firstFid;
+      this.secondFid = secondFid;
+    }
+
+    ReservationRow copy() {
+      ReservationRow copy = new ReservationRow(id, username, totalPrice, firstFid, secondFid);
+      copy.isPaid = isPaid;
+      return copy;
+    }
+
+    Query.Reservation toReservation() {
+      return new Query.Reservation(id, isPaid, firstFid, secondFid);
+    }
+  }
+
+  /**
+   * A copy of the users and reservations (users and reservations change in place, so they're
+   * copied again on restoring)
+   */
+  private static class Snapshot {
+    final Map<String, User> users = new HashMap<>();
+    final List<ReservationRow> reservations = new ArrayList<>();
+    final Map<Integer, Integer> seatsTaken;
+
+    Snapshot(Map<String, User> users, List<ReservationRow> reservations,
+             Map<Integer, Integer> seatsTaken) {
+      for (Map.Entry<String, User> user : users.entrySet()) {
+        this.users.put(user.getKey(), user.getValue().copy());
+      }
+      for (ReservationRow res : reservations) {
+        this.reservations.add(res.copy());
+      }
+      this.seatsTaken = new HashMap<>(seatsTaken);
+    }
+  }
+}
\ No newline at end of file
@@ -1,5 +1,7 @@
 package flightapp;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
@@ -8,7 +10,18 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
@@ -20,48 +33,191 @@ import javax.crypto.spec.PBEKeySpec;
 public class PasswordUtils {
   /**
    * Generates a cryptographically-secure salted password.
+   *
+   * The result is self-describing: a HEADER_LENGTH-byte header (magic, format version,
+   * algorithm, iteration count, key length and salt length), followed by the salt and then
+   * the salted hash.  The current hashing parameters are used; see CURRENT_ALGORITHM.
    */
   public static byte[] saltAndHashPassword(String password) {
     byte[] salt = generateSalt();
     byte[] saltedHash = hashWithSalt(password, salt);
 
-    // combine the salt and the salted hash into a single byte array that
+    // combine the header, the salt and the salted hash into a single byte array that
     // can be written to the database
-    byte[] saltPlusSaltedHash = new byte[salt.length + saltedHash.length];
-    System.arraycopy(salt, 0, saltPlusSaltedHash, 0, salt.length); 
-    System.arraycopy(saltedHash, 0, saltPlusSaltedHash, salt.length, saltedHash.length);
-    return saltPlusSaltedHash;
+    ByteBuffer blob = ByteBuffer.allocate(HEADER_LENGTH + salt.length + saltedHash.length);
+    blob.put(MAGIC);
+    blob.put(FORMAT_VERSION);
+    blob.put(algorithmId(CURRENT_ALGORITHM));
+    blob.putInt(CURRENT_ITERATIONS);
+    blob.putShort((short) CURRENT_KEY_LENGTH_BYTES);
+    blob.put((byte) salt.length);
+    blob.put(salt);
+    blob.put(saltedHash);
+    return blob.array();
   }
 
   /**
    * Verifies whether the plaintext password can be hashed to provided salted hashed password.
+   * Both the self-describing format and the legacy headerless format (16-byte salt followed by
+   * a 128-byte PBKDF2WithHmacSHA1 hash with 65536 iterations) are accepted.
    */
   public static boolean plaintextMatchesSaltedHash(String plaintext, byte[] saltedHashed) {
-    // extract the salt from the byte array (ie, undo the logic you implemented in 
-    // saltAndHashPassword), then use it to check whether the user-provided plaintext
-    // password matches the password hash.
-
-    // stores salt from saltedHash (front of saltedHashed)
-    byte[] salt = new byte[SALT_LENGTH_BYTES]; 
-    System.arraycopy(saltedHashed, 0, salt, 0, SALT_LENGTH_BYTES);
-
-    // stores just the salted/hashed password from saltedHashed (exlcuding salt)
-    byte[] candidateSaltedHashed = new byte[saltedHashed.length - SALT_LENGTH_BYTES]; 
-    System.arraycopy(saltedHashed, SALT_LENGTH_BYTES, 
-                     candidateSaltedHashed, 0, candidateSaltedHashed.length); 
+    StoredHash stored = StoredHash.parse(saltedHashed);
+    if (stored == null) {
+      return false;
+    }
 
     // stores the salted and hashed version of potential plaintext password
-    byte[] plaintextSaltedHash = hashWithSalt(plaintext, salt);
+    byte[] plaintextSaltedHash = hashWithSalt(plaintext, stored.salt, stored.algorithm,
+                                              stored.iterations, stored.hash.length);
 
-    // return the comparison
-    return Arrays.equals(plaintextSaltedHash, candidateSaltedHashed);
+    // return the (constant-time) comparison
+    return MessageDigest.isEqual(plaintextSaltedHash, stored.hash);
+  }
+
+  /**
+   * Whether the salted hashed password was produced with different parameters than the current
+   * ones (including the legacy format), and so should be replaced with a fresh hash the next
+   * time the plaintext password is known to be correct.
+   */
+  public static boolean needsRehash(byte[] saltedHashed) {
+    StoredHash stored = StoredHash.parse(saltedHashed);
+    return stored == null
+        || !stored.algorithm.equals(CURRENT_ALGORITHM)
+        || stored.iterations != CURRENT_ITERATIONS
+        || stored.hash.length != CURRENT_KEY_LENGTH_BYTES
+        || stored.salt.length != SALT_LENGTH_BYTES;
   }
   
-  // Password hashing parameter constants.
-  private static final int HASH_STRENGTH = 65536;
-  private static final int KEY_LENGTH_BYTES = 128;
+  /**
+   * Same as saltAndHashPassword(), but the hashing runs on the hashing pool.  If the pool's queue
+   * is full, the future fails with a RejectedExecutionException.
+   */
+  public static CompletableFuture<byte[]> saltAndHashPasswordAsync(String password) {
+    return submit(() -> saltAndHashPassword(password));
+  }
+
+  /**
+   * Same as plaintextMatchesSaltedHash(), but the hashing runs on the hashing pool.  If the
+   * pool's queue is full, the future fails with a RejectedExecutionException.
+   */
+  public static CompletableFuture<Boolean> plaintextMatchesSaltedHashAsync(String plaintext,
+                                                                          byte[] saltedHashed) {
+    return submit(() -> plaintextMatchesSaltedHash(plaintext, saltedHashed));
+  }
+
+  private static <T> CompletableFuture<T> submit(Supplier<T> hashing) {
+    try {
+      return CompletableFuture.supplyAsync(hashing, HASH_POOL);
+    } catch (RejectedExecutionException e) {
+      hashRejections.increment();
+      return CompletableFuture.failedFuture(e);
+    }
+  }
+
+  /**
+   * Number of hashing tasks waiting for a free worker
+   */
+  public static int hashQueueDepth() {
+    return HASH_POOL.getQueue().size();
+  }
+
+  /**
+   * Number of workers currently hashing
+   */
+  public static int hashActiveCount() {
+    return HASH_POOL.getActiveCount();
+  }
+
+  /**
+   * Number of hashing tasks turned away because the queue was full
+   */
+  public static long hashRejectedCount() {
+    return hashRejections.sum();
+  }
+
+  /**
+   * Formats the hashing pool's load as one line, for the "stats" command
+   */
+  static String report() {
+    return String.format("password_hashing: threads=%d active=%d queued=%d/%d rejected=%d\n",
+                         HASH_POOL_THREADS, hashActiveCount(), hashQueueDepth(),
+                         HASH_POOL_QUEUE_SIZE, hashRejectedCount());
+  }
+
+  // Password hashing parameters used for new hashes.  These can be tuned per deployment;
+  // existing hashes stay verifiable since the parameters are recorded in each one.
+  private static final String CURRENT_ALGORITHM =
+      System.getProperty("flightapp.password.algorithm", "PBKDF2WithHmacSHA256");
+  private static final int CURRENT_ITERATIONS =
+      Integer.getInteger("flightapp.password.iterations", 65536);
+  private static final int CURRENT_KEY_LENGTH_BYTES =
+      Integer.getInteger("flightapp.password.key_length", 32);
   private static final int SALT_LENGTH_BYTES = 16;
 
+  // Supported algorithms; a hash records its algorithm as the index into this array.
+  private static final String[] ALGORITHMS = {
+    "PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256", "PBKDF2WithHmacSHA512"
+  };
+
+  // Self-describing format: "PWH", version, algorithm, iterations (4 bytes), key length
+  // (2 bytes), salt length
+  private static final byte[] MAGIC = {'P', 'W', 'H'};
+  private static final byte FORMAT_VERSION = 1;
+  private static final int HEADER_LENGTH = 12;
+
+  // The salted_hashed_password column is a VARBINARY(144)
+  private static final int MAX_HASH_BLOB_LENGTH = 144;
+
+  // Parameters of the original, headerless format
+  private static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+  private static final int LEGACY_ITERATIONS = 65536;
+  private static final int LEGACY_KEY_LENGTH_BYTES = 128;
+
+  static {
+    algorithmId(CURRENT_ALGORITHM);
+    if (HEADER_LENGTH + SALT_LENGTH_BYTES + CURRENT_KEY_LENGTH_BYTES > MAX_HASH_BLOB_LENGTH) {
+      throw new IllegalStateException("flightapp.password.key_length is too large: "
+                                      + CURRENT_KEY_LENGTH_BYTES);
+    }
+  }
+
+  // Hashing pool parameters; the pool is CPU-bound, so it defaults to one worker per core.
+  private static final int HASH_POOL_THREADS =
+      Integer.getInteger("flightapp.hash_pool.threads", Runtime.getRuntime().availableProcessors());
+  private static final int HASH_POOL_QUEUE_SIZE =
+      Integer.getInteger("flightapp.hash_pool.queue_size", 1024);
+
+  /**
+   * Dedicated, bounded pool that runs the PBKDF2 hashing for the *Async methods, and nothing
+   * else (in particular, no database work).  Once its queue is full, new hashing is rejected, so
+   * that an overloaded server fails logins fast rather than hashing on the callers' threads,
+   * which may be holding connections.
+   */
+  private static final ThreadPoolExecutor HASH_POOL = new ThreadPoolExecutor(
+      HASH_POOL_THREADS, HASH_POOL_THREADS, 0L, TimeUnit.MILLISECONDS,
+      new ArrayBlockingQueue<>(HASH_POOL_QUEUE_SIZE),
+      new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "password-hasher-" + count.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        }
+      },
+      new ThreadPoolExecutor.AbortPolicy());
+
+  private static final LongAdder hashRejections = new LongAdder();
+
+  /**
+   * SecretKeyFactory.getInstance() does a provider lookup on every call, and factories aren't
+   * thread-safe, so each thread keeps its own (one per algorithm).
+   */
+  private static final ThreadLocal<Map<String, SecretKeyFactory>> KEY_FACTORIES =
+      ThreadLocal.withInitial(HashMap::new);
+
   /**
    * Generate a small bit of randomness to serve as a password "salt"
    */
@@ -73,25 +229,96 @@ public class PasswordUtils {
   }
 
   /**
-   * Uses the provided salt to generate a cryptographically-secure hash of the provided password.
-   * The resultant byte array will be KEY_LENGTH_BYTES bytes long.
+   * Uses the provided salt to generate a cryptographically-secure hash of the provided password,
+   * using the current hashing parameters.  The resultant byte array will be
+   * CURRENT_KEY_LENGTH_BYTES bytes long.
    */
   static byte[] hashWithSalt(String password, byte[] salt)
     throws IllegalStateException {
+    return hashWithSalt(password, salt, CURRENT_ALGORITHM, CURRENT_ITERATIONS,
+                        CURRENT_KEY_LENGTH_BYTES);
+  }
+
+  /**
+   * Uses the provided salt to generate a cryptographically-secure hash of the provided password,
+   * using the given hashing parameters.
+   */
+  static byte[] hashWithSalt(String password, byte[] salt, String algorithm, int iterations,
+                             int keyLengthBytes)
+    throws IllegalStateException {
     // Specify the hash parameters, including the salt
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt,
-                                  HASH_STRENGTH, KEY_LENGTH_BYTES * 8 /* length in bits */);
+                                  iterations, keyLengthBytes * 8 /* length in bits */);
 
     // Hash the whole thing
-    SecretKeyFactory factory = null;
-    byte[] hash = null; 
     try {
-      factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-      hash = factory.generateSecret(spec).getEncoded();
-      return hash;
+      SecretKeyFactory factory = KEY_FACTORIES.get().get(algorithm);
+      if (factory == null) {
+        factory = SecretKeyFactory.getInstance(algorithm);
+        KEY_FACTORIES.get().put(algorithm, factory);
+      }
+      return factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-      throw new IllegalStateException();
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private static byte algorithmId(String algorithm) {
+    for (int i = 0; i < ALGORITHMS.length; i++) {
+      if (ALGORITHMS[i].equals(algorithm)) {
+        return (byte) i;
+      }
     }
+    throw new IllegalStateException("Unsupported password hashing algorithm: " + algorithm);
   }
 
+  /**
+   * A salted hashed password, decoded from its stored form
+   */
+  private static class StoredHash {
+    String algorithm;
+    int iterations;
+    byte[] salt;
+    byte[] hash;
+
+    /**
+     * Decodes either format; returns null if the blob is in neither.
+     */
+    static StoredHash parse(byte[] blob) {
+      StoredHash stored = new StoredHash();
+      ByteBuffer in = ByteBuffer.wrap(blob);
+
+      if (blob.length >= HEADER_LENGTH
+          && Arrays.equals(Arrays.copyOf(blob, MAGIC.length), MAGIC)
+          && blob[MAGIC.length] == FORMAT_VERSION) {
+        in.position(MAGIC.length + 1);
+        int algorithmId = in.get();
+        stored.iterations = in.getInt();
+        int keyLength = in.getShort() & 0xFFFF;
+        int saltLength = in.get() & 0xFF;
+        if (algorithmId >= 0 && algorithmId < ALGORITHMS.length
+            && stored.iterations > 0 && keyLength > 0
+            && HEADER_LENGTH + saltLength + keyLength == blob.length) {
+          stored.algorithm = ALGORITHMS[algorithmId];
+          stored.salt = new byte[saltLength];
+          stored.hash = new byte[keyLength];
+          in.get(stored.salt);
+          in.get(stored.hash);
+          return stored;
+        }
+        in.rewind();
+      }
+
+      if (blob.length == SALT_LENGTH_BYTES + LEGACY_KEY_LENGTH_BYTES) {
+        stored.algorithm = LEGACY_ALGORITHM;
+        stored.iterations = LEGACY_ITERATIONS;
+        stored.salt = new byte[SALT_LENGTH_BYTES];
+        stored.hash = new byte[LEGACY_KEY_LENGTH_BYTES];
+        in.get(stored.salt);
+        in.get(stored.hash);
+        return stored;
+      }
+      return null;
+    }
+  }
 }
@@ -1,12 +1,17 @@
 package flightapp;
 
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Runs queries against a back-end database
@@ -21,21 +26,26 @@ public class Query extends QueryAbstract {
   "SELECT COUNT(*) AS count " +
   "FROM Reservations_sknguyen " +
   "WHERE first_flight_id = ? OR second_flight_id = ?";
-  private PreparedStatement flightCapacityStmt;
 
-  // Clear tables
+  // Clear tables (Users can't be truncated, since Reservations refers to it)
   private static final String CLEAR_USERS_SQL = "DELETE FROM Users_sknguyen";
-  private PreparedStatement clearUsersStmt;
   private static final String CLEAR_RESERVATIONS_SQL = "DELETE FROM Reservations_sknguyen";
-  private PreparedStatement clearReservationsStmt;
+  private static final String TRUNCATE_RESERVATIONS_SQL = "TRUNCATE TABLE Reservations_sknguyen";
+  private static final String TRUNCATE_LEDGER_SQL = "TRUNCATE TABLE ReservationLedger_sknguyen";
+
+  // Snapshots are copies of the tables, named Snapshot_[name]_[table]
+  private static final String SNAPSHOT_EXISTS_SQL = "SELECT OBJECT_ID(?) AS id";
+  private static final String[] SNAPSHOT_TABLES = { "Users_sknguyen", "Reservations_sknguyen" };
+  private static final String LEDGER_TABLE = "ReservationLedger_sknguyen";
 
   // Create Customer
   private static final String INSERT_USER_SQL = "INSERT INTO Users_sknguyen VALUES (?,?,?)"; 
-  private PreparedStatement insertUserStmt;
 
   // Login
   private static final String GET_USER_SQL = "SELECT salted_hashed_password FROM Users_sknguyen WHERE username = ?";
-  private PreparedStatement getUserStmt;
+  private static final String UPDATE_USER_PASSWORD_SQL =
+    "UPDATE Users_sknguyen SET salted_hashed_password = ? " +
+    "WHERE username = ? AND salted_hashed_password = ?";
 
   // Search
   private static final String GET_ONE_HOP_SQL = 
@@ -46,7 +56,6 @@ public class Query extends QueryAbstract {
     "AND day_of_month = ? " +
     "AND canceled = 0 " + 
     "ORDER BY actual_time ASC";
-  private PreparedStatement getOneHopStmt;
   private static final String GET_TWO_HOP_SQL = 
     "SELECT TOP (?) " +
     "F1.fid AS F1_fid, F1.day_of_month AS F1_day_of_month, F1.carrier_id AS F1_carrier_id, F1.flight_num AS F1_flight_num, " +
@@ -63,24 +72,50 @@ public class Query extends QueryAbstract {
     "AND F1.canceled = 0 AND F2.canceled = 0 " +
     "AND F1.day_of_month = F2.day_of_month " +
     "ORDER BY total_time ASC";
-  private PreparedStatement getTwoHopStmt;
 
-  // Reservation
-  private static final String GET_USER_RES_SQL = "SELECT * FROM Reservations_sknguyen WHERE res_username = ?";
-  private PreparedStatement getUserResStmt;
-  private static final String GET_FLIGHT_SQL = "SELECT * FROM Flights WHERE fid = ?";
-  private PreparedStatement getFlightStmt;
+  // The same searches on the Routes table (see RouteTable), whose rows are the non-canceled
+  // flights
+  private static final String GET_ONE_HOP_ROUTES_SQL = 
+    "SELECT TOP (?) fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price " +
+    "FROM Routes_sknguyen " +
+    "WHERE origin_city = ? " +
+    "AND dest_city = ? " + 
+    "AND day_of_month = ? " +
+    "ORDER BY actual_time ASC";
+  private static final String GET_TWO_HOP_ROUTES_SQL = 
+    "SELECT TOP (?) " +
+    "F1.fid AS F1_fid, F1.day_of_month AS F1_day_of_month, F1.carrier_id AS F1_carrier_id, F1.flight_num AS F1_flight_num, " +
+    "F1.origin_city AS F1_origin_city, F1.dest_city AS F1_dest_city, F1.actual_time AS F1_actual_time, F1.capacity AS F1_capacity, " +
+    "F1.price AS F1_price, " +
+    "F2.fid AS F2_fid, F2.day_of_month AS F2_day_of_month, F2.carrier_id AS F2_carrier_id, F2.flight_num AS F2_flight_num, " +
+    "F2.origin_city AS F2_origin_city, F2.dest_city AS F2_dest_city, F2.actual_time AS F2_actual_time, F2.capacity AS F2_capacity, " +
+    "F2.price AS F2_price, " +
+    "(F1.actual_time + F2.actual_time) AS total_time " +
+    "FROM Routes_sknguyen AS F1, Routes_sknguyen AS F2 " +
+    "WHERE F1.origin_city = ? AND F2.dest_city = ? " + 
+    "AND F1.dest_city = F2.origin_city " +
+    "AND F1.day_of_month = ? " + 
+    "AND F2.day_of_month = ? " +
+    "ORDER BY total_time ASC";
+
+  // Reservation (keyset-paginated on reservation_id; the flights themselves come from the
+  // shared FlightCache)
+  private static final String GET_USER_RES_PAGE_SQL = 
+    "SELECT TOP (?) reservation_id, is_paid, first_flight_id, second_flight_id " +
+    "FROM Reservations_sknguyen " +
+    "WHERE res_username = ? AND reservation_id > ? " +
+    "ORDER BY reservation_id ASC";
+
+  // Number of reservations held in memory at a time while listing all of a user's reservations
+  private static final int RESERVATIONS_PAGE_SIZE = 500;
 
   // Book
-  private static final String GET_RES_DATES_SQL = 
-    "SELECT day_of_month " + 
-    "FROM Reservations_sknguyen AS R, Flights AS F " + 
-    "WHERE R.res_username = ? AND F.fid = R.first_flight_id";
-  private PreparedStatement getResDatesStmt;
+  private static final String GET_RES_FLIGHTS_SQL = 
+    "SELECT first_flight_id " + 
+    "FROM Reservations_sknguyen " + 
+    "WHERE res_username = ?";
   private static final String INSERT_RES_SQL = "INSERT INTO Reservations_sknguyen VALUES (?, ?, 0, ?, ?, ?)";
-  private PreparedStatement insertResStmt;
   private static final String GET_NUM_RES_SQL = "SELECT COUNT(*) AS count FROM Reservations_sknguyen";
-  private PreparedStatement getNumResStmt; 
   
 
   // Pay
@@ -88,13 +123,73 @@ public class Query extends QueryAbstract {
     "SELECT * " +
     "FROM Reservations_sknguyen " +
     "WHERE reservation_id = ? AND res_username = ?";
-  private PreparedStatement getResStmt;
   private static final String GET_USER_BAL_SQL = "SELECT balance FROM Users_sknguyen WHERE username = ?";
-  private PreparedStatement getUserBalStmt;
   private static final String UPDATE_USER_BAL_SQL = "UPDATE Users_sknguyen SET balance = ? WHERE username = ?";
-  private PreparedStatement updateUserBalStmt;
   private static final String UPDATE_RES_TO_PAID_SQL = "UPDATE Reservations_sknguyen SET is_paid = 1 WHERE reservation_id = ?";
-  private PreparedStatement updateResToPaidStmt;
+
+  // Sharded booking: the primary database keeps a ledger of every shard's reservations, which
+  // allocates the reservation IDs and is what capacity and same-day checks are made against.  An
+  // entry is pending until its reservation has been inserted on the shard, then confirmed.
+  private static final String CLEAR_LEDGER_SQL = "DELETE FROM ReservationLedger_sknguyen";
+  private static final String GET_LEDGER_FLIGHTS_SQL =
+    "SELECT first_flight_id FROM ReservationLedger_sknguyen WHERE res_username = ?";
+  private static final String LEDGER_CAPACITY_SQL =
+    "SELECT COUNT(*) AS count " +
+    "FROM ReservationLedger_sknguyen " +
+    "WHERE first_flight_id = ? OR second_flight_id = ?";
+  // MAX rather than COUNT, since a ledger entry is deleted if its shard insert fails
+  private static final String GET_MAX_LEDGER_ID_SQL =
+    "SELECT ISNULL(MAX(reservation_id), 0) AS max_id FROM ReservationLedger_sknguyen";
+  private static final String INSERT_LEDGER_SQL =
+    "INSERT INTO ReservationLedger_sknguyen " +
+    "(reservation_id, res_username, first_flight_id, second_flight_id) VALUES (?, ?, ?, ?)";
+  private static final String CONFIRM_LEDGER_SQL =
+    "UPDATE ReservationLedger_sknguyen SET confirmed = 1 " +
+    "WHERE reservation_id = ? AND res_username = ? AND confirmed = 0";
+  private static final String DELETE_PENDING_LEDGER_SQL =
+    "DELETE FROM ReservationLedger_sknguyen WHERE reservation_id = ? AND confirmed = 0";
+  private static final String GET_PENDING_LEDGER_SQL =
+    "SELECT reservation_id, res_username FROM ReservationLedger_sknguyen " +
+    "WHERE confirmed = 0 AND reserved_at <= DATEADD(SECOND, -?, SYSUTCDATETIME())";
+  private static final String GET_SHARD_RES_SQL =
+    "SELECT 1 FROM Reservations_sknguyen WHERE reservation_id = ? AND res_username = ?";
+  private static final String DELETE_SHARD_RES_SQL =
+    "DELETE FROM Reservations_sknguyen WHERE reservation_id = ? AND res_username = ?";
+  // reserveInLedger() results that aren't reservation IDs
+  private static final int SAME_DAY = -1;
+  private static final int FULL = 0;
+
+  // When sharded, the first session in the process settles the ledger entries left pending for
+  // longer than this (eg, by a process that died mid-booking); see reconcileLedger().  It must
+  // be longer than any booking takes.
+  private static final int LEDGER_PENDING_SECS =
+    Integer.getInteger("flightapp.ledger.pending_secs", 60);
+  private static final AtomicBoolean ledgerReconciled = new AtomicBoolean(false);
+
+  // TRUNCATE needs ALTER permission on the table; without it, tables are cleared with DELETE
+  private static volatile boolean canTruncate = true;
+
+  // Whether to search the Routes table rather than Flights: if it exists and has a route per
+  // non-canceled flight (checked once, by the first session), unless "flightapp.search.routes"
+  // is false
+  private static final boolean SEARCH_ROUTES_ALLOWED =
+    Boolean.parseBoolean(System.getProperty("flightapp.search.routes", "true"));
+  private static volatile Boolean searchRoutes;
+
+  // Runs the database work that follows a password hash (eg, inserting the new user), so that it
+  // neither ties up the CPU-bound hashing pool waiting for a connection nor runs on the command's
+  // thread, which may still hold the command's connection.  Its threads only wait on the
+  // connection pool, one per login or create in flight; all hashing stays on PasswordUtils'
+  // bounded pool.
+  private static final ExecutorService AFTER_HASHING = Executors.newCachedThreadPool(r -> {
+    Thread t = new Thread(r, "after-hashing");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static {
+    StatementProfiler.registerNames(Query.class);
+  }
 
   //
   // Instance variables
@@ -103,7 +198,110 @@ public class Query extends QueryAbstract {
   private List<Itinerary> itineraries;
 
   protected Query() throws SQLException, IOException {
-    prepareStatements();
+    super();
+    startSession();
+  }
+
+  /**
+   * A session that borrows all its connections from the given pool, with no read pool or shards
+   */
+  Query(ConnectionPool pool) throws SQLException {
+    super(pool);
+    startSession();
+  }
+
+  /**
+   * A session whose users are sharded across the given pools, with no separate read pools
+   */
+  Query(ConnectionPool pool, ConnectionPool[] shardPools) throws SQLException {
+    super(pool, pool, shardPools, shardPools);
+    startSession();
+  }
+
+  private void startSession() throws SQLException {
+    withConnection(pooled -> {
+      if (searchRoutes == null) {
+        searchRoutes = SEARCH_ROUTES_ALLOWED && routesAreSearchable(pooled.getConnection());
+      }
+      FlightCache.warmUpIfConfigured(pooled.getConnection());
+      return null;
+    });
+    if (isSharded() && ledgerReconciled.compareAndSet(false, true)) {
+      int deleted = reconcileLedger(LEDGER_PENDING_SECS);
+      if (deleted > 0) {
+        System.err.println("Deleted " + deleted + " pending ledger entries with no reservation");
+      }
+    }
+  }
+
+  /**
+   * Settles the ledger entries that have been pending for at least pendingSecs: those whose
+   * reservation is on the user's shard are confirmed, and the rest (left by a booking whose shard
+   * insert failed, or whose process died) are deleted, so they stop taking up capacity.  Each
+   * step borrows its own connection.
+   *
+   * @return the number of entries deleted
+   */
+  int reconcileLedger(int pendingSecs) throws SQLException {
+    Map<Integer, String> pending = withConnection(pooled -> {
+      PreparedStatement getPendingStmt = pooled.prepareStatement(GET_PENDING_LEDGER_SQL);
+      getPendingStmt.clearParameters();
+      getPendingStmt.setInt(1, pendingSecs);
+      Map<Integer, String> entries = new HashMap<>();
+      try (ResultSet rs = getPendingStmt.executeQuery()) {
+        while (rs.next()) {
+          entries.put(rs.getInt("reservation_id"), rs.getString("res_username"));
+        }
+      }
+      return entries;
+    });
+
+    int deleted = 0;
+    for (Map.Entry<Integer, String> entry : pending.entrySet()) {
+      int reservationId = entry.getKey();
+      String username = entry.getValue();
+      boolean onShard = withConnection(username, pooled -> {
+        PreparedStatement getShardResStmt = pooled.prepareStatement(GET_SHARD_RES_SQL);
+        getShardResStmt.clearParameters();
+        getShardResStmt.setInt(1, reservationId);
+        getShardResStmt.setString(2, username);
+        try (ResultSet rs = getShardResStmt.executeQuery()) {
+          return rs.next();
+        }
+      });
+      if (onShard) {
+        confirmInLedger(reservationId, username);
+      } else {
+        deleted += deletePendingFromLedger(reservationId);
+      }
+    }
+    return deleted;
+  }
+
+  // Whether the Routes table exists, and has as many routes as there are flights to search
+  private static boolean routesAreSearchable(Connection conn) throws SQLException {
+    if (!RouteTable.exists(conn)) {
+      return false;
+    }
+    if (!RouteTable.countMatches(conn)) {
+      System.err.println(RouteTable.TABLE + " doesn't have a route per non-canceled flight, so "
+                         + "searching Flights instead; rebuild it with --rebuild-routes");
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Overrides whether sessions search the Routes table rather than Flights, eg to compare the
+   * two in tests.  With null, the next session created checks again.
+   */
+  static void setSearchRoutes(Boolean routes) {
+    searchRoutes = routes;
+  }
+
+  @Override
+  protected String getLoggedInUser() {
+    return currentLogInUser;
   }
 
   /**
@@ -113,50 +311,171 @@ public class Query extends QueryAbstract {
    */
   public void clearTables() {
     try {
-      clearReservationsStmt.executeUpdate();
-      clearUsersStmt.executeUpdate();
+      withEachShard(pooled -> {
+        clearUsersAndReservations(pooled);
+        return null;
+      });
+      if (isSharded()) {
+        withConnection(pooled -> {
+          clearTable(pooled, TRUNCATE_LEDGER_SQL, CLEAR_LEDGER_SQL);
+          return null;
+        });
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
   }
 
-  /*
-   * prepare all the SQL statements in this method.
-   */
-  private void prepareStatements() throws SQLException {
-    flightCapacityStmt = conn.prepareStatement(FLIGHT_CAPACITY_SQL);
+  private static void clearUsersAndReservations(ConnectionPool.PooledConnection pooled)
+      throws SQLException {
+    clearTable(pooled, TRUNCATE_RESERVATIONS_SQL, CLEAR_RESERVATIONS_SQL);
+    pooled.prepareStatement(CLEAR_USERS_SQL).executeUpdate();
+  }
 
-    clearUsersStmt = conn.prepareStatement(CLEAR_USERS_SQL);
-    clearReservationsStmt = conn.prepareStatement(CLEAR_RESERVATIONS_SQL);
+  // TRUNCATE deallocates the table's pages instead of logging each deleted row
+  private static void clearTable(ConnectionPool.PooledConnection pooled, String truncateSql,
+                                 String deleteSql) throws SQLException {
+    if (canTruncate) {
+      try (Statement stmt = pooled.getConnection().createStatement()) {
+        stmt.executeUpdate(truncateSql);
+        return;
+      } catch (SQLException e) {
+        System.err.println("Can't truncate tables, deleting their rows instead: " + e.getMessage());
+        canTruncate = false;
+      }
+    }
+    pooled.prepareStatement(deleteSql).executeUpdate();
+  }
 
-    insertUserStmt = conn.prepareStatement(INSERT_USER_SQL);
-    getUserStmt = conn.prepareStatement(GET_USER_SQL);
+  /* See QueryAbstract.java for javadoc */
+  public void saveSnapshot(String name) throws SQLException {
+    checkSnapshotName(name);
+    withEachShard(pooled -> {
+      copyToSnapshot(pooled, name, SNAPSHOT_TABLES);
+      return null;
+    });
+    if (isSharded()) {
+      withConnection(pooled -> {
+        copyToSnapshot(pooled, name, LEDGER_TABLE);
+        return null;
+      });
+    }
+  }
 
-    getOneHopStmt = conn.prepareStatement(GET_ONE_HOP_SQL);
-    getTwoHopStmt = conn.prepareStatement(GET_TWO_HOP_SQL);
+  // SELECT INTO copies each table in a single, minimally logged statement, to a new table that
+  // then replaces the old snapshot's in one transaction, so a failed save leaves it intact
+  private static void copyToSnapshot(ConnectionPool.PooledConnection pooled, String name,
+                                     String... tables) throws SQLException {
+    try (Statement stmt = pooled.getConnection().createStatement()) {
+      for (String table : tables) {
+        String copy = snapshotTable(name, table) + "_new";
+        stmt.executeUpdate("IF OBJECT_ID('" + copy + "') IS NOT NULL DROP TABLE " + copy);
+        stmt.executeUpdate("SELECT * INTO " + copy + " FROM " + table);
+      }
+    }
+    inTransaction(pooled, p -> {
+      try (Statement stmt = p.getConnection().createStatement()) {
+        for (String table : tables) {
+          String snapshot = snapshotTable(name, table);
+          stmt.executeUpdate("IF OBJECT_ID('" + snapshot + "') IS NOT NULL DROP TABLE " + snapshot);
+          stmt.executeUpdate("EXEC sp_rename '" + snapshot + "_new', '" + snapshot + "'");
+        }
+      }
+      return null;
+    });
+  }
 
-    getUserResStmt = conn.prepareStatement(GET_USER_RES_SQL);
-    getFlightStmt = conn.prepareStatement(GET_FLIGHT_SQL);
+  /* See QueryAbstract.java for javadoc */
+  public boolean restoreSnapshot(String name) throws SQLException {
+    checkSnapshotName(name);
+    // Check for every table's snapshot before clearing anything
+    boolean[] exists = { true };
+    withEachShard(pooled -> {
+      for (String table : SNAPSHOT_TABLES) {
+        exists[0] &= snapshotExists(pooled, name, table);
+      }
+      return null;
+    });
+    if (isSharded()) {
+      exists[0] &= withConnection(pooled -> snapshotExists(pooled, name, LEDGER_TABLE));
+    }
+    if (!exists[0]) {
+      return false;
+    }
 
-    getResDatesStmt = conn.prepareStatement(GET_RES_DATES_SQL);
-    insertResStmt = conn.prepareStatement(INSERT_RES_SQL);
-    getNumResStmt = conn.prepareStatement(GET_NUM_RES_SQL);
+    withEachShard(pooled -> inTransaction(pooled, p -> {
+      clearUsersAndReservations(p);
+      for (String table : SNAPSHOT_TABLES) {
+        copyFromSnapshot(p, name, table);
+      }
+      return null;
+    }));
+    if (isSharded()) {
+      withConnection(pooled -> inTransaction(pooled, p -> {
+        clearTable(p, TRUNCATE_LEDGER_SQL, CLEAR_LEDGER_SQL);
+        copyFromSnapshot(p, name, LEDGER_TABLE);
+        return null;
+      }));
+    }
+    return true;
+  }
+
+  // Runs the work in one transaction, which is rolled back if it fails
+  private static <T> T inTransaction(ConnectionPool.PooledConnection pooled,
+                                     ConnectionWork<T> work) throws SQLException {
+    Connection c = pooled.getConnection();
+    c.setAutoCommit(false);
+    try {
+      T result = work.run(pooled);
+      c.commit();
+      return result;
+    } catch (SQLException e) {
+      c.rollback();
+      throw e;
+    } finally {
+      c.setAutoCommit(true);
+    }
+  }
 
-    getResStmt = conn.prepareStatement(GET_RES_SQL);
-    getUserBalStmt = conn.prepareStatement(GET_USER_BAL_SQL);
-    updateUserBalStmt = conn.prepareStatement(UPDATE_USER_BAL_SQL);
-    updateResToPaidStmt = conn.prepareStatement(UPDATE_RES_TO_PAID_SQL);
+  private static boolean snapshotExists(ConnectionPool.PooledConnection pooled, String name,
+                                        String table) throws SQLException {
+    PreparedStatement existsStmt = pooled.prepareStatement(SNAPSHOT_EXISTS_SQL);
+    existsStmt.setString(1, snapshotTable(name, table));
+    try (ResultSet rs = existsStmt.executeQuery()) {
+      rs.next();
+      rs.getInt("id");
+      return !rs.wasNull();
+    }
+  }
+
+  // TABLOCK lets SQL Server log the insert minimally, as for a bulk load
+  private static void copyFromSnapshot(ConnectionPool.PooledConnection pooled, String name,
+                                       String table) throws SQLException {
+    try (Statement stmt = pooled.getConnection().createStatement()) {
+      stmt.executeUpdate("INSERT INTO " + table + " WITH (TABLOCK) SELECT * FROM "
+                         + snapshotTable(name, table));
+    }
+  }
+
+  private static String snapshotTable(String name, String table) {
+    return "Snapshot_" + name + "_" + table;
   }
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_login(String username, String password) {
+    return transaction_loginAsync(username, password).join();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public CompletableFuture<String> transaction_loginAsync(String username, String password) {
     try {
       // check if there's a user logged in
       if (currentLogInUser != null) {
-        return "User already logged in\n";
+        return CompletableFuture.completedFuture("User already logged in\n");
       }
       
       String lcUsername = username.toLowerCase();
+      PreparedStatement getUserStmt = prepare(GET_USER_SQL);
       getUserStmt.clearParameters();
       getUserStmt.setString(1, lcUsername);
       ResultSet userResults = getUserStmt.executeQuery();
@@ -164,51 +483,148 @@ public class Query extends QueryAbstract {
 
       // check if user exists
       if (!userExists) {
-        return "Login failed\n"; 
+        userResults.close();
+        return CompletableFuture.completedFuture("Login failed\n"); 
       }
 
       // get the salted/hashed password
       byte[] storedPassword = userResults.getBytes("salted_hashed_password");
       userResults.close();
 
-      boolean correctPassword = PasswordUtils.plaintextMatchesSaltedHash(password, storedPassword);
-      if (correctPassword) {
-        currentLogInUser = lcUsername;
-        itineraries = null;
-        return "Logged in as " + username + "\n";
-      }
-      return "Login failed\n";
+      // the database work is done; hash on the hashing pool
+      return PasswordUtils.plaintextMatchesSaltedHashAsync(password, storedPassword)
+        .thenApplyAsync(correctPassword -> {
+          if (correctPassword) {
+            if (PasswordUtils.needsRehash(storedPassword)) {
+              // in the background, so the login doesn't wait for a second hash
+              rehashPassword(lcUsername, password, storedPassword);
+            }
+            currentLogInUser = lcUsername;
+            itineraries = null;
+            return "Logged in as " + username + "\n";
+          }
+          return "Login failed\n";
+        }, AFTER_HASHING)
+        .exceptionally(e -> {
+          e.printStackTrace();
+          return "Login failed\n";
+        });
     } catch (Exception e) {
       e.printStackTrace();
-      return "Login failed\n";
+      return CompletableFuture.completedFuture("Login failed\n");
     }
   }
 
+  /**
+   * Starts replacing a user's stored password hash with one made using the current hashing
+   * parameters, once the password is known to be correct.  The new hash is made on the hashing
+   * pool, and the update runs on AFTER_HASHING, on a connection of its own.  The update only
+   * applies if the stored hash hasn't changed in the meantime, and failures (including a full
+   * hashing pool) are logged rather than failing the login; the hash is then replaced at a later
+   * login.
+   */
+  private CompletableFuture<Void> rehashPassword(String lcUsername, String password,
+                                                 byte[] oldSaltedHash) {
+    return PasswordUtils.saltAndHashPasswordAsync(password)
+      .thenAcceptAsync(saltedHash -> {
+        try {
+          withConnection(lcUsername, pooled -> {
+            PreparedStatement updateUserPasswordStmt =
+              pooled.prepareStatement(UPDATE_USER_PASSWORD_SQL);
+            updateUserPasswordStmt.clearParameters();
+            updateUserPasswordStmt.setBytes(1, saltedHash);
+            updateUserPasswordStmt.setString(2, lcUsername);
+            updateUserPasswordStmt.setBytes(3, oldSaltedHash);
+            return updateUserPasswordStmt.executeUpdate();
+          });
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }, AFTER_HASHING)
+      .exceptionally(e -> {
+        e.printStackTrace();
+        return null;
+      });
+  }
+
   /* See QueryAbstract.java for javadoc */
   public String transaction_createCustomer(String username, String password, int initAmount) {
+    return transaction_createCustomerAsync(username, password, initAmount).join();
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public CompletableFuture<String> transaction_createCustomerAsync(String username,
+                                                                   String password,
+                                                                   int initAmount) {
     try {
       String lcUsername = username.toLowerCase();
+      PreparedStatement getUserStmt = prepare(GET_USER_SQL);
       getUserStmt.clearParameters();
       getUserStmt.setString(1, lcUsername);
       ResultSet userResults = getUserStmt.executeQuery();
+      boolean userExists = userResults.next();
+      userResults.close();
       
       // fail if balance is negative or username already exists
-      if (initAmount < 0 || userResults.next()) {
-        return "Failed to create user\n";
+      if (initAmount < 0 || userExists) {
+        return CompletableFuture.completedFuture("Failed to create user\n");
       }
-      userResults.close();
 
-      byte[] saltPlusSaltedHash = PasswordUtils.saltAndHashPassword(password);
-      insertUserStmt.clearParameters();
-      insertUserStmt.setString(1, lcUsername);
-      insertUserStmt.setBytes(2, saltPlusSaltedHash);
-      insertUserStmt.setInt(3, initAmount);
-      insertUserStmt.executeUpdate();
-      
-      return "Created user " + username + "\n";
+      // Hash on the hashing pool, then insert.  A concurrent create of the same username makes
+      // the insert fail on the primary key, which is reported like any other duplicate.
+      return PasswordUtils.saltAndHashPasswordAsync(password)
+        .thenApplyAsync(saltPlusSaltedHash -> {
+          try {
+            withConnection(lcUsername, pooled -> {
+              PreparedStatement insertUserStmt = pooled.prepareStatement(INSERT_USER_SQL);
+              insertUserStmt.clearParameters();
+              insertUserStmt.setString(1, lcUsername);
+              insertUserStmt.setBytes(2, saltPlusSaltedHash);
+              insertUserStmt.setInt(3, initAmount);
+              return insertUserStmt.executeUpdate();
+            });
+            return "Created user " + username + "\n";
+          } catch (SQLException e) {
+            e.printStackTrace();
+            return "Failed to create user\n";
+          }
+        }, AFTER_HASHING)
+        .exceptionally(e -> {
+          e.printStackTrace();
+          return "Failed to create user\n";
+        });
     } catch (Exception e) {
       e.printStackTrace();
-      return "Failed to create user\n";
+      return CompletableFuture.completedFuture("Failed to create user\n");
+    }
+  }
+
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_importUsers(String path) {
+    try {
+      UserImporter importer = isSharded()
+        ? new UserImporter(this::insertUserOnShard, UserImporter.DEFAULT_BATCH_SIZE)
+        : new UserImporter(conn, INSERT_USER_SQL, UserImporter.DEFAULT_BATCH_SIZE);
+      return importer.importFile(path);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return "Failed to import users\n";
+    }
+  }
+
+  // Inserts an imported user on its shard; a duplicate fails on the primary key
+  private boolean insertUserOnShard(String lcUsername, byte[] saltedHash, int balance) {
+    try {
+      return withConnection(lcUsername, pooled -> {
+        PreparedStatement insertUserStmt = pooled.prepareStatement(INSERT_USER_SQL);
+        insertUserStmt.clearParameters();
+        insertUserStmt.setString(1, lcUsername);
+        insertUserStmt.setBytes(2, saltedHash);
+        insertUserStmt.setInt(3, balance);
+        return insertUserStmt.executeUpdate() == 1;
+      });
+    } catch (SQLException e) {
+      return false;
     }
   }
 
@@ -217,9 +633,9 @@ public class Query extends QueryAbstract {
                                    boolean directFlight, int dayOfMonth,
                                    int numberOfItineraries) {
     try {
-      StringBuffer sb = new StringBuffer();
-      
       // one hop itineraries
+      PreparedStatement getOneHopStmt = prepare(searchRoutes ? GET_ONE_HOP_ROUTES_SQL
+                                                             : GET_ONE_HOP_SQL);
       getOneHopStmt.clearParameters();
       getOneHopStmt.setInt(1, numberOfItineraries);
       getOneHopStmt.setString(2, originCity);
@@ -230,58 +646,32 @@ public class Query extends QueryAbstract {
 
       itineraries = new ArrayList<>();
       while (oneHopResults.next()) {
-        Flight f1 = new Flight(
-          oneHopResults.getInt("fid"),
-          oneHopResults.getInt("day_of_month"),
-          oneHopResults.getString("carrier_id"),
-          oneHopResults.getString("flight_num"),
-          oneHopResults.getString("origin_city"),
-          oneHopResults.getString("dest_city"),
-          oneHopResults.getInt("actual_time"),
-          oneHopResults.getInt("capacity"),
-          oneHopResults.getInt("price")
-        );
-
-          itineraries.add(new Itinerary(f1));
+        Flight f1 = FlightCache.fromResults(oneHopResults, "");
+        itineraries.add(new Itinerary(f1));
       }
       oneHopResults.close();
       
       int itinerariesLeft = numberOfItineraries - itineraries.size();
 
       if (!directFlight && itinerariesLeft > 0) {
+        PreparedStatement getTwoHopStmt = prepare(searchRoutes ? GET_TWO_HOP_ROUTES_SQL
+                                                               : GET_TWO_HOP_SQL);
         getTwoHopStmt.clearParameters();
         getTwoHopStmt.setInt(1, itinerariesLeft);
         getTwoHopStmt.setString(2, originCity);
         getTwoHopStmt.setString(3, destinationCity);
         getTwoHopStmt.setInt(4, dayOfMonth);
+        if (searchRoutes) {
+          // both flights' days are given, so each side of the join seeks the clustered index
+          getTwoHopStmt.setInt(5, dayOfMonth);
+        }
         
         ResultSet twoHopResults = getTwoHopStmt.executeQuery();
 
         while (twoHopResults.next()) {
-          Flight f1 = new Flight(
-            twoHopResults.getInt("F1_fid"),
-            twoHopResults.getInt("F1_day_of_month"),
-            twoHopResults.getString("F1_carrier_id"),
-            twoHopResults.getString("F1_flight_num"),
-            twoHopResults.getString("F1_origin_city"),
-            twoHopResults.getString("F1_dest_city"),
-            twoHopResults.getInt("F1_actual_time"),
-            twoHopResults.getInt("F1_capacity"),
-            twoHopResults.getInt("F1_price")
-          );
-
-          Flight f2 = new Flight(
-            twoHopResults.getInt("F2_fid"),
-            twoHopResults.getInt("F2_day_of_month"),
-            twoHopResults.getString("F2_carrier_id"),
-            twoHopResults.getString("F2_flight_num"),
-            twoHopResults.getString("F2_origin_city"),
-            twoHopResults.getString("F2_dest_city"),
-            twoHopResults.getInt("F2_actual_time"),
-            twoHopResults.getInt("F2_capacity"),
-            twoHopResults.getInt("F2_price"));
-            itineraries.add(new Itinerary(f1, f2)
-          );
+          Flight f1 = FlightCache.fromResults(twoHopResults, "F1_");
+          Flight f2 = FlightCache.fromResults(twoHopResults, "F2_");
+          itineraries.add(new Itinerary(f1, f2));
         }
         twoHopResults.close();
       }
@@ -291,12 +681,7 @@ public class Query extends QueryAbstract {
       }
 
       Collections.sort(itineraries);
-
-      for (int i = 0; i < itineraries.size(); i++) {
-        sb.append("Itinerary " + i + ": " + itineraries.get(i).toString() + "\n");
-      }
-
-      return sb.toString();
+      return formatItineraries(itineraries);
     } catch (SQLException e) {
       e.printStackTrace();
       return "Failed to search\n";
@@ -311,26 +696,35 @@ public class Query extends QueryAbstract {
       return "No such itinerary " + itineraryId + "\n";
     }
     Itinerary itnToBook = itineraries.get(itineraryId);
+    if (isSharded()) {
+      return bookOnShard(itnToBook);
+    }
 
     while (true) {
       try {
         conn.setAutoCommit(false);
-        getResDatesStmt.clearParameters();
-        getResDatesStmt.setString(1, currentLogInUser);
-        ResultSet resDatesResult = getResDatesStmt.executeQuery();
-
-        while (resDatesResult.next()) {
-          int curDay = resDatesResult.getInt("day_of_month");
-          if (itnToBook.f1.dayOfMonth == curDay) {
-            resDatesResult.close();
+        PreparedStatement getResFlightsStmt = prepare(GET_RES_FLIGHTS_SQL);
+        getResFlightsStmt.clearParameters();
+        getResFlightsStmt.setString(1, currentLogInUser);
+        ResultSet resFlightsResult = getResFlightsStmt.executeQuery();
+        List<Integer> bookedFids = new ArrayList<>();
+        while (resFlightsResult.next()) {
+          bookedFids.add(resFlightsResult.getInt("first_flight_id"));
+        }
+        resFlightsResult.close();
+
+        Collection<Flight> bookedFlights =
+          withUserConnection(false, pooled -> FlightCache.getAll(pooled, bookedFids)).values();
+        for (Flight booked : bookedFlights) {
+          if (itnToBook.f1.dayOfMonth == booked.dayOfMonth) {
             conn.rollback();
             conn.setAutoCommit(true);
             return "You cannot book two flights in the same day\n";
           }
         }
-        resDatesResult.close();
 
         if (checkFlightCapacity(itnToBook.f1)) {
+          PreparedStatement getNumResStmt = prepare(GET_NUM_RES_SQL);
           ResultSet getNumResResult = getNumResStmt.executeQuery();
           int curNumRes = 0;
           if (getNumResResult.next()) {
@@ -338,6 +732,7 @@ public class Query extends QueryAbstract {
           }
           getNumResResult.close();
 
+          PreparedStatement insertResStmt = prepare(INSERT_RES_SQL);
           insertResStmt.clearParameters();
           insertResStmt.setInt(1, curNumRes + 1);
           insertResStmt.setInt(4, itnToBook.f1.fid);
@@ -374,12 +769,182 @@ public class Query extends QueryAbstract {
           conn.rollback();
           conn.setAutoCommit(true);
         } catch (SQLException e2) {
-          if (!isDeadlock(e1) && !isDeadlock(e2)) {
-            return "Booking failed\n";
+          e2.printStackTrace();
+        }
+        // only a deadlock victim is retried; anything else (eg, a missing flight) fails the booking
+        if (!isDeadlock(e1)) {
+          return "Booking failed\n";
+        }
+        recordRetry(e1);
+      }
+    }
+  }
+
+  /**
+   * Books the itinerary when users are sharded.  The checks and the reservation ID allocation are
+   * made in one serializable transaction on the primary database's ledger, which sees every
+   * shard's bookings, and leave a pending entry there; the reservation is then inserted on the
+   * user's shard, and the entry confirmed.  If the insert fails, the entry is deleted again.  An
+   * entry that is still pending afterwards (eg, because that delete failed too) is settled by
+   * reconcileLedger().  The primary's and the shard's connections are borrowed one at a time.
+   */
+  private String bookOnShard(Itinerary itnToBook) {
+    int totalPrice = itnToBook.f1.price + (itnToBook.isDirect ? 0 : itnToBook.f2.price);
+    int reservationId;
+    try {
+      reservationId = withConnection(pooled -> reserveInLedger(pooled, itnToBook));
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return "Booking failed\n";
+    }
+    if (reservationId == SAME_DAY) {
+      return "You cannot book two flights in the same day\n";
+    } else if (reservationId == FULL) {
+      return "Booking failed\n";
+    }
+
+    try {
+      withUserConnection(false, pooled -> {
+        PreparedStatement insertResStmt = pooled.prepareStatement(INSERT_RES_SQL);
+        insertResStmt.clearParameters();
+        insertResStmt.setInt(1, reservationId);
+        insertResStmt.setString(2, currentLogInUser);
+        insertResStmt.setInt(3, totalPrice);
+        insertResStmt.setInt(4, itnToBook.f1.fid);
+        if (itnToBook.isDirect) {
+          insertResStmt.setNull(5, Types.INTEGER);
+        } else {
+          insertResStmt.setInt(5, itnToBook.f2.fid);
+        }
+        return insertResStmt.executeUpdate();
+      });
+    } catch (SQLException e) {
+      e.printStackTrace();
+      try {
+        deletePendingFromLedger(reservationId);
+      } catch (SQLException e2) {
+        e2.printStackTrace();
+      }
+      return "Booking failed\n";
+    }
+
+    try {
+      if (!confirmInLedger(reservationId, currentLogInUser)) {
+        // reconcileLedger() gave up on the entry; the reservation can't stand without it
+        withUserConnection(false, pooled -> {
+          PreparedStatement deleteResStmt = pooled.prepareStatement(DELETE_SHARD_RES_SQL);
+          deleteResStmt.clearParameters();
+          deleteResStmt.setInt(1, reservationId);
+          deleteResStmt.setString(2, currentLogInUser);
+          return deleteResStmt.executeUpdate();
+        });
+        return "Booking failed\n";
+      }
+    } catch (SQLException e) {
+      // the reservation is on the shard, so reconcileLedger() will confirm the entry
+      e.printStackTrace();
+    }
+    return "Booked flight(s), reservation ID: " + reservationId + "\n";
+  }
+
+  // Returns false if the entry isn't pending (any more)
+  private boolean confirmInLedger(int reservationId, String username) throws SQLException {
+    return withConnection(pooled -> {
+      PreparedStatement confirmLedgerStmt = pooled.prepareStatement(CONFIRM_LEDGER_SQL);
+      confirmLedgerStmt.clearParameters();
+      confirmLedgerStmt.setInt(1, reservationId);
+      confirmLedgerStmt.setString(2, username);
+      return confirmLedgerStmt.executeUpdate() > 0;
+    });
+  }
+
+  // Returns the number of entries deleted
+  private int deletePendingFromLedger(int reservationId) throws SQLException {
+    return withConnection(pooled -> {
+      PreparedStatement deleteLedgerStmt = pooled.prepareStatement(DELETE_PENDING_LEDGER_SQL);
+      deleteLedgerStmt.clearParameters();
+      deleteLedgerStmt.setInt(1, reservationId);
+      return deleteLedgerStmt.executeUpdate();
+    });
+  }
+
+  /**
+   * Checks the itinerary against the ledger and records it there, retrying on deadlock
+   *
+   * @return the new reservation ID, or SAME_DAY or FULL if it can't be booked
+   */
+  private int reserveInLedger(ConnectionPool.PooledConnection pooled, Itinerary itnToBook)
+    throws SQLException {
+    Connection ledgerConn = pooled.getConnection();
+    while (true) {
+      try {
+        ledgerConn.setAutoCommit(false);
+        PreparedStatement getLedgerFlightsStmt = pooled.prepareStatement(GET_LEDGER_FLIGHTS_SQL);
+        getLedgerFlightsStmt.clearParameters();
+        getLedgerFlightsStmt.setString(1, currentLogInUser);
+        List<Integer> bookedFids = new ArrayList<>();
+        try (ResultSet rs = getLedgerFlightsStmt.executeQuery()) {
+          while (rs.next()) {
+            bookedFids.add(rs.getInt("first_flight_id"));
           }
         }
+
+        int result;
+        if (bookedDay(FlightCache.getAll(pooled, bookedFids).values(), itnToBook)) {
+          result = SAME_DAY;
+        } else if (!ledgerHasCapacity(pooled, itnToBook.f1)
+                   || (!itnToBook.isDirect && !ledgerHasCapacity(pooled, itnToBook.f2))) {
+          result = FULL;
+        } else {
+          try (ResultSet rs = pooled.prepareStatement(GET_MAX_LEDGER_ID_SQL).executeQuery()) {
+            rs.next();
+            result = rs.getInt("max_id") + 1;
+          }
+          PreparedStatement insertLedgerStmt = pooled.prepareStatement(INSERT_LEDGER_SQL);
+          insertLedgerStmt.clearParameters();
+          insertLedgerStmt.setInt(1, result);
+          insertLedgerStmt.setString(2, currentLogInUser);
+          insertLedgerStmt.setInt(3, itnToBook.f1.fid);
+          if (itnToBook.isDirect) {
+            insertLedgerStmt.setNull(4, Types.INTEGER);
+          } else {
+            insertLedgerStmt.setInt(4, itnToBook.f2.fid);
+          }
+          insertLedgerStmt.executeUpdate();
+        }
+
+        ledgerConn.commit();
+        ledgerConn.setAutoCommit(true);
+        return result;
+      } catch (SQLException e) {
+        ledgerConn.rollback();
+        ledgerConn.setAutoCommit(true);
+        if (!isDeadlock(e)) {
+          throw e;
+        }
+        recordRetry(e);
+      }
+    }
+  }
+
+  private static boolean bookedDay(Collection<Flight> booked, Itinerary itnToBook) {
+    for (Flight flight : booked) {
+      if (flight.dayOfMonth == itnToBook.f1.dayOfMonth) {
+        return true;
       }
     }
+    return false;
+  }
+
+  private static boolean ledgerHasCapacity(ConnectionPool.PooledConnection pooled, Flight flight)
+    throws SQLException {
+    PreparedStatement ledgerCapacityStmt = pooled.prepareStatement(LEDGER_CAPACITY_SQL);
+    ledgerCapacityStmt.clearParameters();
+    ledgerCapacityStmt.setInt(1, flight.fid);
+    ledgerCapacityStmt.setInt(2, flight.fid);
+    try (ResultSet rs = ledgerCapacityStmt.executeQuery()) {
+      return !rs.next() || flight.capacity - rs.getInt("count") > 0;
+    }
   }
 
   /* See QueryAbstract.java for javadoc */
@@ -390,6 +955,7 @@ public class Query extends QueryAbstract {
     while (true) {
       try {
         conn.setAutoCommit(false);
+        PreparedStatement getResStmt = prepare(GET_RES_SQL);
         getResStmt.clearParameters();
         getResStmt.setInt(1, reservationId);
         getResStmt.setString(2, currentLogInUser);
@@ -404,6 +970,7 @@ public class Query extends QueryAbstract {
         int cost = getResResult.getInt("total_price");
         getResResult.close();
 
+        PreparedStatement getUserBalStmt = prepare(GET_USER_BAL_SQL);
         getUserBalStmt.clearParameters();
         getUserBalStmt.setString(1, currentLogInUser);
         ResultSet getUserBalResult = getUserBalStmt.executeQuery();
@@ -417,11 +984,13 @@ public class Query extends QueryAbstract {
           return "User has only " + balance + " in account but itinerary costs " + cost +"\n";
         }
 
+        PreparedStatement updateUserBalStmt = prepare(UPDATE_USER_BAL_SQL);
         updateUserBalStmt.clearParameters();
         updateUserBalStmt.setInt(1, balance - cost);
         updateUserBalStmt.setString(2, currentLogInUser);
         updateUserBalStmt.executeUpdate();
 
+        PreparedStatement updateResToPaidStmt = prepare(UPDATE_RES_TO_PAID_SQL);
         updateResToPaidStmt.clearParameters();
         updateResToPaidStmt.setInt(1, reservationId);
         updateResToPaidStmt.executeUpdate();
@@ -446,88 +1015,146 @@ public class Query extends QueryAbstract {
 
   /* See QueryAbstract.java for javadoc */
   public String transaction_reservations() {
+    StringBuilder sb = new StringBuilder();
     try {
-      if (currentLogInUser == null) {
-        return "Cannot view reservations, not logged in\n";
-      }
+      transaction_reservations(sb);
+    } catch (IOException e) {
+      // StringBuilder never throws
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
 
-      StringBuffer sb = new StringBuffer();
+  /* See QueryAbstract.java for javadoc */
+  public void transaction_reservations(Appendable out) throws IOException {
+    if (currentLogInUser == null) {
+      out.append("Cannot view reservations, not logged in\n");
+      return;
+    }
 
-      // Get all reservation 
-      getUserResStmt.clearParameters();
-      getUserResStmt.setString(1, currentLogInUser);
-      ResultSet getUserResResult = getUserResStmt.executeQuery();
+    try {
+      // Walk the user's reservations one page at a time, so only a single page is ever in memory
+      int lastReservationId = 0;
+      int numReservations = 0;
+      while (true) {
+        List<Reservation> page = getReservationsPage(lastReservationId, RESERVATIONS_PAGE_SIZE);
+        writeReservations(page, out);
+        numReservations += page.size();
+        if (page.size() < RESERVATIONS_PAGE_SIZE) {
+          break;
+        }
+        lastReservationId = page.get(page.size() - 1).id;
+      }
 
-      int numReservations = 0; 
+      if (numReservations == 0) {
+        out.append("No reservations found\n");
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      out.append("Failed to retrieve reservations\n");
+    }
+  }
 
-      while (getUserResResult.next()) {
-        sb.append("Reservation " + getUserResResult.getInt("reservation_id") + " ");
-        if (getUserResResult.getInt("is_paid") == 1) {
-          sb.append("paid: true:\n");
-        } else {
-          sb.append("paid: false:\n");
-        }
-        
-        int f1_fid = getUserResResult.getInt("first_flight_id");
-        getFlightStmt.clearParameters();
-        getFlightStmt.setInt(1, f1_fid);
-        ResultSet firstFlightResult = getFlightStmt.executeQuery();
-        firstFlightResult.next();
-        Flight f1 = new Flight(
-          firstFlightResult.getInt("fid"),
-          firstFlightResult.getInt("day_of_month"),
-          firstFlightResult.getString("carrier_id"),
-          firstFlightResult.getString("flight_num"),
-          firstFlightResult.getString("origin_city"),
-          firstFlightResult.getString("dest_city"),
-          firstFlightResult.getInt("actual_time"),
-          firstFlightResult.getInt("capacity"),
-          firstFlightResult.getInt("price")
-        );
-        firstFlightResult.close();
-        sb.append(f1.toString() + "\n");
-
-        int f2_fid = getUserResResult.getInt("second_flight_id");
-        if (f2_fid != 0) {
-          getFlightStmt.clearParameters();
-          getFlightStmt.setInt(1, f2_fid);
-          ResultSet secondFlightResult = getFlightStmt.executeQuery();
-          secondFlightResult.next();
-          Flight f2 = new Flight(
-            secondFlightResult.getInt("fid"),
-            secondFlightResult.getInt("day_of_month"),
-            secondFlightResult.getString("carrier_id"),
-            secondFlightResult.getString("flight_num"),
-            secondFlightResult.getString("origin_city"),
-            secondFlightResult.getString("dest_city"),
-            secondFlightResult.getInt("actual_time"),
-            secondFlightResult.getInt("capacity"),
-            secondFlightResult.getInt("price")
-          );
-          secondFlightResult.close();
-          sb.append(f2.toString() + "\n");
-        }
+  /* See QueryAbstract.java for javadoc */
+  public String transaction_reservationsPage(int afterReservationId, int pageSize) {
+    if (currentLogInUser == null) {
+      return "Cannot view reservations, not logged in\n";
+    }
 
-        numReservations++;
+    try {
+      if (pageSize <= 0) {
+        return "Failed to retrieve reservations\n";
       }
-      getUserResResult.close();
 
-      if (numReservations == 0) {
+      List<Reservation> page = getReservationsPage(afterReservationId, pageSize);
+      if (page.isEmpty()) {
         return "No reservations found\n";
       }
 
+      StringBuilder sb = new StringBuilder();
+      writeReservations(page, sb);
       return sb.toString();
-    } catch (SQLException e){
+    } catch (SQLException | IOException e) {
       e.printStackTrace();
       return "Failed to retrieve reservations\n";
     }
-    
+  }
+
+  /**
+   * Reads (at most) pageSize of the logged-in user's reservations whose IDs are greater than
+   * afterReservationId, in reservation ID order.
+   */
+  private List<Reservation> getReservationsPage(int afterReservationId, int pageSize)
+    throws SQLException {
+    return withUserConnection(true, pooled -> {
+      PreparedStatement getUserResPageStmt = pooled.prepareStatement(GET_USER_RES_PAGE_SQL);
+      getUserResPageStmt.clearParameters();
+      getUserResPageStmt.setInt(1, pageSize);
+      getUserResPageStmt.setString(2, currentLogInUser);
+      getUserResPageStmt.setInt(3, afterReservationId);
+      ResultSet getUserResResult = getUserResPageStmt.executeQuery();
+
+      List<Reservation> page = new ArrayList<>();
+      while (getUserResResult.next()) {
+        page.add(new Reservation(getUserResResult));
+      }
+      getUserResResult.close();
+      return page;
+    });
+  }
+
+  /**
+   * Writes the given reservations, looking up their flights with one batched FlightCache call.
+   */
+  private void writeReservations(List<Reservation> reservations, Appendable out)
+    throws SQLException, IOException {
+    Set<Integer> fids = new HashSet<>();
+    for (Reservation res : reservations) {
+      fids.add(res.firstFid);
+      if (res.secondFid != 0) {
+        fids.add(res.secondFid);
+      }
+    }
+    // when sharded, the flights are in the primary database, not the user's shard (whose
+    // connection isn't held here; see getReservationsPage())
+    Map<Integer, Flight> flights = isSharded()
+      ? withConnection(pooled -> FlightCache.getAll(pooled, fids))
+      : withUserConnection(true, pooled -> FlightCache.getAll(pooled, fids));
+    writeReservations(reservations, flights, out);
+  }
+
+  /**
+   * Formats sorted search results, as documented on QueryAbstract.search()
+   */
+  static String formatItineraries(List<Itinerary> itineraries) {
+    StringBuffer sb = new StringBuffer();
+    for (int i = 0; i < itineraries.size(); i++) {
+      sb.append("Itinerary " + i + ": " + itineraries.get(i).toString() + "\n");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Writes the given reservations, in the format documented on QueryAbstract.reservations()
+   *
+   * @param flights every flight the reservations refer to, by fid
+   */
+  static void writeReservations(List<Reservation> reservations, Map<Integer, Flight> flights,
+                                Appendable out) throws IOException {
+    for (Reservation res : reservations) {
+      out.append("Reservation " + res.id + " paid: " + res.isPaid + ":\n");
+      out.append(flights.get(res.firstFid).toString() + "\n");
+      if (res.secondFid != 0) {
+        out.append(flights.get(res.secondFid).toString() + "\n");
+      }
+    }
   }
 
   /**
    * Example utility function that uses prepared statements
    */
   private boolean checkFlightCapacity(Flight flight) throws SQLException {
+    PreparedStatement flightCapacityStmt = prepare(FLIGHT_CAPACITY_SQL);
     flightCapacityStmt.clearParameters();
     flightCapacityStmt.setInt(1, flight.fid);
     flightCapacityStmt.setInt(2, flight.fid);
@@ -549,18 +1176,19 @@ public class Query extends QueryAbstract {
   }
 
   /**
-   * A class to store information about a single flight
+   * A class to store information about a single flight.  Flights are immutable, since they are
+   * shared across sessions through the FlightCache.
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
+  static class Flight {
+    public final int fid;
+    public final int dayOfMonth;
+    public final String carrierId;
+    public final String flightNum;
+    public final String originCity;
+    public final String destCity;
+    public final int time;
+    public final int capacity;
+    public final int price;
 
     Flight(int id, int day, String carrier, String fnum, String origin, String dest, int tm,
            int cap, int pri) {
@@ -583,10 +1211,34 @@ public class Query extends QueryAbstract {
     }
   }
 
+  /**
+   * A row of the Reservations table (the flights are referenced by fid only)
+   */
+  static class Reservation {
+    public final int id;
+    public final boolean isPaid;
+    public final int firstFid;
+    public final int secondFid; // 0 for direct itineraries
+
+    Reservation(ResultSet rs) throws SQLException {
+      id = rs.getInt("reservation_id");
+      isPaid = rs.getInt("is_paid") == 1;
+      firstFid = rs.getInt("first_flight_id");
+      secondFid = rs.getInt("second_flight_id"); // getInt() maps NULL to 0
+    }
+
+    Reservation(int id, boolean isPaid, int firstFid, int secondFid) {
+      this.id = id;
+      this.isPaid = isPaid;
+      this.firstFid = firstFid;
+      this.secondFid = secondFid;
+    }
+  }
+
   /**
    * A class to store information about a single itinerary
    */
-  class Itinerary implements Comparable<Itinerary> {
+  static class Itinerary implements Comparable<Itinerary> {
     public Flight f1;
     public Flight f2;
     public boolean isDirect; // true = direct, false = indirect
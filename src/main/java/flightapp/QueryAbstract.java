@@ -4,32 +4,212 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.*;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public abstract class QueryAbstract {
-  // DB Connection
+  // Pool that a connection is borrowed from for each command (null for backends without a
+  // database)
+  private final ConnectionPool pool;
+  // Pool that read-only commands (search and reservations) borrow from instead
+  private final ConnectionPool readPool;
+  // When users are sharded (null otherwise), each shard's pools, which a user's commands borrow
+  // from instead; see DBConnUtils.getShardCount()
+  private final ConnectionPool[] shardPools;
+  private final ConnectionPool[] shardReadPools;
+
+  // DB Connection borrowed for the command that is running (null between commands)
   protected Connection conn;
+  private ConnectionPool.PooledConnection pooledConn;
 
-  // For checking for dangling transactions
+  // For checking for dangling transactions.  The transaction state is tracked on the client;
+  // every "flightapp.transactions.verify_every"th command (default: none) also checks it with the
+  // database.
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
-  private PreparedStatement tranCountStatement;
+  private static final int VERIFY_EVERY = Integer.getInteger("flightapp.transactions.verify_every", 0);
+  private static final AtomicLong commandsChecked = new AtomicLong();
+
+  // Connection, preparation and first-command latency of this session
+  private final StartupTimer startupTimer = new StartupTimer();
+
+  // Metrics and flight recorder event of the command that is running (or ran last)
+  private CommandMetrics currentMetrics;
+  private FlightEvents.CommandEvent currentEvent;
 
   protected QueryAbstract() throws SQLException, IOException {
-    this.conn = DBConnUtils.openConnection();
-    tranCountStatement = conn.prepareStatement(TRANCOUNT_SQL);
+    this(DBConnUtils.getPool(), DBConnUtils.getReadPool(), DBConnUtils.getShardPools(),
+         DBConnUtils.getShardReadPools());
+  }
+
+  /**
+   * @param pool where commands borrow their connections from, or null if this backend does not
+   *             use a database
+   */
+  protected QueryAbstract(ConnectionPool pool) {
+    this(pool, pool);
+  }
+
+  /**
+   * @param pool     where commands that write borrow their connections from
+   * @param readPool where read-only commands borrow their connections from
+   */
+  protected QueryAbstract(ConnectionPool pool, ConnectionPool readPool) {
+    this(pool, readPool, null, null);
+  }
+
+  /**
+   * @param pool           where commands that write borrow their connections from
+   * @param readPool       where read-only commands borrow their connections from
+   * @param shardPools     if users are sharded, where commands on a user's data borrow their
+   *                       connections from, by shard; otherwise null
+   * @param shardReadPools same, for read-only commands
+   */
+  protected QueryAbstract(ConnectionPool pool, ConnectionPool readPool,
+                          ConnectionPool[] shardPools, ConnectionPool[] shardReadPools) {
+    this.pool = pool;
+    this.readPool = readPool;
+    this.shardPools = shardPools;
+    this.shardReadPools = shardReadPools;
+  }
+
+  /**
+   * Whether users and their reservations are split across shards, rather than kept with the
+   * flights in the primary database
+   */
+  protected boolean isSharded() {
+    return shardPools != null;
+  }
+
+  /**
+   * The (lowercased) username of the logged-in user, or null if nobody is logged in.  When users
+   * are sharded, it picks the shard that book, pay and reservations run on.
+   */
+  protected String getLoggedInUser() {
+    return null;
   }
 
   /**
-   * Get underlying connection
+   * Get the connection borrowed for the command that is running, or null between commands
    */
   public Connection getConnection() {
     return conn;
   }
 
   /**
-   * Closes the application-to-database connection
+   * Releases this session's database resources.  Connections belong to the process-wide pool,
+   * so this only returns a connection that is still borrowed.
    */
   public void closeConnection() throws SQLException {
-    conn.close();
+    releaseConnection();
+  }
+
+  /**
+   * Get this session's startup timings; see StartupTimer
+   */
+  public String getStartupTimes() {
+    return startupTimer.report();
+  }
+
+  /**
+   * Returns the prepared statement for the SQL on the connection borrowed for the command that
+   * is running.  Statements are created lazily, the first time they are used on a connection,
+   * and cached with it after that; the driver prepares each on the server when it is first
+   * executed.
+   */
+  protected PreparedStatement prepare(String sql) throws SQLException {
+    long start = System.nanoTime();
+    try {
+      return pooledConn.prepareStatement(sql);
+    } finally {
+      startupTimer.addCreateStatement(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Work to run on a connection of its own; see withConnection()
+   */
+  @FunctionalInterface
+  protected interface ConnectionWork<T> {
+    T run(ConnectionPool.PooledConnection pooled) throws SQLException;
+  }
+
+  /**
+   * Runs work that happens outside of a command's own transaction (eg, after an asynchronous
+   * password hash has finished) on a connection borrowed just for it.
+   */
+  protected <T> T withConnection(ConnectionWork<T> work) throws SQLException {
+    try (ConnectionPool.PooledConnection pooled = acquireTimed(pool)) {
+      attach(pooled);
+      return work.run(pooled);
+    }
+  }
+
+  /**
+   * Same as {@link #withConnection(ConnectionWork)}, on the shard that holds the user's data
+   */
+  protected <T> T withConnection(String username, ConnectionWork<T> work) throws SQLException {
+    try (ConnectionPool.PooledConnection pooled = acquireTimed(poolFor(username))) {
+      attach(pooled);
+      return work.run(pooled);
+    }
+  }
+
+  /**
+   * Runs work on the running command's connection, or, if the command didn't borrow one for its
+   * duration (see heldPoolFor()), on a connection to the logged-in user's shard borrowed just
+   * for it
+   *
+   * @param readOnly whether to borrow from the user's read pool rather than the one for writes
+   */
+  protected <T> T withUserConnection(boolean readOnly, ConnectionWork<T> work)
+    throws SQLException {
+    if (pooledConn != null) {
+      return work.run(pooledConn);
+    }
+    String username = getLoggedInUser();
+    try (ConnectionPool.PooledConnection pooled =
+           acquireTimed(readOnly ? readPoolFor(username) : poolFor(username))) {
+      attach(pooled);
+      return work.run(pooled);
+    }
+  }
+
+  /**
+   * Runs work on every shard in turn (or just the primary database, if users aren't sharded)
+   */
+  protected void withEachShard(ConnectionWork<?> work) throws SQLException {
+    for (ConnectionPool shard : isSharded() ? shardPools : new ConnectionPool[] { pool }) {
+      try (ConnectionPool.PooledConnection pooled = acquireTimed(shard)) {
+        attach(pooled);
+        work.run(pooled);
+      }
+    }
+  }
+
+  /**
+   * Counts a transaction that is retried (eg, after a deadlock) in the running command's metrics,
+   * and records it as a FlightEvents.RetryEvent
+   *
+   * @param cause why the transaction failed
+   */
+  protected void recordRetry(SQLException cause) {
+    if (currentMetrics != null) {
+      currentMetrics.addRetry();
+    }
+    if (currentEvent != null) {
+      currentEvent.retries++;
+      FlightEvents.RetryEvent event = new FlightEvents.RetryEvent();
+      if (event.shouldCommit()) {
+        event.command = currentEvent.command;
+        event.username = currentEvent.username;
+        event.itineraryId = currentEvent.itineraryId;
+        event.reservationId = currentEvent.reservationId;
+        event.attempt = currentEvent.retries;
+        event.errorCode = cause.getErrorCode();
+        event.commit();
+      }
+    }
   }
 
   /**
@@ -49,6 +229,25 @@ public abstract class QueryAbstract {
 
   public abstract void clearTables() throws SQLException;
 
+  /**
+   * Saves a copy of the users and reservations as the named snapshot, replacing any earlier one of
+   * that name.  Names are letters, digits and underscores.
+   */
+  public abstract void saveSnapshot(String name) throws SQLException;
+
+  /**
+   * Replaces the users and reservations with those of the named snapshot
+   *
+   * @return false if there is no snapshot of that name
+   */
+  public abstract boolean restoreSnapshot(String name) throws SQLException;
+
+  protected static void checkSnapshotName(String name) {
+    if (!name.matches("\\w+")) {
+      throw new IllegalArgumentException("Bad snapshot name: " + name);
+    }
+  }
+
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
@@ -59,14 +258,39 @@ public abstract class QueryAbstract {
    *         other errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
   public final String login(String username, String password) {
+    return loginAsync(username, password).join();
+  }
+
+  public abstract String transaction_login(String username, String password);
+
+  /**
+   * Same as {@link #login(String, String)}, except that the password hashing runs on the
+   * PasswordUtils hashing pool instead of the calling thread.  The command's connection is
+   * returned once the user's row has been read, so none is held while hashing, and whatever
+   * follows the hash borrows a connection of its own.  The session must not be used for another
+   * command until the returned future completes.
+   */
+  public final CompletableFuture<String> loginAsync(String username, String password) {
+    long start = startCommand(CommandMetrics.Command.LOGIN, username, -1, -1);
+    try {
+      acquireConnection(poolFor(username));
+    } catch (SQLException e) {
+      e.printStackTrace();
+      finishCommand(currentMetrics, currentEvent, start);
+      return CompletableFuture.completedFuture("Login failed\n");
+    }
+    CommandMetrics metrics = currentMetrics;
+    FlightEvents.CommandEvent event = currentEvent;
     try {
-      return transaction_login(username, password);
+      return transaction_loginAsync(username, password)
+        .whenComplete((response, e) -> finishCommand(metrics, event, start));
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
-  public abstract String transaction_login(String username, String password);
+  public abstract CompletableFuture<String> transaction_loginAsync(String username,
+                                                                   String password);
 
   /**
    * Creates a new user within the system.
@@ -79,15 +303,61 @@ public abstract class QueryAbstract {
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
   public final String createCustomer(String username, String password, int initAmount) {
+    return createCustomerAsync(username, password, initAmount).join();
+  }
+
+  public abstract String transaction_createCustomer(String username, String password,
+                                                    int initAmount);
+
+  /**
+   * Same as {@link #createCustomer(String, String, int)}, except that the password hashing runs
+   * on the PasswordUtils hashing pool instead of the calling thread.  As for
+   * {@link #loginAsync(String, String)}, no connection is held while hashing, and the insert
+   * borrows a connection of its own.  The session must not be used for another command until the
+   * returned future completes.
+   */
+  public final CompletableFuture<String> createCustomerAsync(String username, String password,
+                                                             int initAmount) {
+    long start = startCommand(CommandMetrics.Command.CREATE, username, -1, -1);
+    try {
+      acquireConnection(poolFor(username));
+    } catch (SQLException e) {
+      e.printStackTrace();
+      finishCommand(currentMetrics, currentEvent, start);
+      return CompletableFuture.completedFuture("Failed to create user\n");
+    }
+    CommandMetrics metrics = currentMetrics;
+    FlightEvents.CommandEvent event = currentEvent;
     try {
-      return transaction_createCustomer(username, password, initAmount);
+      return transaction_createCustomerAsync(username, password, initAmount)
+        .whenComplete((response, e) -> finishCommand(metrics, event, start));
     } finally {
-      checkDanglingTransaction();
+      endCommand();
     }
   }
 
-  public abstract String transaction_createCustomer(String username, String password,
-                                                    int initAmount);
+  public abstract CompletableFuture<String> transaction_createCustomerAsync(String username,
+                                                                            String password,
+                                                                            int initAmount);
+
+  /**
+   * Bulk-creates users from a CSV file with one "username,password,balance" line per user (an
+   * optional "username,password,balance" header line is skipped).  Users are created with the
+   * same rules as {@link #createCustomer(String, String, int)}; lines that are malformed, have a
+   * negative balance or name an existing user are skipped and copied to "[file].failed".
+   *
+   * @param path path of the CSV file
+   *
+   * @return "Imported [n] users, [m] failed in [t] ms ([r] rows/sec)\n", followed by
+   *         "Failed rows written to [file].failed\n" if any failed.  If the file can't be read,
+   *         return "Failed to import users\n".
+   */
+  public final String importUsers(String path) {
+    return runCommand(CommandMetrics.Command.IMPORT_USERS, -1, -1, pool,
+                      "Failed to import users\n", () -> transaction_importUsers(path));
+  }
+
+  public abstract String transaction_importUsers(String path);
 
   /**
    * Searches for flights, according to user-specified origin, destination, and other parameters.
@@ -121,12 +391,9 @@ public abstract class QueryAbstract {
    */
   public final String search(String originCity, String destinationCity, boolean directFlight,
                              int dayOfMonth, int numberOfItineraries) {
-    try {
-      return transaction_search(originCity, destinationCity, directFlight,
-                                dayOfMonth, numberOfItineraries);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return runCommand(CommandMetrics.Command.SEARCH, -1, -1, readPool, "Failed to search\n",
+                      () -> transaction_search(originCity, destinationCity, directFlight,
+                                               dayOfMonth, numberOfItineraries));
   }
 
   public abstract String transaction_search(String originCity, String destinationCity, 
@@ -154,11 +421,9 @@ public abstract class QueryAbstract {
    * @see #search()
    */
   public final String book(int itineraryId) {
-    try {
-      return transaction_book(itineraryId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return runCommand(CommandMetrics.Command.BOOK, itineraryId, -1,
+                      heldPoolFor(poolFor(getLoggedInUser())),
+                      "Booking failed\n", () -> transaction_book(itineraryId));
   }
 
   public abstract String transaction_book(int itineraryId);
@@ -182,11 +447,9 @@ public abstract class QueryAbstract {
    * @see #book()
    */
   public final String pay(int reservationId) {
-    try {
-      return transaction_pay(reservationId);
-    } finally {
-      checkDanglingTransaction();
-    }
+    return runCommand(CommandMetrics.Command.PAY, -1, reservationId, poolFor(getLoggedInUser()),
+                      "Failed to pay for reservation " + reservationId + "\n",
+                      () -> transaction_pay(reservationId));
   }
 
   public abstract String transaction_pay(int reservationId);
@@ -211,25 +474,184 @@ public abstract class QueryAbstract {
    * @see Query.Flight#toString()
    */
   public final String reservations() {
+    return runCommand(CommandMetrics.Command.RESERVATIONS, -1, -1,
+                      heldPoolFor(readPoolFor(getLoggedInUser())),
+                      "Failed to retrieve reservations\n", () -> transaction_reservations());
+  }
+
+  public abstract String transaction_reservations();
+
+  /**
+   * Writes the same output as {@link #reservations()} to {@code out}, as the reservations are
+   * read from the database.  Only a bounded number of reservations is held in memory at a time,
+   * regardless of how many the user has.  If an error occurs part-way through, the failure
+   * message follows whatever was already written.
+   *
+   * @param out the sink to write the listing to
+   */
+  public final void reservations(Appendable out) throws IOException {
+    long start = startCommand(CommandMetrics.Command.RESERVATIONS, getLoggedInUser(), -1, -1);
     try {
-      return transaction_reservations();
+      acquireConnection(heldPoolFor(readPoolFor(getLoggedInUser())));
+      transaction_reservations(out);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      out.append("Failed to retrieve reservations\n");
     } finally {
+      endCommand();
+      finishCommand(currentMetrics, currentEvent, start);
+    }
+  }
+
+  public abstract void transaction_reservations(Appendable out) throws IOException;
+
+  /**
+   * Prints out one page of the user's reserved itineraries, in reservation ID order.  Pages are
+   * addressed by a cursor rather than a page number: to get the next page, pass the last
+   * reservation ID of the current one.
+   *
+   * @param afterReservationId only reservations with a greater ID are listed; use 0 for the first
+   *                           page
+   * @param pageSize           maximum number of reservations to list, must be positive (failure
+   *                           otherwise)
+   *
+   * @return Same as {@link #reservations()}, restricted to the requested page.  Once there are
+   *         no reservations after the cursor, return "No reservations found\n".
+   */
+  public final String reservations(int afterReservationId, int pageSize) {
+    return runCommand(CommandMetrics.Command.RESERVATIONS, -1, -1,
+                      heldPoolFor(readPoolFor(getLoggedInUser())),
+                      "Failed to retrieve reservations\n",
+                      () -> transaction_reservationsPage(afterReservationId, pageSize));
+  }
+
+  public abstract String transaction_reservationsPage(int afterReservationId, int pageSize);
+
+  /**
+   * Runs a command of the logged-in user's on a connection borrowed from the pool for its
+   * duration.  If no connection can be borrowed, the command fails with the given response.
+   *
+   * @param itineraryId   the itinerary the command is on, or -1
+   * @param reservationId the reservation the command is on, or -1
+   */
+  private String runCommand(CommandMetrics.Command kind, int itineraryId, int reservationId,
+                            ConnectionPool from, String failureResponse,
+                            Supplier<String> command) {
+    long start = startCommand(kind, getLoggedInUser(), itineraryId, reservationId);
+    try {
+      acquireConnection(from);
+      return command.get();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return failureResponse;
+    } finally {
+      endCommand();
+      finishCommand(currentMetrics, currentEvent, start);
+    }
+  }
+
+  // Starts measuring a command; returns its start time
+  private long startCommand(CommandMetrics.Command kind, String username, int itineraryId,
+                            int reservationId) {
+    currentMetrics = CommandMetrics.get(kind);
+    currentEvent = new FlightEvents.CommandEvent();
+    currentEvent.command = kind.getName();
+    currentEvent.username = username;
+    currentEvent.itineraryId = itineraryId;
+    currentEvent.reservationId = reservationId;
+    currentEvent.begin();
+    return System.nanoTime();
+  }
+
+  // Records a command's latency and event once its response is ready
+  private void finishCommand(CommandMetrics metrics, FlightEvents.CommandEvent event, long start) {
+    metrics.recordLatency(System.nanoTime() - start);
+    event.commit();
+    startupTimer.commandFinished();
+  }
+
+  // Counts the connection's work, and tags its transactions, as the running command's
+  private void attach(ConnectionPool.PooledConnection pooled) {
+    pooled.setMetrics(currentMetrics);
+    pooled.setCommandEvent(currentEvent);
+  }
+
+  // The pool for commands on the user's data (the primary one if nobody is logged in)
+  private ConnectionPool poolFor(String username) {
+    if (!isSharded() || username == null) {
+      return pool;
+    }
+    return shardPools[DBConnUtils.shardFor(username, shardPools.length)];
+  }
+
+  // The pool that a command on the user's data borrows a connection from for its duration.  When
+  // sharded, commands that also use the primary database (booking and listing reservations)
+  // borrow from each in turn instead, with withUserConnection(), so they never wait for one
+  // connection while holding another.
+  private ConnectionPool heldPoolFor(ConnectionPool userPool) {
+    return isSharded() ? null : userPool;
+  }
+
+  private ConnectionPool readPoolFor(String username) {
+    if (!isSharded() || username == null) {
+      return readPool;
+    }
+    return shardReadPools[DBConnUtils.shardFor(username, shardReadPools.length)];
+  }
+
+  private void acquireConnection(ConnectionPool from) throws SQLException {
+    if (from == null) {
+      return;
+    }
+    pooledConn = acquireTimed(from);
+    attach(pooledConn);
+    conn = pooledConn.getConnection();
+  }
+
+  private ConnectionPool.PooledConnection acquireTimed(ConnectionPool from) throws SQLException {
+    if (from == null) {
+      throw new SQLException("This backend has no database");
+    }
+    long start = System.nanoTime();
+    try {
+      return from.acquire();
+    } finally {
+      startupTimer.addConnect(System.nanoTime() - start);
+    }
+  }
+
+  private void endCommand() {
+    try {
       checkDanglingTransaction();
+    } finally {
+      releaseConnection();
     }
   }
 
-  public abstract String transaction_reservations();
+  private void releaseConnection() {
+    if (pooledConn != null) {
+      pooledConn.close();
+      pooledConn = null;
+      conn = null;
+    }
+  }
 
   /**
    * Throw IllegalStateException if transaction not completely complete, rollback.
    *
    */
   protected void checkDanglingTransaction() throws IllegalStateException {
+    if (conn == null) {
+      return;
+    }
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
+      try {
+        int count = pooledConn.inTransaction() ? 1 : 0;
+        if (VERIFY_EVERY > 0 && commandsChecked.incrementAndGet() % VERIFY_EVERY == 0) {
+          count = verifyTranCount(count);
+        }
         if (count > 0) {
+          conn.rollback();
           throw new IllegalStateException(
               "\nTransaction not fully commited/rolledback. Number of transactions currently"
               + " in process: " + count
@@ -244,4 +666,19 @@ public abstract class QueryAbstract {
       throw new IllegalStateException("Database error", e);
     }
   }
-}
+
+  /**
+   * Asks the database how many transactions are open, and warns if the tracked state disagrees
+   */
+  private int verifyTranCount(int trackedCount) throws SQLException {
+    try (ResultSet rs = prepare(TRANCOUNT_SQL).executeQuery()) {
+      rs.next();
+      int count = rs.getInt("tran_count");
+      if ((count > 0) != (trackedCount > 0)) {
+        System.err.println("Warning: tracked transaction state (" + trackedCount
+                           + ") disagrees with @@TRANCOUNT (" + count + ")");
+      }
+      return count;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,133 @@
+package flightapp;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The Routes table (see createTables.sql): the search columns of the non-canceled flights,
+ * clustered on (day_of_month, origin_city, actual_time) with an index on (day_of_month,
+ * dest_city), since the shared Flights table can't be given indexes of our own.  Query searches
+ * it instead of Flights when it exists.
+ *
+ * The table is derived, so it must be rebuilt whenever Flights changes; verify() checks that it
+ * still matches.
+ */
+class RouteTable {
+  static final String TABLE = "Routes_sknguyen";
+
+  private static final String COLUMNS =
+      "fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, "
+      + "price";
+  private static final String SEARCHABLE_FLIGHTS_SQL =
+      "SELECT " + COLUMNS + " FROM Flights WHERE canceled = 0";
+  private static final String ROUTES_SQL = "SELECT " + COLUMNS + " FROM " + TABLE;
+
+  private static final String EXISTS_SQL = "SELECT OBJECT_ID('" + TABLE + "') AS id";
+  private static final String CLEAR_SQL = "TRUNCATE TABLE " + TABLE;
+  private static final String FILL_SQL =
+      "INSERT INTO " + TABLE + " WITH (TABLOCK) " + SEARCHABLE_FLIGHTS_SQL;
+  // EXCEPT compares every column, NULLs included
+  private static final String MISSING_SQL =
+      "SELECT COUNT(*) AS count FROM (" + SEARCHABLE_FLIGHTS_SQL + " EXCEPT " + ROUTES_SQL
+      + ") AS missing";
+  private static final String EXTRA_SQL =
+      "SELECT COUNT(*) AS count FROM (" + ROUTES_SQL + " EXCEPT " + SEARCHABLE_FLIGHTS_SQL
+      + ") AS extra";
+  private static final String COUNT_ROUTES_SQL = "SELECT COUNT(*) AS count FROM " + TABLE;
+  private static final String COUNT_SEARCHABLE_FLIGHTS_SQL =
+      "SELECT COUNT(*) AS count FROM Flights WHERE canceled = 0";
+
+  private RouteTable() { }
+
+  static boolean exists(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(EXISTS_SQL)) {
+      rs.next();
+      rs.getInt("id");
+      return !rs.wasNull();
+    }
+  }
+
+  /**
+   * Refills the table from Flights, in a single transaction; returns the number of routes
+   */
+  static int rebuild(Connection conn) throws SQLException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (Statement stmt = conn.createStatement()) {
+      stmt.executeUpdate(CLEAR_SQL);
+      int routes = stmt.executeUpdate(FILL_SQL);
+      conn.commit();
+      return routes;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * The same as rebuild(), as a script (if the table exists)
+   */
+  static String rebuildScript() {
+    return "IF OBJECT_ID('" + TABLE + "') IS NOT NULL\nBEGIN\n    " + CLEAR_SQL + ";\n    "
+        + FILL_SQL + ";\nEND;";
+  }
+
+  /**
+   * Compares the table with the non-canceled flights
+   */
+  static Verification verify(Connection conn) throws SQLException {
+    Verification verification = new Verification();
+    try (Statement stmt = conn.createStatement()) {
+      verification.missing = count(stmt, MISSING_SQL);
+      verification.extra = count(stmt, EXTRA_SQL);
+    }
+    return verification;
+  }
+
+  /**
+   * A quick check that the table has a route per non-canceled flight, eg for when it's about to
+   * be searched; unlike verify(), it doesn't compare the rows themselves
+   */
+  static boolean countMatches(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      return count(stmt, COUNT_ROUTES_SQL) == count(stmt, COUNT_SEARCHABLE_FLIGHTS_SQL);
+    }
+  }
+
+  private static int count(Statement stmt, String sql) throws SQLException {
+    try (ResultSet rs = stmt.executeQuery(sql)) {
+      rs.next();
+      return rs.getInt("count");
+    }
+  }
+
+  /**
+   * Differences between the Routes table and Flights
+   */
+  static class Verification {
+    /**
+     * Non-canceled flights that have no route, or whose route differs
+     */
+    int missing;
+    /**
+     * Routes of canceled or deleted flights, or that differ from their flight
+     */
+    int extra;
+
+    boolean matches() {
+      return missing == 0 && extra == 0;
+    }
+
+    @Override
+    public String toString() {
+      return matches() ? TABLE + " matches Flights\n"
+          : String.format("%s is out of date: %d flights missing or changed, %d routes extra or "
+                          + "changed; rebuild it with --rebuild-routes\n", TABLE, missing, extra);
+    }
+  }
+}
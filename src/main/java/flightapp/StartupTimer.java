@@ -0,0 +1,67 @@
+package flightapp;
+
+/**
+ * Measures how long a session takes to become useful: the time spent borrowing (and opening)
+ * connections and creating its JDBC statements up to the end of its first command, and the time
+ * from the session's creation to the end of that first command.
+ *
+ * Creating a statement costs no round-trip: the SQL Server driver only prepares it on the server
+ * when it is first executed (with sp_prepexec), so that preparation is counted in the first
+ * command's time, not in the statements'.
+ *
+ * The breakdown is listed by the "stats" command, and if "flightapp.startup_timing" is set, it is
+ * also printed to stderr once the first command finishes.
+ */
+class StartupTimer {
+  static final boolean REPORT = Boolean.getBoolean("flightapp.startup_timing");
+
+  private final long createdNanos = System.nanoTime();
+  private long connectNanos;
+  private long statementNanos;
+  private long firstCommandNanos = -1;
+
+  /**
+   * Records time spent borrowing a connection (only counted until the first command finishes)
+   */
+  synchronized void addConnect(long nanos) {
+    if (firstCommandNanos < 0) {
+      connectNanos += nanos;
+    }
+  }
+
+  /**
+   * Records time spent creating statements (only counted until the first command finishes)
+   */
+  synchronized void addCreateStatement(long nanos) {
+    if (firstCommandNanos < 0) {
+      statementNanos += nanos;
+    }
+  }
+
+  /**
+   * Marks a command as finished; only the first call has any effect.
+   */
+  void commandFinished() {
+    synchronized (this) {
+      if (firstCommandNanos >= 0) {
+        return;
+      }
+      firstCommandNanos = System.nanoTime() - createdNanos;
+    }
+    if (REPORT) {
+      System.err.println(report());
+    }
+  }
+
+  /**
+   * "session_startup: connect=[x]ms create_statements=[y]ms first_command=[z]ms"; the first
+   * command is reported as "-" until it has finished.
+   */
+  synchronized String report() {
+    String firstCommand =
+        firstCommandNanos < 0 ? "-" : String.format("%.1fms", firstCommandNanos / 1e6);
+    return String.format("session_startup: connect=%.1fms create_statements=%.1fms"
+                         + " first_command=%s",
+                         connectNanos / 1e6, statementNanos / 1e6, firstCommand);
+  }
+}
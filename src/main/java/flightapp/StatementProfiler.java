@@ -0,0 +1,267 @@
+package flightapp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles the SQL statements run on the connections it wraps: for each statement, the number of
+ * executions, the total and maximum time (executing it plus reading its results), the time spent
+ * reading results, and the rows read.  Statements are reported by the name of the constant that
+ * holds their SQL (see registerNames()), or else by the start of the SQL.
+ *
+ * Enabled by "-Dflightapp.profile=true", or by "-Dflightapp.profile.slow_ms=[ms]", which also
+ * logs every statement that takes at least that long to stderr, with its parameters.  When
+ * disabled, wrap() returns connections unchanged, so profiling costs nothing.
+ */
+class StatementProfiler {
+  private static final long SLOW_MS = Long.getLong("flightapp.profile.slow_ms", -1);
+  static final boolean ENABLED = Boolean.getBoolean("flightapp.profile") || SLOW_MS >= 0;
+
+  // Length of SQL shown for statements without a name
+  private static final int MAX_SQL_NAME_LENGTH = 60;
+
+  // Statement names, by SQL
+  private static final Map<String, String> names = new ConcurrentHashMap<>();
+  // Statistics, by statement name
+  private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+
+  /**
+   * Names the SQL held by each of the class's static final String fields ending in "_SQL" after
+   * the field, eg GET_TWO_HOP_SQL
+   */
+  static void registerNames(Class<?> cls) {
+    for (Field field : cls.getDeclaredFields()) {
+      int mods = field.getModifiers();
+      if (Modifier.isStatic(mods) && Modifier.isFinal(mods) && field.getType() == String.class
+          && field.getName().endsWith("_SQL")) {
+        try {
+          field.setAccessible(true);
+          names.put((String) field.get(null), field.getName());
+        } catch (IllegalAccessException | RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers the name of one statement that isn't held in a field of its own
+   */
+  static void registerName(String sql, String name) {
+    names.put(sql, name);
+  }
+
+  /**
+   * Returns a connection whose statements are profiled, or the connection itself if profiling is
+   * disabled
+   */
+  static Connection wrap(Connection conn) {
+    return ENABLED ? profile(conn) : conn;
+  }
+
+  /**
+   * Returns a connection whose statements are profiled
+   */
+  static Connection profile(Connection conn) {
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (target, method, args) -> {
+          Object result = invoke(conn, method, args);
+          if (result instanceof Statement && method.getReturnType().isInterface()) {
+            String sql = args != null && args.length > 0 && args[0] instanceof String
+                ? (String) args[0] : null;
+            return new ProfiledStatement(result, sql).proxy(method.getReturnType());
+          }
+          return result;
+        });
+  }
+
+  /**
+   * Formats every statement's statistics, one line each, slowest (in total) first
+   */
+  static String report() {
+    List<Map.Entry<String, Stats>> entries = new ArrayList<>(stats.entrySet());
+    entries.sort(Comparator.comparingLong(
+        (Map.Entry<String, Stats> e) -> e.getValue().totalNanos.sum()).reversed());
+    StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, Stats> entry : entries) {
+      Stats s = entry.getValue();
+      sb.append(String.format("%s: count=%d total=%.3fms max=%.3fms fetch=%.3fms rows=%d\n",
+                              entry.getKey(), s.count.sum(), s.totalNanos.sum() / 1e6,
+                              s.maxNanos.get() / 1e6, s.fetchNanos.sum() / 1e6,
+                              s.rows.sum()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Forgets every statement's statistics
+   */
+  static void reset() {
+    stats.clear();
+  }
+
+  private static String nameOf(String sql) {
+    if (sql == null) {
+      return "(unknown)";
+    }
+    String name = names.get(sql);
+    if (name != null) {
+      return name;
+    }
+    String flat = sql.replaceAll("\\s+", " ").trim();
+    return flat.length() <= MAX_SQL_NAME_LENGTH ? flat
+        : flat.substring(0, MAX_SQL_NAME_LENGTH) + "...";
+  }
+
+  private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static class Stats {
+    final LongAdder count = new LongAdder();
+    final LongAdder totalNanos = new LongAdder();
+    final LongAdder fetchNanos = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final AtomicLong maxNanos = new AtomicLong();
+  }
+
+  /**
+   * A statement, which remembers its parameters and times its executions
+   */
+  private static class ProfiledStatement {
+    private final Object stmt;
+    private final String sql;
+    private final Map<Integer, Object> params = new TreeMap<>();
+    // the execution whose results are still being read, if any
+    private Execution pending;
+
+    ProfiledStatement(Object stmt, String sql) {
+      this.stmt = stmt;
+      this.sql = sql;
+    }
+
+    Object proxy(Class<?> type) {
+      return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { type },
+                                    (target, method, args) -> {
+        String name = method.getName();
+        if (name.startsWith("execute")) {
+          return execute(method, args);
+        } else if (name.equals("close")) {
+          finishPending();
+        } else if (name.equals("clearParameters")) {
+          params.clear();
+        } else if (name.startsWith("set") && args != null && args.length >= 2
+                   && args[0] instanceof Integer) {
+          params.put((Integer) args[0], name.equals("setNull") ? "NULL" : args[1]);
+        }
+        return invoke(stmt, method, args);
+      });
+    }
+
+    private Object execute(Method method, Object[] args) throws Throwable {
+      // running the statement again closes the results of its last execution
+      finishPending();
+
+      String executedSql = args != null && args.length > 0 && args[0] instanceof String
+          ? (String) args[0] : sql;
+      Execution execution = new Execution(nameOf(executedSql), new ArrayList<>(params.values()));
+      long start = System.nanoTime();
+      Object result = invoke(stmt, method, args);
+      execution.executeNanos = System.nanoTime() - start;
+
+      if (result instanceof ResultSet) {
+        pending = execution;
+        return execution.proxy((ResultSet) result);
+      }
+      execution.finish();
+      return result;
+    }
+
+    private void finishPending() {
+      if (pending != null) {
+        pending.finish();
+        pending = null;
+      }
+    }
+  }
+
+  /**
+   * One execution of a statement, which is finished once its results are read or closed
+   */
+  private static class Execution {
+    private final String name;
+    private final List<Object> params;
+    long executeNanos;
+    private long fetchNanos;
+    private long rows;
+    private boolean finished;
+
+    Execution(String name, List<Object> params) {
+      this.name = name;
+      this.params = params;
+    }
+
+    ResultSet proxy(ResultSet rs) {
+      return (ResultSet) Proxy.newProxyInstance(
+          Connection.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+          (target, method, args) -> {
+            if (method.getName().equals("next")) {
+              long start = System.nanoTime();
+              Object hasRow = invoke(rs, method, args);
+              fetchNanos += System.nanoTime() - start;
+              if ((Boolean) hasRow) {
+                rows++;
+              } else {
+                finish();
+              }
+              return hasRow;
+            }
+            if (method.getName().equals("close")) {
+              finish();
+            }
+            return invoke(rs, method, args);
+          });
+    }
+
+    void finish() {
+      if (finished) {
+        return;
+      }
+      finished = true;
+
+      long totalNanos = executeNanos + fetchNanos;
+      Stats s = stats.computeIfAbsent(name, k -> new Stats());
+      s.count.increment();
+      s.totalNanos.add(totalNanos);
+      s.fetchNanos.add(fetchNanos);
+      s.rows.add(rows);
+      s.maxNanos.accumulateAndGet(totalNanos, Math::max);
+
+      if (SLOW_MS >= 0 && totalNanos >= SLOW_MS * 1000000) {
+        System.err.println(String.format(
+            "Slow statement: %s took %.3f ms (execute %.3f ms, fetch %.3f ms, %d rows) with"
+            + " parameters %s", name, totalNanos / 1e6, executeNanos / 1e6, fetchNanos / 1e6,
+            rows, params));
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package flightapp;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Keeps track of whether a connection has a transaction open, without asking the database.
+ *
+ * All use of the connection goes through the proxy returned by {@link #getConnection()}, which
+ * watches setAutoCommit(), commit() and rollback(), and the statements it creates, which watch
+ * their execute*() calls.  Like SQL Server's @@TRANCOUNT, a transaction is open once a statement
+ * runs with auto-commit off, until it is committed or rolled back.
+ *
+ * While the connection is borrowed for a command, the same calls are counted as round-trips in
+ * the command's CommandMetrics, along with the rows read from the statements' results, and each
+ * transaction is recorded as a FlightEvents.TransactionEvent if a flight recording wants it.
+ */
+class TransactionTracker implements InvocationHandler {
+  private final Connection conn;
+  private final Connection proxy;
+
+  private boolean autoCommit;
+  // whether a statement has run since the transaction started
+  private boolean pendingWork = false;
+
+  // where to count round-trips and rows read, if anywhere
+  private volatile CommandMetrics metrics;
+  // the running command's event, which transaction events are tagged with
+  private volatile FlightEvents.CommandEvent commandEvent;
+  // the open transaction's event, if it is being recorded
+  private FlightEvents.TransactionEvent transaction;
+
+  TransactionTracker(Connection conn) throws SQLException {
+    this.conn = conn;
+    this.autoCommit = conn.getAutoCommit();
+    this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                                     new Class<?>[] { Connection.class }, this);
+  }
+
+  /**
+   * The connection to use in place of the tracked one
+   */
+  Connection getConnection() {
+    return proxy;
+  }
+
+  /**
+   * Whether a transaction is open, ie there is work that hasn't been committed or rolled back
+   */
+  boolean inTransaction() {
+    return !autoCommit && pendingWork;
+  }
+
+  /**
+   * Counts the connection's round-trips and rows read in the metrics (or nowhere, if null) from
+   * now on
+   */
+  void setMetrics(CommandMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Tags the connection's transactions with the command's username and IDs (or nothing, if null)
+   * from now on
+   */
+  void setCommandEvent(FlightEvents.CommandEvent commandEvent) {
+    this.commandEvent = commandEvent;
+  }
+
+  /**
+   * The connection's auto-commit mode, as last set through the proxy
+   */
+  boolean getAutoCommit() {
+    return autoCommit;
+  }
+
+  @Override
+  public Object invoke(Object target, Method method, Object[] args) throws Throwable {
+    long start = transaction != null ? System.nanoTime() : 0;
+    Object result;
+    try {
+      result = method.invoke(conn, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+
+    switch (method.getName()) {
+      case "setAutoCommit":
+        // turning auto-commit on commits the open transaction
+        if (autoCommit != (Boolean) args[0]) {
+          autoCommit = (Boolean) args[0];
+          if (pendingWork) {
+            endTransaction("commit", start);
+          }
+          pendingWork = false;
+        }
+        break;
+      case "commit":
+        endTransaction("commit", start);
+        pendingWork = false;
+        addRoundTrip();
+        break;
+      case "rollback":
+        addRoundTrip();
+        // rolling back to a savepoint leaves the transaction open
+        if (args == null) {
+          endTransaction("rollback", start);
+          pendingWork = false;
+        }
+        break;
+      default:
+        if (result instanceof Statement && method.getReturnType().isInterface()) {
+          return trackStatement(method.getReturnType(), result);
+        }
+        break;
+    }
+    return result;
+  }
+
+  // Returns a proxy of the statement (a Statement, PreparedStatement or CallableStatement) that
+  // records when it runs
+  private Object trackStatement(Class<?> type, Object stmt) {
+    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { type },
+                                  (target, method, args) -> {
+      boolean execute = method.getName().startsWith("execute");
+      if (execute) {
+        addRoundTrip();
+        if (!autoCommit) {
+          if (!pendingWork) {
+            beginTransaction();
+          }
+          pendingWork = true;
+        }
+      } else if (method.getName().equals("getConnection")) {
+        return proxy;
+      }
+
+      FlightEvents.TransactionEvent timed = execute ? transaction : null;
+      long start = timed != null ? System.nanoTime() : 0;
+      Object result;
+      try {
+        result = method.invoke(stmt, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      } finally {
+        if (timed != null) {
+          timed.statements++;
+          timed.databaseTime += System.nanoTime() - start;
+        }
+      }
+      if (result instanceof ResultSet && metrics != null) {
+        return countRows((ResultSet) result);
+      }
+      return result;
+    });
+  }
+
+  // Returns a proxy of the results that counts the rows read from them
+  private ResultSet countRows(ResultSet rs) {
+    CommandMetrics counted = metrics;
+    return (ResultSet) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                                              new Class<?>[] { ResultSet.class },
+                                              (target, method, args) -> {
+      Object result;
+      try {
+        result = method.invoke(rs, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (method.getName().equals("next") && (Boolean) result) {
+        counted.addRowRead();
+      }
+      return result;
+    });
+  }
+
+  private void beginTransaction() {
+    FlightEvents.TransactionEvent event = new FlightEvents.TransactionEvent();
+    if (event.isEnabled()) {
+      event.begin();
+      transaction = event;
+    }
+  }
+
+  // Records the open transaction's event, if any; its commit or rollback started at start
+  private void endTransaction(String outcome, long start) {
+    FlightEvents.TransactionEvent event = transaction;
+    if (event == null) {
+      return;
+    }
+    transaction = null;
+    event.databaseTime += System.nanoTime() - start;
+    event.end();
+    if (event.shouldCommit()) {
+      event.setCommand(commandEvent);
+      event.outcome = outcome;
+      event.commit();
+    }
+  }
+
+  private void addRoundTrip() {
+    CommandMetrics m = metrics;
+    if (m != null) {
+      m.addRoundTrip();
+    }
+  }
+}
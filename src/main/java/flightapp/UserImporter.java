@@ -0,0 +1,251 @@
+package flightapp;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Bulk-creates users from a CSV file of "username,password,balance" lines.
+ *
+ * The file is streamed in chunks: each chunk's passwords are hashed in parallel on the
+ * PasswordUtils hashing pool and the chunk is then written with a single JDBC batch insert.
+ * Duplicate usernames are not looked up beforehand; their inserts simply fail on the primary key.
+ * Every line that could not be imported is copied, unchanged, to a "<file>.failed" file.
+ *
+ * Backends without a database, and sharded ones, import through a UserSink instead, one user at
+ * a time.
+ */
+class UserImporter {
+  /**
+   * Default number of users per batch insert
+   */
+  static final int DEFAULT_BATCH_SIZE = Integer.getInteger("flightapp.import.batch_size", 1000);
+
+  private static final String FAILED_FILE_SUFFIX = ".failed";
+  private static final String HEADER = "username,password,balance";
+
+  /**
+   * Stores a single user; returns false if the user could not be stored (eg, a duplicate)
+   */
+  @FunctionalInterface
+  interface UserSink {
+    boolean insert(String username, byte[] saltedHash, int balance);
+  }
+
+  private final Connection conn;
+  private final String insertUserSql;
+  private final UserSink sink;
+  private final int batchSize;
+
+  private int numImported;
+  private int numFailed;
+
+  /**
+   * @param conn          connection to insert with; must be in auto-commit mode
+   * @param insertUserSql "INSERT ... VALUES (username, salted_hashed_password, balance)"
+   * @param batchSize     number of users per batch insert
+   */
+  UserImporter(Connection conn, String insertUserSql, int batchSize) {
+    this.conn = conn;
+    this.insertUserSql = insertUserSql;
+    this.sink = null;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * @param sink      stores each user
+   * @param batchSize number of users whose passwords are hashed together
+   */
+  UserImporter(UserSink sink, int batchSize) {
+    this.conn = null;
+    this.insertUserSql = null;
+    this.sink = sink;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Imports every user in the file.
+   *
+   * @return "Imported [n] users, [m] failed in [t] ms ([r] rows/sec)\n"; if any failed, the
+   *         path of the file they were written to is reported on a second line.
+   */
+  String importFile(String path) throws IOException, SQLException {
+    long start = System.nanoTime();
+    String failedPath = path + FAILED_FILE_SUFFIX;
+
+    try (BufferedReader in = new BufferedReader(new FileReader(path));
+         BufferedWriter failed = new BufferedWriter(new FileWriter(failedPath));
+         PreparedStatement insertUserStmt =
+           sink == null ? conn.prepareStatement(insertUserSql) : null) {
+      List<Row> chunk = new ArrayList<>(batchSize);
+      String line;
+      boolean firstLine = true;
+      while ((line = in.readLine()) != null) {
+        if (line.trim().isEmpty() || (firstLine && line.trim().equalsIgnoreCase(HEADER))) {
+          firstLine = false;
+          continue;
+        }
+        firstLine = false;
+
+        Row row = Row.parse(line);
+        if (row == null) {
+          fail(failed, line);
+          continue;
+        }
+        chunk.add(row);
+        if (chunk.size() == batchSize) {
+          importChunk(insertUserStmt, chunk, failed);
+          chunk.clear();
+        }
+      }
+      importChunk(insertUserStmt, chunk, failed);
+    }
+
+    long elapsedMs = Math.max(1, (System.nanoTime() - start) / 1000000);
+    long rowsPerSec = (numImported + numFailed) * 1000L / elapsedMs;
+    String response = "Imported " + numImported + " users, " + numFailed + " failed in "
+        + elapsedMs + " ms (" + rowsPerSec + " rows/sec)\n";
+    if (numFailed > 0) {
+      response += "Failed rows written to " + failedPath + "\n";
+    } else {
+      Files.deleteIfExists(Paths.get(failedPath));
+    }
+    return response;
+  }
+
+  /**
+   * Hashes the chunk's passwords in parallel, then inserts the chunk as one batch (or hands each
+   * user to the sink).
+   */
+  private void importChunk(PreparedStatement insertUserStmt, List<Row> chunk,
+                           BufferedWriter failed) throws IOException, SQLException {
+    if (chunk.isEmpty()) {
+      return;
+    }
+
+    List<CompletableFuture<byte[]>> hashes = new ArrayList<>(chunk.size());
+    for (Row row : chunk) {
+      hashes.add(PasswordUtils.saltAndHashPasswordAsync(row.password));
+    }
+    for (int i = 0; i < chunk.size(); i++) {
+      // if the hashing pool is full, hash here: the import holds its connection throughout
+      // anyway, and isn't waited on interactively
+      String password = chunk.get(i).password;
+      chunk.get(i).saltedHash = hashes.get(i)
+          .exceptionally(e -> PasswordUtils.saltAndHashPassword(password)).join();
+    }
+
+    if (sink != null) {
+      for (Row row : chunk) {
+        if (sink.insert(row.username, row.saltedHash, row.balance)) {
+          numImported++;
+        } else {
+          fail(failed, row.line);
+        }
+      }
+      return;
+    }
+    insertBatch(insertUserStmt, chunk, failed);
+  }
+
+  /**
+   * Inserts the rows as one batch.  If some insert fails (eg, a duplicate username), the rows
+   * the driver reports as failed are recorded; if the driver stopped at the failing row, the rows
+   * after it are retried as a new batch.
+   */
+  private void insertBatch(PreparedStatement insertUserStmt, List<Row> rows,
+                           BufferedWriter failed) throws IOException, SQLException {
+    while (!rows.isEmpty()) {
+      insertUserStmt.clearBatch();
+      for (Row row : rows) {
+        insertUserStmt.clearParameters();
+        insertUserStmt.setString(1, row.username);
+        insertUserStmt.setBytes(2, row.saltedHash);
+        insertUserStmt.setInt(3, row.balance);
+        insertUserStmt.addBatch();
+      }
+
+      int[] counts;
+      try {
+        counts = insertUserStmt.executeBatch();
+      } catch (BatchUpdateException e) {
+        counts = e.getUpdateCounts();
+      }
+
+      for (int i = 0; i < counts.length; i++) {
+        if (counts[i] == Statement.EXECUTE_FAILED) {
+          fail(failed, rows.get(i).line);
+        } else {
+          numImported++;
+        }
+      }
+      if (counts.length == rows.size()) {
+        return;
+      }
+
+      // the driver stopped at the failing row
+      fail(failed, rows.get(counts.length).line);
+      rows = rows.subList(counts.length + 1, rows.size());
+    }
+  }
+
+  private void fail(BufferedWriter failed, String line) throws IOException {
+    failed.write(line);
+    failed.newLine();
+    numFailed++;
+  }
+
+  /**
+   * A single user to import
+   */
+  private static class Row {
+    final String line;
+    final String username;
+    final String password;
+    final int balance;
+    byte[] saltedHash;
+
+    private Row(String line, String username, String password, int balance) {
+      this.line = line;
+      this.username = username;
+      this.password = password;
+      this.balance = balance;
+    }
+
+    /**
+     * Parses "username,password,balance".  The password is everything between the first and
+     * the last comma, so it may itself contain commas.  Returns null for malformed lines and
+     * negative balances.
+     */
+    static Row parse(String line) {
+      int first = line.indexOf(',');
+      int last = line.lastIndexOf(',');
+      if (first <= 0 || first == last) {
+        return null;
+      }
+
+      try {
+        int balance = Integer.parseInt(line.substring(last + 1).trim());
+        if (balance < 0) {
+          return null;
+        }
+        String username = line.substring(0, first).trim().toLowerCase();
+        return new Row(line, username, line.substring(first + 1, last), balance);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+public class CommandParserTest {
+  // How FlightService used to split commands; the parser must agree with it
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  private static List<String> regexTokens(String command) {
+    Matcher m = TOKEN.matcher(command.trim());
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> parserTokens(CommandParser parser, String command) {
+    parser.parse(command);
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < parser.tokenCount(); i++) {
+      tokens.add(parser.token(i));
+    }
+    return tokens;
+  }
+
+  @Test
+  public void testTokenizesLikeTheRegex() {
+    String[] commands = {
+      "", "   ", "\t\n", "quit", "  login  user1   pw ",
+      "search \"Seattle WA\" \"Boston MA\" 1 1 1",
+      "search \"Seattle WA\"\"Boston MA\" 1 1 1",
+      "login \"\" pw", "login \"unclosed pw", "login a\"b c\"d", "login \"a\"b",
+      "\"quoted command\" arg", "create\tuser\tpw\t100", "\u0001login u p\u0001",
+      "login u\u0001p q", "login \"  spaced  \" \"tab\there\"", "\"\"\"\"\"",
+      "book 1 \"", "a b c d e f g h i j k l m n o p q r s t u v w x y z"
+    };
+    CommandParser parser = new CommandParser();
+    for (String command : commands) {
+      assertEquals(command, regexTokens(command), parserTokens(parser, command));
+    }
+  }
+
+  @Test
+  public void testParsesTypedArguments() {
+    CommandParser parser = new CommandParser();
+    CommandParser.Command cmd = parser.parse("search \"Seattle WA\" \"Boston MA\" 1 14 -3");
+    assertEquals(CommandParser.Type.SEARCH, cmd.type);
+    assertEquals(CommandParser.Error.NONE, cmd.error);
+    assertEquals("Seattle WA", cmd.originCity);
+    assertEquals("Boston MA", cmd.destinationCity);
+    assertEquals(true, cmd.directFlight);
+    assertEquals(14, cmd.dayOfMonth);
+    assertEquals(-3, cmd.numberOfItineraries);
+
+    cmd = parser.parse("reservations 2147483647 -2147483648");
+    assertEquals(CommandParser.Type.RESERVATIONS_PAGE, cmd.type);
+    assertEquals(Integer.MAX_VALUE, cmd.afterReservationId);
+    assertEquals(Integer.MIN_VALUE, cmd.pageSize);
+
+    cmd = parser.parse("reservations");
+    assertEquals(CommandParser.Type.RESERVATIONS, cmd.type);
+
+    // not a page, so the arguments are ignored
+    cmd = parser.parse("reservations next page");
+    assertEquals(CommandParser.Type.RESERVATIONS, cmd.type);
+    assertEquals(CommandParser.Error.NONE, cmd.error);
+    cmd = parser.parse("reservations 1 x");
+    assertEquals(CommandParser.Type.RESERVATIONS, cmd.type);
+  }
+
+  @Test
+  public void testRejectsWhatIntegerParseIntRejects() {
+    String[] numbers = {"0", "+7", "-0", "007", "2147483647", "-2147483648", "2147483648",
+                        "-2147483649", "99999999999", "", "+", "-", "1.5", "1e3", "0x10", " 1",
+                        "١٢"};
+    CommandParser parser = new CommandParser();
+    for (String number : numbers) {
+      CommandParser.Command cmd = parser.parse("book \"" + number + "\"");
+      try {
+        int expected = Integer.parseInt(number);
+        assertEquals(number, CommandParser.Error.NONE, cmd.error);
+        assertEquals(number, expected, cmd.itineraryId);
+      } catch (NumberFormatException e) {
+        assertEquals(number, CommandParser.Error.BAD_INTEGER, cmd.error);
+        assertEquals("Failed to parse integer", cmd.errorMessage);
+      }
+    }
+  }
+
+  @Test
+  public void testReportsUsageErrors() {
+    CommandParser parser = new CommandParser();
+    assertEquals(CommandParser.Error.USAGE, parser.parse("login user1").error);
+    assertEquals(CommandParser.Error.USAGE, parser.parse("import user x.csv").error);
+    assertEquals("Error: Please provide an itinerary_id", parser.parse("book").errorMessage);
+
+    // errors don't carry over to the next command
+    assertEquals(CommandParser.Error.BAD_INTEGER, parser.parse("pay x").error);
+    assertEquals(CommandParser.Error.NONE, parser.parse("pay 1").error);
+
+    CommandParser.Command cmd = parser.parse("fly away");
+    assertEquals(CommandParser.Type.UNKNOWN, cmd.type);
+    assertEquals("Error: unrecognized command 'fly'", cmd.errorMessage);
+    assertEquals(CommandParser.Type.EMPTY, parser.parse(" ").type);
+  }
+}
@@ -0,0 +1,155 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import flightapp.MemoryStore.ReservationRow;
+import flightapp.Query.Flight;
+
+/**
+ * Checks the users and reservations of the configured backend for states no sequence of
+ * correct transactions can reach: overbooked flights, negative balances, two reservations of a
+ * user on the same day, and reservation IDs used twice (which only shards could do).
+ */
+class ConsistencyCheck {
+  private static final String GET_USERS_SQL = "SELECT username, balance FROM Users_sknguyen";
+  private static final String GET_RESERVATIONS_SQL =
+      "SELECT reservation_id, res_username, first_flight_id, second_flight_id "
+      + "FROM Reservations_sknguyen";
+
+  private final List<ReservationRow> reservations = new ArrayList<>();
+  private final Map<String, Integer> balances = new HashMap<>();
+  private Map<Integer, Flight> flights;
+
+  int overbookedFlights;
+  int negativeBalances;
+  int sameDayReservations;
+  int duplicateReservationIds;
+
+  private ConsistencyCheck() { }
+
+  /**
+   * Checks the backend's current state
+   */
+  static ConsistencyCheck run() throws IOException, SQLException {
+    ConsistencyCheck check = new ConsistencyCheck();
+    if (FlightService.usesMemoryBackend()) {
+      check.loadMemoryStore();
+    } else {
+      check.loadDatabase();
+    }
+    check.check();
+    return check;
+  }
+
+  int violations() {
+    return overbookedFlights + negativeBalances + sameDayReservations + duplicateReservationIds;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d users, %d reservations: overbooked flights=%d negative balances=%d"
+                         + " same-day reservations=%d duplicate reservation IDs=%d",
+                         balances.size(), reservations.size(), overbookedFlights,
+                         negativeBalances, sameDayReservations, duplicateReservationIds);
+  }
+
+  private void loadMemoryStore() throws IOException {
+    MemoryStore store = MemoryStore.getInstance();
+    Lock lock = store.lock.readLock();
+    lock.lock();
+    try {
+      reservations.addAll(store.getReservations());
+      for (Map.Entry<String, MemoryStore.User> user : store.getUsers().entrySet()) {
+        balances.put(user.getKey(), user.getValue().balance);
+      }
+    } finally {
+      lock.unlock();
+    }
+    flights = store.getFlights();
+  }
+
+  private void loadDatabase() throws IOException, SQLException {
+    int numShards = DBConnUtils.getShardCount();
+    if (numShards > 1) {
+      for (int shard = 0; shard < numShards; shard++) {
+        try (Connection conn = DBConnUtils.openShardConnection(
+                 shard, Connection.TRANSACTION_SERIALIZABLE)) {
+          loadUsersAndReservations(conn);
+        }
+      }
+    }
+
+    try (Connection conn = DBConnUtils.openConnection()) {
+      if (numShards <= 1) {
+        loadUsersAndReservations(conn);
+      }
+      Set<Integer> fids = new HashSet<>();
+      for (ReservationRow res : reservations) {
+        fids.add(res.firstFid);
+        fids.add(res.secondFid);
+      }
+      fids.remove(0);
+      flights = FlightCache.getAll(conn, fids);
+    }
+  }
+
+  private void loadUsersAndReservations(Connection conn) throws SQLException {
+    try (Statement stmt = conn.createStatement()) {
+      try (ResultSet rs = stmt.executeQuery(GET_USERS_SQL)) {
+        while (rs.next()) {
+          balances.put(rs.getString("username"), rs.getInt("balance"));
+        }
+      }
+      try (ResultSet rs = stmt.executeQuery(GET_RESERVATIONS_SQL)) {
+        while (rs.next()) {
+          // getInt() maps a NULL second flight to 0, as ReservationRow expects
+          reservations.add(new ReservationRow(rs.getInt("reservation_id"),
+                                              rs.getString("res_username"), 0,
+                                              rs.getInt("first_flight_id"),
+                                              rs.getInt("second_flight_id")));
+        }
+      }
+    }
+  }
+
+  private void check() {
+    Map<Integer, Integer> seatsTaken = new HashMap<>();
+    Map<String, Set<Integer>> daysBooked = new HashMap<>();
+    Set<Integer> ids = new HashSet<>();
+    for (ReservationRow res : reservations) {
+      seatsTaken.merge(res.firstFid, 1, Integer::sum);
+      if (res.secondFid != 0) {
+        seatsTaken.merge(res.secondFid, 1, Integer::sum);
+      }
+      int day = flights.get(res.firstFid).dayOfMonth;
+      if (!daysBooked.computeIfAbsent(res.username.toLowerCase(), k -> new HashSet<>()).add(day)) {
+        sameDayReservations++;
+      }
+      if (!ids.add(res.id)) {
+        duplicateReservationIds++;
+      }
+    }
+
+    for (Map.Entry<Integer, Integer> seats : seatsTaken.entrySet()) {
+      if (seats.getValue() > flights.get(seats.getKey()).capacity) {
+        overbookedFlights++;
+      }
+    }
+    for (int balance : balances.values()) {
+      if (balance < 0) {
+        negativeBalances++;
+      }
+    }
+  }
+}
\ No newline at end of file
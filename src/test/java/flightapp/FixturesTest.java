@@ -0,0 +1,93 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FixturesTest {
+  private static final String[] CITIES = {
+    "Seattle WA", "Boston MA", "New York NY", "Chicago IL", "Denver CO", "Atlanta GA",
+    "Dallas/Fort Worth TX", "San Francisco CA", "Los Angeles CA", "Miami FL"
+  };
+
+  private MemoryStore store;
+  private final AtomicInteger sessionsCreated = new AtomicInteger();
+
+  @Before
+  public void createStore() throws IOException {
+    // Two flights a day between every pair of cities, with seats for everyone
+    List<String> flights = new ArrayList<>();
+    int fid = 1;
+    for (int day = 1; day <= 3; day++) {
+      for (String origin : CITIES) {
+        for (String dest : CITIES) {
+          for (int i = 0; !origin.equals(dest) && i < 2; i++, fid++) {
+            flights.add(fid + ",7," + day + ",1,AA," + fid + "," + origin + ",XX," + dest
+                        + ",YY,0,0,0,0," + (100 + fid % 50) + ",100,1000,100");
+          }
+        }
+      }
+    }
+    store = TestUtils.createMemoryStore(flights);
+  }
+
+  private QueryAbstract newSession() {
+    sessionsCreated.incrementAndGet();
+    return new MemoryQuery(store);
+  }
+
+  @Test
+  public void testFixtureIsBuiltOnceThenRestored() throws IOException, SQLException {
+    String name = Fixtures.restoreUsers(this::newSession, 20, 2);
+    assertEquals(20, store.getUsers().size());
+    assertEquals(40, store.getReservations().size());
+
+    // Changes after the fixture was saved are undone by restoring it, without rebuilding it
+    QueryAbstract query = newSession();
+    query.login(Fixtures.username(3), Fixtures.PASSWORD);
+    int reservationId = store.getReservations(Fixtures.username(3)).get(0).id;
+    assertTrue(query.pay(reservationId).startsWith("Paid reservation"));
+    query.createCustomer("someone", "pw", 100);
+    query.closeConnection();
+
+    sessionsCreated.set(0);
+    assertEquals(name, Fixtures.restoreUsers(this::newSession, 20, 2));
+    assertEquals(1, sessionsCreated.get());
+    assertEquals(20, store.getUsers().size());
+    assertEquals(40, store.getReservations().size());
+    assertFalse(store.getReservation(reservationId).isPaid);
+    assertEquals(Fixtures.BALANCE, store.getUser(Fixtures.username(3)).balance);
+  }
+
+  @Test
+  public void testRestoredStateContinuesReservationIds() throws IOException, SQLException {
+    Fixtures.restoreUsers(this::newSession, 5, 1);
+    QueryAbstract query = newSession();
+    query.createCustomer("someone", "pw", 100000);
+    query.login("someone", "pw");
+    query.search("Seattle WA", "Boston MA", true, 2, 1);
+    assertEquals("Booked flight(s), reservation ID: 6\n", query.book(0));
+    query.closeConnection();
+  }
+
+  @Test
+  public void testMissingAndBadSnapshotNames() throws SQLException {
+    QueryAbstract query = newSession();
+    assertFalse(query.restoreSnapshot("none"));
+    try {
+      query.saveSnapshot("x; DROP TABLE Flights");
+      fail("Expected the name to be refused");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
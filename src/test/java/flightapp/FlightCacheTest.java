@@ -0,0 +1,68 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import flightapp.Query.Flight;
+
+public class FlightCacheTest {
+  @Before
+  public void clearCache() {
+    FlightCache.clear();
+  }
+
+  @After
+  public void clearCacheAgain() {
+    FlightCache.clear();
+  }
+
+  // A result set positioned on a row of the flight with the given fid
+  private static ResultSet flightRow(int fid) {
+    return (ResultSet) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+        (target, method, args) -> {
+          switch (method.getName()) {
+            case "getInt":
+              return args[0].equals("fid") ? fid : 1;
+            case "getString":
+              return "x";
+            default:
+              return null;
+          }
+        });
+  }
+
+  @Test
+  public void testCountsHitsAndMisses() throws SQLException {
+    Flight loaded = FlightCache.fromResults(flightRow(1), "");
+    assertSame(loaded, FlightCache.fromResults(flightRow(1), ""));
+    assertSame(loaded, FlightCache.get(1));
+    assertNull(FlightCache.get(2));
+
+    assertEquals(1, FlightCache.size());
+    assertEquals(2, FlightCache.hitCount());
+    assertEquals(2, FlightCache.missCount());
+    assertEquals(0.5, FlightCache.hitRatio(), 1e-9);
+    assertEquals("flight_cache: size=1 hits=2 misses=2 hit_ratio=0.500\n", FlightCache.report());
+  }
+
+  @Test
+  public void testStatsReportsTheCache() throws IOException {
+    assertNull(FlightCache.get(1));
+    QueryAbstract q = new MemoryQuery(TestUtils.createMemoryStore(Collections.emptyList()));
+    String stats = FlightService.execute(q, "stats");
+    assertTrue(stats, stats.contains("\nflight_cache: size=0 hits=0 misses=1 hit_ratio=0.000\n"));
+  }
+}
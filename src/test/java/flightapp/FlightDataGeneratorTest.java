@@ -0,0 +1,72 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+import org.junit.Test;
+
+import flightapp.Query.Itinerary;
+
+public class FlightDataGeneratorTest {
+  private static FlightDataGenerator.Options smallOptions() {
+    FlightDataGenerator.Options options = new FlightDataGenerator.Options();
+    options.cities = 20;
+    options.flightsPerDay = 200;
+    options.days = 3;
+    options.seed = 7;
+    return options;
+  }
+
+  private static String generate(FlightDataGenerator.Options options) {
+    StringWriter out = new StringWriter();
+    new FlightDataGenerator(options).writeCsv(out);
+    return out.toString();
+  }
+
+  @Test
+  public void testSameSeedGivesSameFlights() {
+    assertEquals(generate(smallOptions()), generate(smallOptions()));
+
+    FlightDataGenerator.Options otherSeed = smallOptions();
+    otherSeed.seed = 8;
+    assertTrue(!generate(smallOptions()).equals(generate(otherSeed)));
+  }
+
+  @Test
+  public void testHubsHaveMostFlights() {
+    String[] lines = generate(smallOptions()).split("\n");
+    assertEquals(1 + 200 * 3, lines.length);
+    int fromHub = 0;
+    int fromLast = 0;
+    for (int i = 1; i < lines.length; i++) {
+      String origin = lines[i].split(",")[6];
+      fromHub += origin.equals(FlightDataGenerator.cityName(0)) ? 1 : 0;
+      fromLast += origin.equals(FlightDataGenerator.cityName(19)) ? 1 : 0;
+    }
+    assertTrue(fromHub + " flights from the hub, " + fromLast + " from the last city",
+               fromHub > 5 * fromLast);
+  }
+
+  @Test
+  public void testMemoryStoreLoadsTheFlights() throws IOException {
+    File file = File.createTempFile("flights", ".csv");
+    try {
+      try (FileWriter out = new FileWriter(file)) {
+        new FlightDataGenerator(smallOptions()).writeCsv(out);
+      }
+      MemoryStore store = new MemoryStore(file.getPath());
+      assertEquals(600, store.getFlights().size());
+
+      List<Itinerary> itineraries = store.connectingItineraries(
+          FlightDataGenerator.cityName(0), FlightDataGenerator.cityName(1), 1, 10);
+      assertEquals(10, itineraries.size());
+    } finally {
+      file.delete();
+    }
+  }
+}
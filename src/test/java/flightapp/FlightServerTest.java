@@ -0,0 +1,231 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Loopback tests of FlightServer, against an in-memory store
+ */
+public class FlightServerTest {
+  /**
+   * Number of concurrent sessions in the load test
+   */
+  private static final int NUM_SESSIONS = Integer.getInteger("flightapp.test.server_sessions", 500);
+
+  private static final String SEARCH = "search \"Seattle WA\" \"Boston MA\" 1 1 1";
+  private static final String SEARCH_RESPONSE =
+      "Itinerary 0: 1 flight(s), 297 minutes\n"
+      + "ID: 60454 Day: 1 Carrier: AS Number: 24 Origin: Seattle WA Dest: Boston MA Duration: 297"
+      + " Capacity: 14 Price: 140\n";
+
+  private MemoryStore store;
+
+  @Before
+  public void createStore() throws IOException {
+    store = TestUtils.createMemoryStore(Arrays.asList(
+        "60454,7,1,5,AS,24,Seattle WA,Washington,Boston MA,Massachusetts,0,0,0,0,297,2496,14,140"));
+  }
+
+  private FlightServer startServer(int maxSessions) throws IOException {
+    FlightServer server = new FlightServer(0, maxSessions, 4, () -> new MemoryQuery(store));
+    server.start();
+    return server;
+  }
+
+  /**
+   * Sends the commands and returns everything the server sends back before closing the session
+   */
+  private static String readAll(Socket socket) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    String line;
+    while ((line = in.readLine()) != null) {
+      sb.append(line).append("\n");
+    }
+    return sb.toString();
+  }
+
+  private static void send(Socket socket, String... commands) throws IOException {
+    OutputStream out = socket.getOutputStream();
+    for (String command : commands) {
+      out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+    out.flush();
+  }
+
+  @Test
+  public void testReadOnlyCommandsAreClassifiedByTheParser() {
+    assertTrue(FlightServer.isReadOnly("  search \"Seattle WA\" \"Boston MA\" 1 1 1"));
+    assertTrue(FlightServer.isReadOnly("reservations"));
+    assertTrue(FlightServer.isReadOnly("reservations 0 10"));
+    assertTrue(FlightServer.isReadOnly("reservations next page"));
+    assertFalse(FlightServer.isReadOnly("searching"));
+    assertFalse(FlightServer.isReadOnly("book 0"));
+    assertFalse(FlightServer.isReadOnly(""));
+  }
+
+  /**
+   * Clients can't make the server read (or write next to) its files
+   */
+  @Test
+  public void testRefusesImportUsers() throws Exception {
+    Path csv = Files.createTempFile("users", ".csv");
+    try (FlightServer server = startServer(1);
+         Socket socket = new Socket("localhost", server.getPort())) {
+      Files.write(csv, Arrays.asList("user1,pw,100"));
+      send(socket, "import users " + csv, "login user1 pw", "quit");
+      assertEquals("Error: import users is only available locally\nLogin failed\nGoodbye\n",
+                   readAll(socket));
+      assertFalse(Files.exists(Paths.get(csv + ".failed")));
+    } finally {
+      Files.delete(csv);
+    }
+  }
+
+  /**
+   * Each session's stats end with its own startup times, once its first command has finished
+   */
+  @Test
+  public void testStatsReportSessionStartup() throws Exception {
+    try (FlightServer server = startServer(1);
+         Socket socket = new Socket("localhost", server.getPort())) {
+      send(socket, "stats", SEARCH, "stats", "quit");
+      String[] lines = readAll(socket).split("\n");
+      List<String> startup = new ArrayList<>();
+      for (String line : lines) {
+        if (line.startsWith("session_startup: ")) {
+          startup.add(line);
+        }
+      }
+      assertEquals(2, startup.size());
+      assertTrue(startup.get(0), startup.get(0).endsWith(" first_command=-"));
+      assertTrue(startup.get(1), startup.get(1).matches(
+          "session_startup: connect=0\\.0ms create_statements=0\\.0ms first_command=\\d+\\.\\dms"));
+    }
+  }
+
+  @Test
+  public void testManyConcurrentSessions() throws Exception {
+    try (FlightServer server = startServer(NUM_SESSIONS)) {
+      // Every session is connected, and has a command in flight, at the same time
+      List<Socket> sockets = new ArrayList<>();
+      try {
+        for (int i = 0; i < NUM_SESSIONS; i++) {
+          Socket socket = new Socket("localhost", server.getPort());
+          sockets.add(socket);
+          send(socket, SEARCH);
+        }
+        for (Socket socket : sockets) {
+          send(socket, "quit");
+        }
+        for (Socket socket : sockets) {
+          assertEquals(SEARCH_RESPONSE + "Goodbye\n", readAll(socket));
+        }
+      } finally {
+        for (Socket socket : sockets) {
+          socket.close();
+        }
+      }
+
+      assertEquals(NUM_SESSIONS, server.getAcceptedCount());
+      assertEquals(2L * NUM_SESSIONS, server.getCommandCount());
+    }
+  }
+
+  @Test
+  public void testPipelinedCommandsAreAnsweredInOrder() throws Exception {
+    try (FlightServer server = startServer(1);
+         Socket socket = new Socket("localhost", server.getPort())) {
+      // one write holding many commands, mixing read-only commands and others
+      StringBuilder commands = new StringBuilder();
+      StringBuilder expected = new StringBuilder();
+      for (int i = 0; i < 50; i++) {
+        commands.append(SEARCH).append("\n").append("book 0\n");
+        expected.append(SEARCH_RESPONSE).append("Cannot book reservations, not logged in\n");
+      }
+      send(socket, commands.toString() + "quit");
+      expected.append("Goodbye\n");
+
+      assertEquals(expected.toString(), readAll(socket));
+      assertEquals(101, server.getCommandCount());
+    }
+  }
+
+  @Test
+  public void testBatchesResponsesToPipelinedCommands() throws Exception {
+    try (FlightServer server = startServer(1);
+         Socket socket = new Socket("localhost", server.getPort())) {
+      StringBuilder commands = new StringBuilder();
+      for (int i = 0; i < 100; i++) {
+        commands.append(SEARCH).append("\n");
+      }
+      send(socket, commands.toString() + "quit");
+      readAll(socket);
+
+      assertEquals(101, server.getCommandCount());
+      assertTrue(server.getBatchCount() < server.getCommandCount());
+    }
+  }
+
+  @Test
+  public void testSessionsHaveTheirOwnState() throws Exception {
+    try (FlightServer server = startServer(2);
+         Socket s1 = new Socket("localhost", server.getPort());
+         Socket s2 = new Socket("localhost", server.getPort())) {
+      send(s1, "create user1 pw 100", "login user1 pw", "quit");
+      assertEquals("Created user user1\nLogged in as user1\nGoodbye\n", readAll(s1));
+
+      send(s2, "reservations", "login user1 pw", "quit");
+      assertEquals("Cannot view reservations, not logged in\nLogged in as user1\nGoodbye\n",
+                   readAll(s2));
+    }
+  }
+
+  @Test
+  public void testRejectsSessionsOverTheLimit() throws Exception {
+    try (FlightServer server = startServer(1);
+         Socket s1 = new Socket("localhost", server.getPort())) {
+      send(s1, SEARCH);
+      try (Socket s2 = new Socket("localhost", server.getPort())) {
+        assertEquals("Error: Too many sessions\n", readAll(s2));
+      }
+      send(s1, "quit");
+      assertEquals(SEARCH_RESPONSE + "Goodbye\n", readAll(s1));
+      assertEquals(1, server.getRejectedCount());
+    }
+  }
+
+  @Test
+  public void testShutdownAnswersCommandsAlreadyReceived() throws Exception {
+    FlightServer server = startServer(1);
+    try (Socket socket = new Socket("localhost", server.getPort())) {
+      send(socket, SEARCH);
+      socket.shutdownOutput();
+      // wait for the command to be received before shutting down
+      long deadline = System.currentTimeMillis() + 10000;
+      while (server.getCommandCount() == 0 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      server.close();
+      assertEquals(SEARCH_RESPONSE, readAll(socket));
+      assertTrue(server.getSessionCount() == 0);
+    }
+  }
+}
@@ -8,12 +8,14 @@ import java.nio.file.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.*;
 import java.sql.*;
 import org.apache.commons.io.FileUtils;
@@ -21,12 +23,17 @@ import org.apache.commons.io.FilenameUtils;
 import org.junit.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
+import org.junit.runners.model.RunnerScheduler;
 
 
 /**
  * Autograder for the transaction assignment
+ *
+ * With the in-memory backend, each case runs against its own MemoryStore, so cases run
+ * concurrently on "test.threads" threads (default: one per core).  Against a database they share
+ * the tables, and so run one at a time.
  */
-@RunWith(Parameterized.class)
+@RunWith(FlightServiceTest.ConcurrentParameterized.class)
 public class FlightServiceTest {
   BufferedWriter report;
 
@@ -51,11 +58,24 @@ public class FlightServiceTest {
    */
   private static final int RESPONSE_WAIT_SECS = 60;
 
+  /**
+   * Number of test cases to run at once
+   */
+  private static final int CASE_THREADS = FlightService.usesMemoryBackend()
+      ? Integer.getInteger("test.threads", Runtime.getRuntime().availableProcessors()) : 1;
+
   /**
    * Thread pool used to run different sessions
    */
   private static ExecutorService pool;
 
+  /**
+   * Wall-clock start of the suite, and the time spent in each case, summed
+   */
+  private static long suiteStartNanos;
+  private static final LongAdder caseNanos = new LongAdder();
+  private static final LongAdder casesRun = new LongAdder();
+
   /**
    * Denotes a comment
    */
@@ -86,7 +106,7 @@ public class FlightServiceTest {
   /**
    * The list of tests whose output is private.
    */
-  private static final Set<String> PRIVATE_TEST_LIST = new HashSet<>();
+  private static final Set<String> PRIVATE_TEST_LIST = ConcurrentHashMap.newKeySet();
 
   /**
    * The Java property name used to toggle whether the detailed output from private tests
@@ -105,7 +125,7 @@ public class FlightServiceTest {
    * Callable from a thread.
    */
   static class Session implements Callable<String> {
-    private Query q;
+    private QueryAbstract q;
     private List<String> cmds; // commands that this session will execute
     private List<String> results; // the expected results from those
                                   // commands.  The entire output is stored
@@ -114,7 +134,7 @@ public class FlightServiceTest {
                                   // multiple commands
     private CyclicBarrier barrier;
 
-    public Session(Query q, List<String> cmds, List<String> results) throws IOException, SQLException {
+    public Session(QueryAbstract q, List<String> cmds, List<String> results) throws IOException, SQLException {
       this.q = q;
       this.cmds = cmds;
       this.results = results;
@@ -125,6 +145,10 @@ public class FlightServiceTest {
       return results;
     }
 
+    public List<String> commands() {
+      return cmds;
+    }
+
     public int numBarrierInvocations() {
       int numBarrierInvocations = 0;
       for (String cmd : cmds) {
@@ -203,6 +227,14 @@ public class FlightServiceTest {
    * @throws Exception
    */
   static List<Session> parse(String filename) throws IOException, SQLException {
+    return parse(filename, FlightService::createQuery);
+  }
+
+  /**
+   * Parse the input test case, with sessions from the factory
+   */
+  static List<Session> parse(String filename, FlightServer.SessionFactory factory)
+      throws IOException, SQLException {
     List<Session> sessions = new ArrayList<>();  // recall that a session is a single
                                                  // terminal that's executing commands
                                                  // against our database
@@ -240,7 +272,7 @@ public class FlightServiceTest {
           // A single session's list of possible results has finished; record the current
           // result and finalize the entire session.
           currResults.add(partialResult);
-          sessions.add(new Session(new Query(), currCmds, currResults));
+          sessions.add(new Session(factory.create(), currCmds, currResults));
 
           partialResult = "";
           currCmds = new ArrayList<>();
@@ -316,6 +348,35 @@ public class FlightServiceTest {
     return sessions;
   }
 
+  /**
+   * Runs the cases (ie, the child runners) CASE_THREADS at a time
+   */
+  public static class ConcurrentParameterized extends Parameterized {
+    public ConcurrentParameterized(Class<?> klass) throws Throwable {
+      super(klass);
+      if (CASE_THREADS > 1) {
+        setScheduler(new RunnerScheduler() {
+          private final ExecutorService cases = Executors.newFixedThreadPool(CASE_THREADS);
+
+          @Override
+          public void schedule(Runnable childStatement) {
+            cases.submit(childStatement);
+          }
+
+          @Override
+          public void finished() {
+            cases.shutdown();
+            try {
+              cases.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+    }
+  }
+
   /**
    * Creates the thread pool to execute test cases with multiple sessions.
    */
@@ -323,8 +384,40 @@ public class FlightServiceTest {
   public static void setup() {
     System.out.println("Running test setup...");
 
-    pool = Executors.newFixedThreadPool(MAX_SESSIONS);
+    // Unbounded when cases run concurrently, so that one case's sessions waiting at a barrier
+    // can't hold every thread while the rest of its sessions wait for one
+    pool = CASE_THREADS > 1 ? Executors.newCachedThreadPool()
+                            : Executors.newFixedThreadPool(MAX_SESSIONS);
+    suiteStartNanos = System.nanoTime();
     
+    if (FlightService.usesMemoryBackend()) {
+      System.out.println("... using the in-memory backend; not touching the database");
+    } else {
+      resetDatabase();
+    }
+
+    showPrivateOutput = System.getProperty(PRIVATE_OUTPUT_PROPNAME, "false")
+      .equalsIgnoreCase("true");
+    if (showPrivateOutput) {
+      System.out.println("\nWARNING: detailed results from private tests will be output");
+    }
+
+    String reportPath = System.getProperty("report_pass");
+    if (reportPath != null) {
+      FileUtils.deleteQuietly(new File(reportPath));
+    }
+
+    if (CASE_THREADS > 1) {
+      System.out.println("... running " + CASE_THREADS + " cases at a time");
+    }
+
+    System.out.println("\nStarting tests");
+  }
+
+  /**
+   * Drops the student-created tables and recreates them with createTables.sql
+   */
+  private static void resetDatabase() {
     try {
       System.out.println("... using dbconn.properties for test credentials");
       Connection conn = DBConnUtils.openConnection();
@@ -350,6 +443,16 @@ public class FlightServiceTest {
           System.out.println("... fully resetting database (ie, dropping everything except "
                              + "domain tables)");
         }
+        // Shards first, since a shard can be the primary database itself
+        int numShards = DBConnUtils.getShardCount();
+        for (int shard = 0; numShards > 1 && shard < numShards; shard++) {
+          System.out.println("... resetting shard " + shard + " with createShardTables.sql");
+          try (Connection shardConn = DBConnUtils.openShardConnection(
+                   shard, Connection.TRANSACTION_SERIALIZABLE)) {
+            TestUtils.dropTablesWithOptionalSuffix(shardConn, tableSuffix);
+            TestUtils.runScript(shardConn, "createShardTables.sql");
+          }
+        }
         TestUtils.dropTablesWithOptionalSuffix(conn, tableSuffix);
 
         System.out.println("... running createTables.sql");
@@ -365,19 +468,6 @@ public class FlightServiceTest {
       e.printStackTrace(System.out);
       System.exit(1);
     }
-
-    showPrivateOutput = System.getProperty(PRIVATE_OUTPUT_PROPNAME, "false")
-      .equalsIgnoreCase("true");
-    if (showPrivateOutput) {
-      System.out.println("\nWARNING: detailed results from private tests will be output");
-    }
-
-    String reportPath = System.getProperty("report_pass");
-    if (reportPath != null) {
-      FileUtils.deleteQuietly(new File(reportPath));
-    }
-
-    System.out.println("\nStarting tests");
   }
 
   /**
@@ -397,7 +487,13 @@ public class FlightServiceTest {
    */
   @Parameterized.Parameters
   public static Collection<String> files() throws IOException {
-    String pathString = System.getProperty("test.cases");
+    return findCases(System.getProperty("test.cases"));
+  }
+
+  /**
+   * Gets the test case scenario files in a ":"-separated list of files and folders
+   */
+  static Collection<String> findCases(String pathString) {
     return Arrays.stream(pathString.split(":", -1)).map(Paths::get).flatMap(path -> {
       try {
         if (Files.isDirectory(path)) {
@@ -425,11 +521,14 @@ public class FlightServiceTest {
 
   @Before
   public void clearDB() throws SQLException, IOException {
-    // TODO(hctang): pull connection mgmt out of Query altogether, and make clearTables a
-    // static method that accepts a conn argument instead.
-    Query query = new Query();
-    query.clearTables();
-    query.closeConnection();
+    // With the in-memory backend, runTest() starts from an empty store of its own
+    if (!FlightService.usesMemoryBackend()) {
+      // TODO(hctang): pull connection mgmt out of Query altogether, and make clearTables a
+      // static method that accepts a conn argument instead.
+      QueryAbstract query = FlightService.createQuery();
+      query.clearTables();
+      query.closeConnection();
+    }
 
     String reportPath = System.getProperty(TESTLOG_PATHNAME);
 
@@ -446,15 +545,45 @@ public class FlightServiceTest {
     }
   }
 
+  /**
+   * Prints the suite's wall-clock time, and how many cases were running at once on average (the
+   * sum of their times over the wall-clock time).  That is not how much faster the suite ran:
+   * cases slow each other down once there are more threads than cores, so time a run with
+   * -Dtest.threads=1 to compare.
+   */
+  @AfterClass
+  public static void printOverlap() {
+    double wallSecs = (System.nanoTime() - suiteStartNanos) / 1e9;
+    double caseSecs = caseNanos.sum() / 1e9;
+    System.out.println(String.format(
+        "Ran %d cases on %d thread(s) in %.1f s of wall-clock time; their own times add up to "
+        + "%.1f s, so on average %.1f were running at once",
+        casesRun.sum(), CASE_THREADS, wallSecs, caseSecs, caseSecs / wallSecs));
+  }
+
+  @AfterClass
+  public static void printProfile() {
+    if (StatementProfiler.ENABLED) {
+      System.out.println("Statement profile:\n" + StatementProfiler.report());
+    }
+  }
+
   /**
    * Runs the test case scenario
    */
   @Test
   public void runTest() throws Exception {
     System.out.println("Running test file: " + this.file);
+    long start = System.nanoTime();
 
     // Loads the scenario and initializes sessions
-    List<Session> sessions = parse(this.file);
+    List<Session> sessions;
+    if (FlightService.usesMemoryBackend()) {
+      MemoryStore store = new MemoryStore(MemoryStore.getInstance());
+      sessions = parse(this.file, () -> new MemoryQuery(store));
+    } else {
+      sessions = parse(this.file);
+    }
     List<Future<String>> futures = new ArrayList<>();
     for (Session sess : sessions) {
       futures.add(pool.submit(sess));
@@ -506,8 +635,11 @@ public class FlightServiceTest {
         }
       } else {
         if (report != null) {
-          report.write(FilenameUtils.separatorsToUnix(this.file));
-          report.newLine();
+          synchronized (FlightServiceTest.class) {
+            report.write(FilenameUtils.separatorsToUnix(this.file));
+            report.newLine();
+            report.flush();
+          }
         }
       }
 
@@ -521,6 +653,8 @@ public class FlightServiceTest {
       for (Session sess : sessions) {
         sess.shutdown();
       }
+      caseNanos.add(System.nanoTime() - start);
+      casesRun.increment();
     }
   }
 
@@ -0,0 +1,77 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  @Test
+  public void testBucketsCoverEveryValue() {
+    long[] values = {0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE};
+    for (long value : values) {
+      int bucket = LatencyHistogram.bucketOf(value);
+      assertTrue(value + " above its bucket", LatencyHistogram.lowerBound(bucket) <= value);
+      if (value < Long.MAX_VALUE) {
+        // the next bucket starts after the value
+        assertTrue(value + " below its bucket",
+                   value < LatencyHistogram.lowerBound(bucket + 1)
+                   || LatencyHistogram.lowerBound(bucket + 1) < 0);
+      }
+    }
+    assertEquals(LatencyHistogram.bucketOf(16), LatencyHistogram.bucketOf(17));
+  }
+
+  @Test
+  public void testPercentilesAreWithinTheBucketError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    // 1..10000 microseconds
+    for (int micros = 1; micros <= 10000; micros++) {
+      histogram.record(micros * 1000L);
+    }
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000, histogram.getMaxMicros());
+    assertEquals(5000.5, histogram.getMeanMicros(), 0.001);
+
+    assertWithin(5000, histogram.getPercentileMicros(0.5));
+    assertWithin(9900, histogram.getPercentileMicros(0.99));
+    assertWithin(9990, histogram.getPercentileMicros(0.999));
+    assertEquals(10000, histogram.getPercentileMicros(1.0));
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("expected about " + expected + " but was " + actual,
+               actual >= expected && actual <= expected * 1.125);
+  }
+
+  @Test
+  public void testConcurrentRecordingLosesNothing() throws InterruptedException {
+    LatencyHistogram histogram = new LatencyHistogram();
+    List<Thread> threads = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 100000; i++) {
+          histogram.record(i % 5000 * 1000L);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(800000, histogram.getCount());
+    assertEquals(4999, histogram.getMaxMicros());
+  }
+
+  @Test
+  public void testReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(5000000);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentileMicros(0.99));
+  }
+}
@@ -0,0 +1,285 @@
+package flightapp;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test driven by the test case scenarios: replays them, or a weighted mix of them, from
+ * many concurrent clients for a fixed time, then reports throughput, latency percentiles per
+ * command, transaction retries and any inconsistencies left in the data (see ConsistencyCheck).
+ *
+ * Usage: LoadGenerator [--clients N] [--duration SECONDS] scenario[=weight] ...
+ *
+ * A scenario is a test case file or a folder of them; its weight (default 1) applies to each
+ * file.  Each client replays one scenario at a time, running its sessions concurrently with
+ * their barriers, as FlightServiceTest does.  So that replays don't collide, each one gets its
+ * own usernames, and "pay" commands refer to the reservations the replay actually booked (the
+ * n-th booked for "pay n").  Responses aren't compared with the expected ones, since other
+ * replays change them (eg, reservation IDs and seats left).
+ *
+ * The backend is chosen as for FlightService; its users and reservations are cleared first.
+ */
+public class LoadGenerator {
+  private static final int DEFAULT_CLIENTS = 100;
+  private static final int DEFAULT_DURATION_SECS = 60;
+  private static final int BARRIER_WAIT_SECS = 60;
+
+  private static final String BOOKED_PREFIX = "Booked flight(s), reservation ID: ";
+
+  /**
+   * A scenario's commands, per session
+   */
+  private static class Scenario {
+    final List<List<String>> sessions = new ArrayList<>();
+    final boolean usesBarrier;
+
+    Scenario(String file) throws IOException, SQLException {
+      List<FlightServiceTest.Session> parsed = FlightServiceTest.parse(file);
+      for (FlightServiceTest.Session session : parsed) {
+        sessions.add(session.commands());
+        try {
+          session.shutdown();
+        } catch (Exception e) {
+          e.printStackTrace();
+        }
+      }
+      usesBarrier = parsed.get(0).numBarrierInvocations() > 0;
+    }
+  }
+
+  private final List<Scenario> scenarios = new ArrayList<>();
+  private final List<Integer> cumulativeWeights = new ArrayList<>();
+  private final ExecutorService sessionPool = Executors.newCachedThreadPool();
+
+  private final AtomicLong replayIds = new AtomicLong();
+  private final LongAdder replays = new LongAdder();
+  private final LongAdder errors = new LongAdder();
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+
+  public static void main(String[] args) throws Exception {
+    int clients = DEFAULT_CLIENTS;
+    int durationSecs = DEFAULT_DURATION_SECS;
+    LoadGenerator generator = new LoadGenerator();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--clients") && i + 1 < args.length) {
+        clients = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--duration") && i + 1 < args.length) {
+        durationSecs = Integer.parseInt(args[++i]);
+      } else {
+        String[] scenarioAndWeight = args[i].split("=", 2);
+        int weight = scenarioAndWeight.length > 1 ? Integer.parseInt(scenarioAndWeight[1]) : 1;
+        for (String file : FlightServiceTest.findCases(scenarioAndWeight[0])) {
+          generator.addScenario(new Scenario(file), weight);
+        }
+      }
+    }
+    if (generator.scenarios.isEmpty()) {
+      System.err.println("Usage: LoadGenerator [--clients N] [--duration SECONDS]"
+                         + " scenario[=weight] ...");
+      System.exit(2);
+    }
+
+    QueryAbstract q = FlightService.createQuery();
+    q.clearTablesWrap();
+    q.closeConnection();
+
+    System.out.println(generator.run(clients, durationSecs));
+    ConsistencyCheck check = ConsistencyCheck.run();
+    System.out.println("Consistency: " + check);
+    DBConnUtils.closePool();
+    System.exit(check.violations() == 0 && generator.errors.sum() == 0 ? 0 : 1);
+  }
+
+  private void addScenario(Scenario scenario, int weight) {
+    int total = cumulativeWeights.isEmpty() ? 0
+        : cumulativeWeights.get(cumulativeWeights.size() - 1);
+    scenarios.add(scenario);
+    cumulativeWeights.add(total + weight);
+  }
+
+  /**
+   * Replays scenarios from the clients until the time is up; returns the report
+   */
+  String run(int clients, int durationSecs) throws InterruptedException {
+    long start = System.nanoTime();
+    long deadline = start + TimeUnit.SECONDS.toNanos(durationSecs);
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Random random = new Random(i);
+      Thread thread = new Thread(() -> {
+        while (System.nanoTime() < deadline) {
+          replay(pickScenario(random));
+        }
+      }, "load-client-" + i);
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    sessionPool.shutdown();
+    return report(System.nanoTime() - start);
+  }
+
+  private Scenario pickScenario(Random random) {
+    int totalWeight = cumulativeWeights.get(cumulativeWeights.size() - 1);
+    int pick = random.nextInt(totalWeight);
+    for (int i = 0; i < scenarios.size(); i++) {
+      if (pick < cumulativeWeights.get(i)) {
+        return scenarios.get(i);
+      }
+    }
+    return scenarios.get(scenarios.size() - 1);
+  }
+
+  /**
+   * Runs each session of the scenario on its own thread (the first on the calling one)
+   */
+  private void replay(Scenario scenario) {
+    String prefix = "u" + Long.toString(replayIds.incrementAndGet(), 36) + "_";
+    Map<String, String> usernames = new HashMap<>();
+    List<Integer> booked = Collections.synchronizedList(new ArrayList<>());
+    CyclicBarrier barrier = scenario.usesBarrier ? new CyclicBarrier(scenario.sessions.size())
+                                                 : null;
+
+    List<Future<?>> others = new ArrayList<>();
+    for (int i = 1; i < scenario.sessions.size(); i++) {
+      List<String> commands = scenario.sessions.get(i);
+      others.add(sessionPool.submit(() -> runSession(commands, prefix, usernames, booked,
+                                                     barrier)));
+    }
+    runSession(scenario.sessions.get(0), prefix, usernames, booked, barrier);
+    for (Future<?> other : others) {
+      try {
+        other.get();
+      } catch (InterruptedException | ExecutionException e) {
+        errors.increment();
+        e.printStackTrace();
+      }
+    }
+    replays.increment();
+  }
+
+  private void runSession(List<String> commands, String prefix, Map<String, String> usernames,
+                          List<Integer> booked, CyclicBarrier barrier) {
+    CommandParser parser = new CommandParser();
+    QueryAbstract q = null;
+    try {
+      q = FlightService.createQuery();
+      for (String command : commands) {
+        if (command.equals("barrier")) {
+          if (barrier != null) {
+            barrier.await(BARRIER_WAIT_SECS, TimeUnit.SECONDS);
+          }
+          continue;
+        }
+        command = rewrite(parser, command, prefix, usernames, booked);
+
+        long start = System.nanoTime();
+        String response = FlightService.execute(q, command);
+        String name = command.trim().split("\\s+", 2)[0];
+        latencies.computeIfAbsent(name, k -> new LatencyHistogram())
+            .record(System.nanoTime() - start);
+        if (response.toLowerCase().contains("failed")) {
+          failures.computeIfAbsent(name, k -> new LongAdder()).increment();
+        }
+        if (response.startsWith(BOOKED_PREFIX)) {
+          booked.add(Integer.parseInt(response.substring(BOOKED_PREFIX.length()).trim()));
+        }
+      }
+    } catch (Exception e) {
+      errors.increment();
+      e.printStackTrace();
+    } finally {
+      if (q != null) {
+        try {
+          q.closeConnection();
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * Gives the command the replay's usernames and reservation IDs
+   */
+  private static String rewrite(CommandParser parser, String command, String prefix,
+                                Map<String, String> usernames, List<Integer> booked) {
+    CommandParser.Command cmd = parser.parse(command);
+    if (cmd.error != CommandParser.Error.NONE) {
+      return command;
+    }
+    switch (cmd.type) {
+      case LOGIN:
+        return "login " + username(cmd.username, prefix, usernames) + " " + quote(cmd.password);
+      case CREATE:
+        return "create " + username(cmd.username, prefix, usernames) + " " + quote(cmd.password)
+            + " " + cmd.amount;
+      case PAY:
+        synchronized (booked) {
+          if (cmd.reservationId >= 1 && cmd.reservationId <= booked.size()) {
+            return "pay " + booked.get(cmd.reservationId - 1);
+          }
+        }
+        return command;
+      default:
+        return command;
+    }
+  }
+
+  // Usernames are case-insensitive, so the replay's stay that way
+  private static String username(String username, String prefix, Map<String, String> usernames) {
+    synchronized (usernames) {
+      return usernames.computeIfAbsent(username.toLowerCase(), k -> prefix + usernames.size());
+    }
+  }
+
+  private static String quote(String token) {
+    return token.isEmpty() || token.matches(".*\\s.*") ? "\"" + token + "\"" : token;
+  }
+
+  private String report(long elapsedNanos) {
+    double secs = elapsedNanos / 1e9;
+    long commands = 0;
+    StringBuilder perCommand = new StringBuilder();
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      LongAdder failed = failures.get(entry.getKey());
+      commands += histogram.getCount();
+      perCommand.append(String.format(
+          "%s: count=%d p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms failed=%d\n",
+          entry.getKey(), histogram.getCount(), histogram.getPercentileMicros(0.5) / 1000.0,
+          histogram.getPercentileMicros(0.99) / 1000.0,
+          histogram.getPercentileMicros(0.999) / 1000.0, histogram.getMaxMicros() / 1000.0,
+          failed == null ? 0 : failed.sum()));
+    }
+
+    long retries = 0;
+    for (CommandMetrics.Command kind : CommandMetrics.Command.values()) {
+      retries += CommandMetrics.get(kind).getRetries();
+    }
+    return String.format("Replayed %d scenarios, %d commands in %.1f s: %.1f commands/s\n",
+                         replays.sum(), commands, secs, commands / secs)
+        + perCommand
+        + "Transaction retries (eg, after deadlocks): " + retries + "\n"
+        + "Errors: " + errors.sum();
+  }
+}
\ No newline at end of file
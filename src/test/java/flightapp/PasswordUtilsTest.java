@@ -5,7 +5,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import junit.framework.TestCase;
 import org.junit.Test;
 
@@ -101,4 +104,60 @@ public class PasswordUtilsTest extends TestCase {
     hash2 = PasswordUtils.hashWithSalt(arHello, salt1);
     assertFalse(Arrays.equals(hash1, hash2));
   }
+
+  @Test
+  public void testAsyncHashingMatchesSyncHashing() {
+    byte[] hash = PasswordUtils.saltAndHashPasswordAsync("bonjour").join();
+
+    // Hashing on the pool must produce the same format as hashing on the caller's thread.
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("bonjour", hash));
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHashAsync("bonjour", hash).join());
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHashAsync("bonsoir", hash).join());
+  }
+
+  @Test
+  public void testReportsHashQueueDepth() {
+    // more hashing than there are workers, so some of it has to wait
+    List<CompletableFuture<byte[]>> hashes = new ArrayList<>();
+    for (int i = 0; i < 4 * Runtime.getRuntime().availableProcessors(); i++) {
+      hashes.add(PasswordUtils.saltAndHashPasswordAsync("hallo"));
+    }
+    assertTrue(PasswordUtils.hashQueueDepth() > 0);
+    String report = PasswordUtils.report();
+    assertTrue(report, report.matches(
+        "password_hashing: threads=\\d+ active=\\d+ queued=[1-9]\\d*/\\d+ rejected=\\d+\n"));
+
+    hashes.forEach(CompletableFuture::join);
+    assertEquals(0, PasswordUtils.hashQueueDepth());
+  }
+
+  @Test
+  public void testMatchesLegacyHeaderlessHashes() {
+    // Hashes written before the format was versioned: a 16-byte salt followed by a 128-byte
+    // PBKDF2WithHmacSHA1 hash.
+    byte[] salt = PasswordUtils.generateSalt();
+    byte[] hash = PasswordUtils.hashWithSalt("hej", salt, "PBKDF2WithHmacSHA1", 65536, 128);
+    byte[] legacy = new byte[salt.length + hash.length];
+    System.arraycopy(salt, 0, legacy, 0, salt.length);
+    System.arraycopy(hash, 0, legacy, salt.length, hash.length);
+
+    assertTrue(PasswordUtils.plaintextMatchesSaltedHash("hej", legacy));
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("hallo", legacy));
+    assertTrue(PasswordUtils.needsRehash(legacy));
+  }
+
+  @Test
+  public void testFreshHashesDontNeedRehash() {
+    byte[] hash = PasswordUtils.saltAndHashPassword("ciao");
+
+    // New hashes record the current parameters, and fit in the VARBINARY(144) column.
+    assertFalse(PasswordUtils.needsRehash(hash));
+    assertTrue(hash.length <= 144);
+  }
+
+  @Test
+  public void testRejectsMalformedHashes() {
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("hola", new byte[0]));
+    assertFalse(PasswordUtils.plaintextMatchesSaltedHash("hola", new byte[] {'P', 'W', 'H', 1}));
+  }
 }
@@ -0,0 +1,155 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs Query's commands against a pool of fake connections, to check how they borrow connections
+ * rather than what they do with the data
+ */
+public class QueryPoolTest {
+  private static final int SESSIONS = 8;
+
+  // username -> salted hash; the only table the fake connections know about
+  private final Map<String, byte[]> users = new ConcurrentHashMap<>();
+  private ConnectionPool pool;
+  private ExecutorService sessions;
+
+  @Before
+  public void createPool() {
+    pool = new ConnectionPool(this::fakeConnection, 1, 10000, Long.MAX_VALUE);
+    sessions = Executors.newFixedThreadPool(SESSIONS);
+  }
+
+  @After
+  public void closePool() {
+    sessions.shutdownNow();
+    pool.close();
+  }
+
+  // A connection that keeps users in the map, answers every other query with an empty result and
+  // starts in auto-commit mode
+  private Connection fakeConnection() {
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (target, method, args) -> {
+          switch (method.getName()) {
+            case "prepareStatement":
+              return fakeStatement((String) args[0]);
+            case "createStatement":
+              return fakeStatement(null);
+            case "getAutoCommit":
+            case "isValid":
+              return true;
+            default:
+              return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  private PreparedStatement fakeStatement(String preparedSql) {
+    Map<Integer, Object> params = new HashMap<>();
+    return (PreparedStatement) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+        (target, method, args) -> {
+          String sql = preparedSql != null ? preparedSql : args != null ? (String) args[0] : "";
+          switch (method.getName()) {
+            case "setString":
+            case "setBytes":
+            case "setInt":
+              params.put((Integer) args[0], args[1]);
+              return null;
+            case "clearParameters":
+              params.clear();
+              return null;
+            case "executeQuery":
+              byte[] hash = sql.startsWith("SELECT salted_hashed_password")
+                            ? users.get((String) params.get(1)) : null;
+              return fakeResult(hash);
+            case "executeUpdate":
+              if (sql.startsWith("INSERT INTO Users_sknguyen")
+                  && users.putIfAbsent((String) params.get(1), (byte[]) params.get(2)) != null) {
+                throw new SQLException("Duplicate key");
+              }
+              return 1;
+            default:
+              return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  // One row holding the hash, or no rows if it's null
+  private static ResultSet fakeResult(byte[] hash) {
+    boolean[] read = { false };
+    return (ResultSet) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+        (target, method, args) -> {
+          switch (method.getName()) {
+            case "next":
+              boolean hasRow = hash != null && !read[0];
+              read[0] = true;
+              return hasRow;
+            case "getBytes":
+              return hash;
+            case "wasNull":
+              return true;
+            default:
+              return defaultValue(method.getReturnType());
+          }
+        });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    return type == long.class ? (Object) 0L : null;
+  }
+
+  /**
+   * Every session creates a user and logs in at once, all with the one connection.  Neither
+   * command may keep the connection while waiting for the hash, or for another connection.
+   */
+  @Test
+  public void testCreateAndLoginShareOneConnection() throws Exception {
+    List<Future<String>> results = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      String username = "user" + i;
+      results.add(sessions.submit(() -> {
+        Query query = new Query(pool);
+        return query.createCustomer(username, "password", 100)
+               + query.login(username, "password");
+      }));
+    }
+    for (int i = 0; i < SESSIONS; i++) {
+      assertEquals("Created user user" + i + "\nLogged in as user" + i + "\n",
+                   results.get(i).get(60, TimeUnit.SECONDS));
+    }
+    assertEquals(0, pool.getInUse());
+    String report = pool.report("pool");
+    assertTrue(report, report.startsWith("pool: in_use=0/1 idle=1 utilization=0.00 opened=1 "));
+    assertTrue(report, report.contains(" timeouts=0 "));
+  }
+}
@@ -0,0 +1,112 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Checks the Routes table against Flights, and that search answers the same from either.  Needs
+ * a database, so it is skipped with the in-memory backend.
+ */
+public class RouteTableTest {
+  private static final String SEARCH_CASES = "cases/no_transaction/search";
+
+  private static Connection conn;
+
+  @BeforeClass
+  public static void createTables() throws Exception {
+    Assume.assumeFalse(FlightService.usesMemoryBackend());
+    conn = DBConnUtils.openConnection();
+    TestUtils.dropTablesWithOptionalSuffix(conn, DBConnUtils.getTableSuffix());
+    TestUtils.runCreateTables(conn);
+  }
+
+  @AfterClass
+  public static void closeConnection() throws SQLException {
+    Query.setSearchRoutes(null);
+    if (conn != null) {
+      conn.close();
+    }
+  }
+
+  @Test
+  public void testVerifyFindsStaleRoutes() throws SQLException {
+    RouteTable.rebuild(conn);
+    assertTrue(RouteTable.verify(conn).matches());
+    assertTrue(RouteTable.countMatches(conn));
+
+    try (Statement stmt = conn.createStatement()) {
+      stmt.executeUpdate("DELETE FROM " + RouteTable.TABLE
+                         + " WHERE fid = (SELECT MIN(fid) FROM " + RouteTable.TABLE + ")");
+    }
+    RouteTable.Verification verification = RouteTable.verify(conn);
+    assertEquals(1, verification.missing);
+    assertEquals(0, verification.extra);
+    assertFalse(RouteTable.countMatches(conn));
+
+    RouteTable.rebuild(conn);
+    assertTrue(RouteTable.verify(conn).matches());
+  }
+
+  @Test
+  public void testSearchCasesWithAndWithoutRoutes() throws Exception {
+    RouteTable.rebuild(conn);
+    for (boolean routes : new boolean[] { true, false }) {
+      Query.setSearchRoutes(routes);
+      for (String file : FlightServiceTest.findCases(SEARCH_CASES)) {
+        runCase(file, routes);
+      }
+    }
+  }
+
+  // Runs the case's sessions at once, as FlightServiceTest does, and checks they all match one of
+  // its outcomes
+  private static void runCase(String file, boolean routes) throws Exception {
+    List<FlightServiceTest.Session> sessions = FlightServiceTest.parse(file);
+    ExecutorService pool = Executors.newCachedThreadPool();
+    try {
+      QueryAbstract query = FlightService.createQuery();
+      query.clearTables();
+      query.closeConnection();
+
+      List<Future<String>> futures = new ArrayList<>();
+      for (FlightServiceTest.Session session : sessions) {
+        futures.add(pool.submit(session));
+      }
+      List<String> outputs = new ArrayList<>();
+      for (Future<String> future : futures) {
+        outputs.add(future.get(60, TimeUnit.SECONDS));
+      }
+
+      boolean passed = false;
+      for (int i = 0; i < sessions.get(0).results().size(); i++) {
+        boolean matches = true;
+        for (int j = 0; j < sessions.size(); j++) {
+          matches = matches && outputs.get(j).equals(sessions.get(j).results().get(i));
+        }
+        passed = passed || matches;
+      }
+      assertTrue("Failed: " + file + " with routes=" + routes + ":\n"
+                 + FlightServiceTest.formatOutput(outputs), passed);
+    } finally {
+      pool.shutdownNow();
+      for (FlightServiceTest.Session session : sessions) {
+        session.shutdown();
+      }
+    }
+  }
+}
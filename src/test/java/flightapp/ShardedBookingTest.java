@@ -0,0 +1,148 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Books with users split across two shards on the primary's server: the databases named by
+ * flightapp.shard.0.database_name and flightapp.shard.1.database_name, which default to the
+ * primary's own (then both shards share its Users and Reservations, which still exercises the
+ * ledger).  Needs a database, so it is skipped with the in-memory backend.
+ */
+public class ShardedBookingTest {
+  private static final int NUM_SHARDS = 2;
+
+  private static ConnectionPool primary;
+  private static ConnectionPool[] shards;
+  // a user on each shard
+  private static String[] usernames;
+
+  private Query query;
+
+  @BeforeClass
+  public static void createShards() throws Exception {
+    Assume.assumeFalse(FlightService.usesMemoryBackend());
+    String suffix = DBConnUtils.getTableSuffix();
+    try (Connection conn = DBConnUtils.openConnection()) {
+      // Shards first, since a shard can be the primary database itself
+      for (int shard = 0; shard < NUM_SHARDS; shard++) {
+        try (Connection shardConn = DBConnUtils.openShardConnection(
+                 shard, Connection.TRANSACTION_SERIALIZABLE)) {
+          if (!shardConn.getCatalog().equals(conn.getCatalog())) {
+            TestUtils.dropTablesWithOptionalSuffix(shardConn, suffix);
+            TestUtils.runScript(shardConn, "createShardTables.sql");
+          }
+        }
+      }
+      TestUtils.dropTablesWithOptionalSuffix(conn, suffix);
+      TestUtils.runCreateTables(conn);
+    }
+
+    primary = DBConnUtils.getPool();
+    shards = new ConnectionPool[NUM_SHARDS];
+    usernames = new String[NUM_SHARDS];
+    for (int shard = 0; shard < NUM_SHARDS; shard++) {
+      int i = shard;
+      shards[shard] = new ConnectionPool(
+          () -> {
+            try {
+              return DBConnUtils.openShardConnection(i, Connection.TRANSACTION_SERIALIZABLE);
+            } catch (IOException e) {
+              throw new SQLException("Could not read dbconn.properties", e);
+            }
+          },
+          4, 10000, 30000);
+    }
+    for (int i = 0; usernames[0] == null || usernames[1] == null; i++) {
+      String username = "user" + i;
+      usernames[DBConnUtils.shardFor(username, NUM_SHARDS)] = username;
+    }
+  }
+
+  @AfterClass
+  public static void closeShards() {
+    if (shards != null) {
+      for (ConnectionPool shard : shards) {
+        shard.close();
+      }
+    }
+  }
+
+  @Before
+  public void clearTables() throws SQLException {
+    query = new Query(primary, shards);
+    query.clearTables();
+  }
+
+  // Creates the user, logs in and books the first itinerary from Seattle to Boston on day 1
+  private static String book(String username) throws SQLException {
+    Query session = new Query(primary, shards);
+    session.createCustomer(username, username, 100);
+    session.login(username, username);
+    session.search("Seattle WA", "Boston MA", true, 1, 1);
+    return session.book(0);
+  }
+
+  private static int countLedger(String where) throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection();
+         Statement stmt = conn.createStatement();
+         ResultSet rs = stmt.executeQuery(
+             "SELECT COUNT(*) AS count FROM ReservationLedger_sknguyen WHERE " + where)) {
+      rs.next();
+      return rs.getInt("count");
+    }
+  }
+
+  private static void updateLedger(String sql, String username)
+    throws SQLException, IOException {
+    try (Connection conn = DBConnUtils.openConnection();
+         PreparedStatement stmt = conn.prepareStatement(sql)) {
+      stmt.setString(1, username);
+      stmt.executeUpdate();
+    }
+  }
+
+  /**
+   * Reservation IDs come from the ledger, so they increase across shards, and every booking
+   * leaves a confirmed entry
+   */
+  @Test
+  public void testReservationIdsSpanShards() throws SQLException, IOException {
+    assertEquals("Booked flight(s), reservation ID: 1\n", book(usernames[0]));
+    assertEquals("Booked flight(s), reservation ID: 2\n", book(usernames[1]));
+    assertEquals(2, countLedger("confirmed = 1"));
+    assertEquals(0, countLedger("confirmed = 0"));
+  }
+
+  /**
+   * Pending entries are deleted unless their reservation made it to the shard, in which case
+   * they are confirmed
+   */
+  @Test
+  public void testReconcileLedger() throws SQLException, IOException {
+    assertEquals("Booked flight(s), reservation ID: 1\n", book(usernames[0]));
+    // as if the process died before confirming the booking, and before booking another
+    updateLedger("UPDATE ReservationLedger_sknguyen SET confirmed = 0 WHERE res_username = ?",
+                 usernames[0]);
+    updateLedger("INSERT INTO ReservationLedger_sknguyen "
+                 + "(reservation_id, res_username, first_flight_id) VALUES (2, ?, 60454)",
+                 usernames[1]);
+
+    assertEquals(1, query.reconcileLedger(0));
+    assertEquals(1, countLedger("confirmed = 1 AND reservation_id = 1"));
+    assertEquals(0, countLedger("reservation_id = 2"));
+    assertTrue(book(usernames[1]).startsWith("Booked flight(s), reservation ID: 2"));
+  }
+}
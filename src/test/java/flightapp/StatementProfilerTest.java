@@ -0,0 +1,76 @@
+package flightapp;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatementProfilerTest {
+  private static final String PROFILED_SELECT_SQL = "SELECT x FROM profiled WHERE y = ?";
+
+  private Connection conn;
+
+  @Before
+  public void createConnection() {
+    StatementProfiler.registerNames(StatementProfilerTest.class);
+    StatementProfiler.reset();
+    conn = StatementProfiler.profile(fakeConnection(3));
+  }
+
+  // A connection whose queries all return the given number of rows
+  private static Connection fakeConnection(int numRows) {
+    PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+        (target, method, args) -> {
+          if (method.getName().equals("executeQuery")) {
+            int[] remaining = { numRows };
+            return Proxy.newProxyInstance(
+                Connection.class.getClassLoader(), new Class<?>[] { ResultSet.class },
+                (rsTarget, rsMethod, rsArgs) ->
+                    rsMethod.getName().equals("next") ? remaining[0]-- > 0 : null);
+          }
+          return method.getReturnType() == int.class ? 1 : null;
+        });
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (target, method, args) -> method.getName().equals("prepareStatement") ? stmt : null);
+  }
+
+  @Test
+  public void testNamedStatementCountsExecutionsAndRows() throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(PROFILED_SELECT_SQL);
+    for (int i = 0; i < 2; i++) {
+      stmt.setInt(1, i);
+      ResultSet rs = stmt.executeQuery();
+      while (rs.next()) { }
+      rs.close();
+    }
+    String report = StatementProfiler.report();
+    assertTrue(report, report.contains("PROFILED_SELECT_SQL: count=2 "));
+    assertTrue(report, report.contains(" rows=6\n"));
+  }
+
+  @Test
+  public void testUnreadResultsAreCountedOnTheNextExecution() throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement(PROFILED_SELECT_SQL);
+    stmt.executeQuery().next();
+    assertTrue(StatementProfiler.report().isEmpty());
+
+    stmt.executeQuery();
+    String report = StatementProfiler.report();
+    assertTrue(report, report.contains("PROFILED_SELECT_SQL: count=1 "));
+    assertTrue(report, report.contains(" rows=1\n"));
+  }
+
+  @Test
+  public void testUnnamedStatementIsReportedBySql() throws SQLException {
+    conn.prepareStatement("UPDATE  profiled\n  SET x = 1").executeUpdate();
+    String report = StatementProfiler.report();
+    assertTrue(report, report.startsWith("UPDATE profiled SET x = 1: count=1 "));
+  }
+}
\ No newline at end of file
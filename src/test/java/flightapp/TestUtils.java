@@ -2,6 +2,8 @@ package flightapp;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
 
@@ -67,14 +69,32 @@ public class TestUtils {
   }
 
   public static void runCreateTables(Connection conn) throws SQLException, IOException {
+    runScript(conn, "createTables.sql");
+  }
+
+  public static void runScript(Connection conn, String path) throws SQLException, IOException {
     ScriptRunner scriptRunner = new ScriptRunner(conn);
     scriptRunner.setStopOnError(true);
     scriptRunner.setLogWriter(null);
     scriptRunner.setErrorLogWriter(null);
-    FileReader reader = new FileReader("createTables.sql");
+    FileReader reader = new FileReader(path);
     scriptRunner.runScript(reader);
   }
 
+  /**
+   * Creates an in-memory store of the flights, given as lines of a CSV file with the Flights
+   * table's columns (see createTables.sql)
+   */
+  public static MemoryStore createMemoryStore(List<String> flights) throws IOException {
+    Path flightsFile = Files.createTempFile("flights", ".csv");
+    try {
+      Files.write(flightsFile, flights);
+      return new MemoryStore(flightsFile.toString());
+    } finally {
+      Files.delete(flightsFile);
+    }
+  }
+
   public static void checkTables(Connection conn) throws SQLException, IOException {
     DatabaseMetaData metaData = conn.getMetaData();
     String schema = conn.getSchema();
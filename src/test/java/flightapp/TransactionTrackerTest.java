@@ -0,0 +1,122 @@
+package flightapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TransactionTrackerTest {
+  private Connection conn;
+  private TransactionTracker tracker;
+
+  @Before
+  public void createTracker() throws SQLException {
+    tracker = new TransactionTracker(fakeConnection());
+    conn = tracker.getConnection();
+  }
+
+  // A connection that does nothing, starting in auto-commit mode
+  private static Connection fakeConnection() {
+    PreparedStatement stmt = (PreparedStatement) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+        (target, method, args) -> method.getReturnType() == boolean.class ? false
+                                  : method.getReturnType() == int.class ? 0 : null);
+    return (Connection) Proxy.newProxyInstance(
+        Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+        (target, method, args) -> method.getName().equals("prepareStatement") ? stmt
+                                  : method.getName().equals("getAutoCommit") ? true : null);
+  }
+
+  @Test
+  public void testAutoCommitStatementsLeaveNoTransaction() throws SQLException {
+    conn.prepareStatement("UPDATE t SET x = 1").executeUpdate();
+    assertFalse(tracker.inTransaction());
+  }
+
+  @Test
+  public void testTransactionOpensOnFirstStatement() throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement("UPDATE t SET x = 1");
+    conn.setAutoCommit(false);
+    assertFalse(tracker.inTransaction());
+
+    stmt.executeUpdate();
+    assertTrue(tracker.inTransaction());
+    assertTrue(conn == stmt.getConnection());
+  }
+
+  @Test
+  public void testCommitAndRollbackCloseTheTransaction() throws SQLException {
+    PreparedStatement stmt = conn.prepareStatement("UPDATE t SET x = 1");
+    conn.setAutoCommit(false);
+    stmt.executeUpdate();
+    conn.commit();
+    assertFalse(tracker.inTransaction());
+
+    // with auto-commit still off, the next statement starts another transaction
+    stmt.executeUpdate();
+    assertTrue(tracker.inTransaction());
+    conn.rollback();
+    assertFalse(tracker.inTransaction());
+
+    stmt.executeUpdate();
+    conn.setAutoCommit(true);
+    assertFalse(tracker.inTransaction());
+    assertTrue(tracker.getAutoCommit());
+  }
+
+  @Test
+  public void testRedundantSetAutoCommitKeepsTheTransaction() throws SQLException {
+    conn.setAutoCommit(false);
+    conn.prepareStatement("UPDATE t SET x = 1").executeUpdate();
+    conn.setAutoCommit(false);
+    assertTrue(tracker.inTransaction());
+  }
+
+  @Test
+  public void testTransactionsAreRecorded() throws SQLException, IOException {
+    FlightEvents.CommandEvent command = new FlightEvents.CommandEvent();
+    command.command = "pay";
+    command.username = "user1";
+    command.reservationId = 3;
+    tracker.setCommandEvent(command);
+
+    Path file = Files.createTempFile("transactions", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(FlightEvents.TransactionEvent.class);
+      recording.start();
+      PreparedStatement stmt = conn.prepareStatement("UPDATE t SET x = 1");
+      conn.setAutoCommit(false);
+      stmt.executeUpdate();
+      stmt.executeUpdate();
+      conn.commit();
+      stmt.executeUpdate();
+      conn.rollback();
+      recording.stop();
+      recording.dump(file);
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+      assertEquals(2, events.size());
+      assertEquals("commit", events.get(0).getString("outcome"));
+      assertEquals(2, events.get(0).getInt("statements"));
+      assertEquals("user1", events.get(0).getString("username"));
+      assertEquals(3, events.get(0).getInt("reservationId"));
+      assertEquals("rollback", events.get(1).getString("outcome"));
+      assertEquals(1, events.get(1).getInt("statements"));
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
\ No newline at end of file